@@ -0,0 +1,74 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.Array;
+import org.aegik.transactionality.ArrayStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Array access and updates for each kind of storage.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ArrayBenchmark
+{
+	@Param({"LIST", "RING", "VECTOR"})
+	public ArrayStorage m_storage;
+
+	@Param({"1024", "65536"})
+	public int m_size;
+
+	private Array<Integer> m_array;
+	private int m_index;
+
+	@Setup
+	public void setup()
+	{
+		Catalog catalog = Documents.generator(m_size).createRoot(Catalog.class);
+		switch (m_storage)
+		{
+			case LIST:
+				m_array = catalog.getList();
+				break;
+			case RING:
+				m_array = catalog.getRing();
+				break;
+			default:
+				m_array = catalog.getVector();
+		}
+		m_index = 0;
+	}
+
+	@Benchmark
+	public Integer get()
+	{
+		return m_array.get(m_index++ & (m_size - 1));
+	}
+
+	@Benchmark
+	public Integer set()
+	{
+		return m_array.set(m_index++ & (m_size - 1), m_index & 127);
+	}
+
+	@Benchmark
+	public Integer addRemoveLast()
+	{
+		m_array.add(m_index++ & 127);
+		return m_array.remove(m_size);
+	}
+
+	@Benchmark
+	public Integer addRemoveFirst()
+	{
+		m_array.add(0, m_index++ & 127);
+		return m_array.remove(0);
+	}
+}
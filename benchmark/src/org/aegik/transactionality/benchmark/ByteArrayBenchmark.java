@@ -0,0 +1,91 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.ByteArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bit operations of ByteArray.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ByteArrayBenchmark
+{
+	@Param({"64", "4096", "65536"})
+	public int m_size;
+
+	private ByteArray m_bits;
+	private ByteArray m_other;
+	private int m_index;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(Documents.SEED);
+		byte[] bytes = new byte[m_size];
+		random.nextBytes(bytes);
+		m_bits = new ByteArray(bytes);
+		bytes = new byte[m_size];
+		random.nextBytes(bytes);
+		m_other = new ByteArray(bytes);
+		m_index = 0;
+	}
+
+	private int nextBit()
+	{
+		// The sizes are powers of two.
+		return m_index++ & (m_size * 8 - 1);
+	}
+
+	@Benchmark
+	public boolean getBit()
+	{
+		return m_bits.getBit(nextBit());
+	}
+
+	@Benchmark
+	public void flipBit()
+	{
+		m_bits.flipBit(nextBit());
+	}
+
+	@Benchmark
+	public int cardinality()
+	{
+		return m_bits.cardinality();
+	}
+
+	@Benchmark
+	public int scanSetBits()
+	{
+		int count = 0;
+		for (int i = m_bits.nextSetBit(0); i >= 0; i = m_bits.nextSetBit(i + 1))
+		{
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public void xor()
+	{
+		// Applying the same xor twice restores the contents.
+		m_bits.xor(m_other);
+		m_bits.xor(m_other);
+	}
+
+	@Benchmark
+	public void setBits()
+	{
+		int from = nextBit();
+		m_bits.setBits(from, m_size * 8, (from & 1) == 0);
+	}
+}
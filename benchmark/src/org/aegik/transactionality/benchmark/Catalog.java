@@ -0,0 +1,41 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.*;
+
+/**
+ * The schema used by the benchmarks.
+ * <p>
+ * Covers the property kinds on the hot paths: primitives, a nested
+ * object, a dictionary, arrays of each storage and a byte array.
+ *
+ * @author Christoffer Lerno
+ */
+public interface Catalog extends Transactional
+{
+	String getName();
+	void setName(String name);
+	Integer getCount();
+	void setCount(Integer count);
+	Dict<Integer> getScores();
+	Array<Integer> getList();
+	@Storage(ArrayStorage.RING) Array<Integer> getRing();
+	@Storage(ArrayStorage.VECTOR) Array<Integer> getVector();
+	ByteArray getBits();
+	Array<Item> getItems();
+
+	/**
+	 * The elements of the item array.
+	 */
+	interface Item extends Transactional
+	{
+		String getTitle();
+		void setTitle(String title);
+		Double getPrice();
+		void setPrice(Double price);
+		Boolean getAvailable();
+		void setAvailable(Boolean available);
+		Dict<String> getTags();
+		@Optional Item getParent();
+		Item createParent();
+	}
+}
@@ -0,0 +1,79 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.Dict;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Dict lookups and updates, in and out of transactions.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class DictBenchmark
+{
+	private final static int BATCH = 1024;
+
+	@Param({"16", "1024", "65536"})
+	public int m_size;
+
+	private Catalog m_catalog;
+	private Dict<Integer> m_scores;
+	private String[] m_keys;
+	private int m_index;
+
+	@Setup
+	public void setup()
+	{
+		m_catalog = Documents.generator(m_size).createRoot(Catalog.class);
+		m_scores = m_catalog.getScores();
+		m_keys = m_scores.keySet().toArray(new String[m_size]);
+		m_index = 0;
+	}
+
+	private String nextKey()
+	{
+		// The sizes are powers of two.
+		return m_keys[m_index++ & (m_size - 1)];
+	}
+
+	@Benchmark
+	public Integer get()
+	{
+		return m_scores.get(nextKey());
+	}
+
+	@Benchmark
+	public Integer getMissing()
+	{
+		return m_scores.get("missing");
+	}
+
+	@Benchmark
+	public Integer put()
+	{
+		return m_scores.put(nextKey(), m_index & 127);
+	}
+
+	/**
+	 * Puts a batch in a transaction and commits it, so that the journal
+	 * stays bounded.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void putInTransaction()
+	{
+		m_catalog.beginTransaction();
+		for (int i = 0; i < BATCH; i++)
+		{
+			m_scores.put(nextKey(), i & 127);
+		}
+		m_catalog.commit();
+	}
+}
@@ -0,0 +1,37 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.DataGenerator;
+
+/**
+ * Creates the generators of the catalog documents used by the benchmarks.
+ * <p>
+ * The documents only depend on the size, so every run of a benchmark
+ * works on exactly the same data.
+ *
+ * @author Christoffer Lerno
+ */
+final class Documents
+{
+	/**
+	 * The seed used by all benchmarks.
+	 */
+	final static long SEED = 0x5EEDL;
+
+	private final static int DEPTH = 2;
+	private final static int FAN_OUT = 4;
+
+	private Documents()
+	{
+	}
+
+	/**
+	 * Creates a generator of catalogs.
+	 *
+	 * @param size the number of elements of the top level containers.
+	 * @return a new generator.
+	 */
+	static DataGenerator generator(int size)
+	{
+		return new DataGenerator(SEED, size, DEPTH, FAN_OUT);
+	}
+}
@@ -0,0 +1,40 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.Klass;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of Klass metadata.
+ * <p>
+ * Klass instances are cached for the life of the JVM, so a cold start can
+ * only be seen once per fork: every fork times a single, unwarmed call.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(30)
+public class KlassBenchmark
+{
+	@Benchmark
+	public Klass coldStart()
+	{
+		return Klass.getKlass(Catalog.class);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 10, time = 1)
+	@Fork(3)
+	public Klass cached()
+	{
+		return Klass.getKlass(Catalog.class);
+	}
+}
@@ -0,0 +1,56 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.Transactionality;
+import org.openjdk.jmh.annotations.*;
+import xmlwise.XmlParseException;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading and saving generated documents as plists.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class PlistBenchmark
+{
+	@Param({"100", "10000"})
+	public int m_items;
+
+	private String m_xml;
+	private Catalog m_catalog;
+
+	@Setup
+	public void setup() throws XmlParseException
+	{
+		m_xml = Documents.generator(m_items).toXml(Catalog.class);
+		m_catalog = Transactionality.fromXml(Catalog.class, m_xml);
+	}
+
+	@Benchmark
+	public Catalog fromXml() throws XmlParseException
+	{
+		return Transactionality.fromXml(Catalog.class, m_xml);
+	}
+
+	@Benchmark
+	public String toPlist()
+	{
+		return m_catalog.toPlist();
+	}
+
+	/**
+	 * The conversion to primitives without the XML, for comparison.
+	 */
+	@Benchmark
+	public Map<String, Object> primitive()
+	{
+		return m_catalog.primitive();
+	}
+}
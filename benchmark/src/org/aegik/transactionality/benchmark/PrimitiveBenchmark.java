@@ -0,0 +1,81 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.Array;
+import org.aegik.transactionality.Dict;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parallel conversion of large containers to primitives
+ * in pools of different sizes.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class PrimitiveBenchmark
+{
+	@Param({"1", "4", "16"})
+	public int m_threads;
+
+	@Param({"4096", "262144"})
+	public int m_size;
+
+	private ForkJoinPool m_pool;
+	private Dict<Integer> m_scores;
+	private Array<Integer> m_list;
+
+	@Setup
+	public void setup()
+	{
+		m_pool = new ForkJoinPool(m_threads);
+		Catalog catalog = Documents.generator(0).createRoot(Catalog.class);
+		m_scores = catalog.getScores();
+		m_list = catalog.getList();
+		for (int i = 0; i < m_size; i++)
+		{
+			m_scores.put("s" + i, i & 127);
+			m_list.add(i & 127);
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		m_pool.shutdown();
+	}
+
+	@Benchmark
+	public Map<String, Object> dict() throws InterruptedException, ExecutionException
+	{
+		return m_pool.submit(new Callable<Map<String, Object>>()
+		{
+			public Map<String, Object> call()
+			{
+				return m_scores.primitive();
+			}
+		}).get();
+	}
+
+	@Benchmark
+	public List<Object> array() throws InterruptedException, ExecutionException
+	{
+		return m_pool.submit(new Callable<List<Object>>()
+		{
+			public List<Object> call()
+			{
+				return m_list.primitive();
+			}
+		}).get();
+	}
+}
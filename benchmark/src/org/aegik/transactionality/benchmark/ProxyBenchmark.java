@@ -0,0 +1,56 @@
+package org.aegik.transactionality.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getter and setter dispatch through the proxy and Klass.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ProxyBenchmark
+{
+	private Catalog m_catalog;
+	private int m_counter;
+
+	@Setup
+	public void setup()
+	{
+		m_catalog = Documents.generator(16).createRoot(Catalog.class);
+		m_counter = 0;
+	}
+
+	@Benchmark
+	public String getter()
+	{
+		return m_catalog.getName();
+	}
+
+	@Benchmark
+	public Integer boxedGetter()
+	{
+		return m_catalog.getCount();
+	}
+
+	@Benchmark
+	public void setter()
+	{
+		// Stay within the Integer cache so that boxing doesn't allocate.
+		m_catalog.setCount(m_counter++ & 127);
+	}
+
+	@Benchmark
+	public void setterInTransaction()
+	{
+		m_catalog.beginTransaction();
+		m_catalog.setCount(m_counter++ & 127);
+		m_catalog.rollback();
+	}
+}
@@ -0,0 +1,64 @@
+package org.aegik.transactionality.benchmark;
+
+import org.aegik.transactionality.ChangeSet;
+import org.aegik.transactionality.Dict;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures commit and rollback of transactions with different journal lengths.
+ * <p>
+ * Each iteration fills the journal in its setup and then times a single
+ * commit or rollback, so the cost of filling the journal is not included.
+ *
+ * @author Christoffer Lerno
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 500)
+@Measurement(iterations = 500)
+@Fork(3)
+public class TransactionBenchmark
+{
+	@Param({"1", "100", "10000"})
+	public int m_journalLength;
+
+	private Catalog m_catalog;
+	private Dict<Integer> m_scores;
+	private String[] m_keys;
+	private int m_round;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		m_catalog = Documents.generator(m_journalLength).createRoot(Catalog.class);
+		m_scores = m_catalog.getScores();
+		m_keys = m_scores.keySet().toArray(new String[m_journalLength]);
+		m_round = 0;
+	}
+
+	@Setup(Level.Iteration)
+	public void fillJournal()
+	{
+		m_round++;
+		m_catalog.beginTransaction();
+		for (String key : m_keys)
+		{
+			m_scores.put(key, m_round & 127);
+		}
+	}
+
+	@Benchmark
+	public ChangeSet commit()
+	{
+		return m_catalog.commit();
+	}
+
+	@Benchmark
+	public void rollback()
+	{
+		m_catalog.rollback();
+	}
+}
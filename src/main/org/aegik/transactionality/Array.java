@@ -1,6 +1,7 @@
 package org.aegik.transactionality;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * An array works like an ArrayList, containing a list of items.
@@ -11,7 +12,9 @@ import java.util.*;
  */
 public class Array<C> extends TransactionalContainer<C> implements List<C>, NonPrimitive
 {
-	private ArrayList<C> m_list;
+	private final ArrayStorage m_storage;
+	private List<C> m_list;
+	private int m_modCount;
 
 	/**
 	 * Creates an array with transactional support, belonging to the given root.
@@ -22,21 +25,91 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
     Array(Root root, ElementType<C> internalType)
 	{
-		super(root, internalType);
-
-		m_list = new ArrayList<C>();
+		this(root, internalType, ArrayStorage.LIST);
 	}
 
+	/**
+	 * Creates an array with transactional support and a specific kind of storage.
+	 *
+	 * @param root the root owning this list. I.e. that handles
+	 * transactions for this array.
+	 * @param internalType the object type for this class.
+	 * @param storage the kind of storage.
+	 */
+	Array(Root root, ElementType<C> internalType, ArrayStorage storage)
+	{
+		super(root, internalType);
+		m_storage = storage;
+		m_list = storage.newList();
+		m_modCount = 0;
+	}
 
 	/**
-	 * Creates a copy of an existing array.
+	 * Creates a copy of an existing array, using the same kind of storage.
+	 * <p>
+	 * The copy shares its elements with the original. Elements that are
+	 * containers remain children of the original, so their changes are
+	 * still reported under the paths of the original.
 	 *
 	 * @param original the original array.
 	 */
 	public Array(Array<C> original)
 	{
-		this(original.root(), original.internalType());
-		addAll(original);
+		this(original.root(), original.internalType(), original.m_storage);
+		m_list = copyOf(original.m_list);
+	}
+
+	/**
+	 * Returns an immutable copy of the current elements of this array.
+	 * <p>
+	 * With {@link ArrayStorage#VECTOR} storage the snapshot shares its
+	 * structure with the array and is taken in O(1), otherwise the elements
+	 * are copied.
+	 *
+	 * @return a list unaffected by later changes to this array.
+	 */
+	public List<C> snapshot()
+	{
+		if (m_list instanceof VectorList) return ((VectorList<C>) m_list).vector();
+		return Collections.unmodifiableList(new ArrayList<C>(m_list));
+	}
+
+	/**
+	 * Creates a copy of a list with the storage of this array.
+	 *
+	 * @param list the list to copy.
+	 * @return the copy, sharing structure with the list for vectors.
+	 */
+	private List<C> copyOf(List<C> list)
+	{
+		if (list instanceof VectorList) return new VectorList<C>(((VectorList<C>) list).vector());
+		List<C> copy = m_storage.newList();
+		copy.addAll(list);
+		return copy;
+	}
+
+	/**
+	 * Prepares for a bulk change. In a transaction the current list is
+	 * kept for the undo and replaced by a copy.
+	 */
+	private void detach()
+	{
+		checkMutable();
+		m_modCount++;
+		if (!isJournaling()) return;
+		addUndo(new ClearUndo<C>(this));
+		m_list = copyOf(m_list);
+	}
+
+	/**
+	 * Returns the kind of storage of this array.
+	 *
+	 * @return the storage of this array.
+	 * @see Storage
+	 */
+	public ArrayStorage getStorage()
+	{
+		return m_storage;
 	}
 
 
@@ -90,8 +163,12 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
 	public void add(final int index, C element)
 	{
+		checkMutable();
 		m_list.add(index, element);
-		addUndo(new AddUndo(this, index));
+		m_modCount++;
+		addUndo(new AddUndo<C>(this, index, element));
+		adopt(element, index);
+		indexAdd(element);
 	}
 
 	/**
@@ -107,8 +184,13 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
      */
 	public boolean add(C o)
 	{
-		addUndo(new AddUndo(this, m_list.size()));
-		return m_list.add(o);
+		checkMutable();
+		addUndo(new AddUndo<C>(this, m_list.size(), o));
+		adopt(o, m_list.size());
+		m_list.add(o);
+		m_modCount++;
+		indexAdd(o);
+		return true;
 	}
 
 	/**
@@ -125,10 +207,11 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
     public boolean addAll(Collection<? extends C> collection)
 	{
-		List<C> old = m_list;
-		clear();
-		m_list.addAll(old);
-		return m_list.addAll(collection);
+		detach();
+		adoptAll(collection, m_list.size());
+		boolean changed = m_list.addAll(collection);
+		indexRebuild();
+		return changed;
 	}
 
 	/**
@@ -150,10 +233,117 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
 	public boolean addAll(int index, Collection<? extends C> collection)
 	{
-		List<C> old = m_list;
-		clear();
-		m_list.addAll(old);
-		return m_list.addAll(index, collection);
+		detach();
+		adoptAll(collection, index);
+		boolean changed = m_list.addAll(index, collection);
+		indexRebuild();
+		return changed;
+	}
+
+	private void adoptAll(Collection<? extends C> collection, int index)
+	{
+		for (C element : collection)
+		{
+			adopt(element, index++);
+		}
+	}
+
+	Object entry(Object key)
+	{
+		return get(index(key));
+	}
+
+	void assign(Object key, Object value)
+	{
+		if (internalType() == null) throw new ValidationException("Object type not defined.");
+		set(index(key), internalType().newObject(root(), value));
+	}
+
+	void insertEntry(Object key, Object value)
+	{
+		if (internalType() == null) throw new ValidationException("Object type not defined.");
+		add(index(key, size() + 1), internalType().newObject(root(), value));
+	}
+
+	void removeEntries(Object key, int count)
+	{
+		int index = index(key);
+		if (count < 1 || count > size() - index) throw new ValidationException("Illegal count " + count);
+		for (int i = 0; i < count; i++)
+		{
+			remove(index);
+		}
+	}
+
+	private int index(Object key)
+	{
+		return index(key, size());
+	}
+
+	private static int index(Object key, int size)
+	{
+		if (!(key instanceof Integer) || (Integer) key < 0 || (Integer) key >= size)
+		{
+			throw new ValidationException("Illegal index " + key);
+		}
+		return (Integer) key;
+	}
+
+	/**
+	 * Finds a child by searching outwards from the index it was last seen
+	 * at, since elements usually move by a few positions at a time.
+	 */
+	Object keyOf(TransactionalContainer<?> child, String key)
+	{
+		int size = m_list.size();
+		int position = child.position();
+		for (int distance = 0; position - distance >= 0 || position + distance < size; distance++)
+		{
+			int index = position + distance;
+			if (index >= 0 && index < size && containerOf(m_list.get(index)) == child)
+			{
+				child.setPosition(index);
+				return index;
+			}
+			index = position - distance;
+			if (distance > 0 && index >= 0 && index < size && containerOf(m_list.get(index)) == child)
+			{
+				child.setPosition(index);
+				return index;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an index over a property of the elements of this array.
+	 *
+	 * @param property the key of the indexed property.
+	 * @return the index.
+	 * @throws IllegalArgumentException if the property is not indexed.
+	 * @see HashIndex
+	 */
+	public PropertyIndex<C> getIndex(String property)
+	{
+		return findIndex(property, false);
+	}
+
+	/**
+	 * Returns a sorted index over a property of the elements of this array.
+	 *
+	 * @param property the key of the indexed property.
+	 * @return the index.
+	 * @throws IllegalArgumentException if the property has no sorted index.
+	 * @see SortedIndex
+	 */
+	public SortedPropertyIndex<C> getSortedIndex(String property)
+	{
+		return (SortedPropertyIndex<C>) findIndex(property, true);
+	}
+
+	Collection<C> elements()
+	{
+		return m_list;
 	}
 
 	/**
@@ -161,8 +351,11 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
 	public void clear()
 	{
-		addUndo(new ClearUndo(this));
-		m_list = new ArrayList<C>();
+		checkMutable();
+		addUndo(new ClearUndo<C>(this));
+		m_list = m_storage.newList();
+		m_modCount++;
+		indexRebuild();
 	}
 
 
@@ -217,13 +410,45 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	/**
      * Returns an iterator over the elements in this list in proper sequence.
      * <p>
-	 * Note that this iterator does not support remove.
+	 * Note that this iterator does not support remove, and throws a
+	 * ConcurrentModificationException if elements are added or removed
+	 * while iterating. Each call allocates one iterator, use
+	 * {@link #forEach(Consumer)} to iterate without allocating.
 	 *
      * @return an iterator over the elements in this list in proper sequence.
      */
 	public Iterator<C> iterator()
 	{
-		return Collections.unmodifiableList(m_list).iterator();
+		return new ArrayIterator<C>(this, 0);
+	}
+
+	/**
+	 * Performs an action for each element of this list, in order.
+	 * <p>
+	 * Unlike iterating, this allocates nothing.
+	 *
+	 * @param action the action to perform.
+	 */
+	@Override
+	public void forEach(Consumer<? super C> action)
+	{
+		m_list.forEach(action);
+	}
+
+	/**
+	 * Returns a spliterator over the elements of this list.
+	 * <p>
+	 * The spliterator splits by index into exactly sized halves, whatever
+	 * the storage, so parallel streams divide the work evenly. It reads
+	 * the list as it is when traversal starts, and is safe to use from
+	 * several threads as long as no transaction modifies the array.
+	 *
+	 * @return a sized spliterator over the elements.
+	 */
+	@Override
+	public Spliterator<C> spliterator()
+	{
+		return new ArraySpliterator<C>(m_list, 0, -1);
 	}
 
 	/**
@@ -245,10 +470,11 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 * Note that this iterator does not support remove.
      *
      * @return a list iterator of the elements in this list.
+     * @see #iterator()
      */
 	public ListIterator<C> listIterator()
 	{
-		return Collections.unmodifiableList(m_list).listIterator();
+		return new ArrayIterator<C>(this, 0);
 	}
 
 	/**
@@ -259,10 +485,12 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 *
 	 * @param index the index to start from.
 	 * @return a list iterator of the elements in this list.
+	 * @see #iterator()
 	 */
 	public ListIterator<C> listIterator(int index)
 	{
-		return Collections.unmodifiableList(m_list).listIterator(index);
+		if (index < 0 || index > m_list.size()) throw new IndexOutOfBoundsException("Index: " + index);
+		return new ArrayIterator<C>(this, index);
 	}
 
 	/**
@@ -277,8 +505,11 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	 */
 	public C remove(final int index)
 	{
+		checkMutable();
 		C removed = m_list.remove(index);
+		m_modCount++;
 		addUndo(new RemoveUndo<C>(this, index, removed));
+		indexRemove(removed);
 		return removed;
 	}
 
@@ -292,6 +523,7 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	@SuppressWarnings({"SuspiciousMethodCalls"})
     public boolean remove(Object o)
 	{
+		checkMutable();
 		final int index = m_list.indexOf(o);
 		if (index == -1) return false;
 		remove(index);
@@ -310,10 +542,10 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	public boolean removeAll(Collection<?> collection)
 	{
 		if (collection == null) throw new NullPointerException();
-		ArrayList<C> oldList = m_list;
-		clear();
-		m_list.addAll(oldList);
-		return m_list.removeAll(collection);
+		detach();
+		boolean changed = m_list.removeAll(collection);
+		indexRebuild();
+		return changed;
 	}
 
 	/**
@@ -330,10 +562,10 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	public boolean retainAll(Collection<?> collection)
 	{
 		if (collection == null) throw new NullPointerException();
-		ArrayList<C> oldList = m_list;
-		clear();
-		m_list.addAll(oldList);
-		return m_list.retainAll(collection);
+		detach();
+		boolean changed = m_list.retainAll(collection);
+		indexRebuild();
+		return changed;
 	}
 
     /**
@@ -352,22 +584,34 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
      */
 	public C set(int index, C element)
 	{
-		C old = remove(index);
-		add(index, element);
+		checkMutable();
+		C old = m_list.set(index, element);
+		addUndo(new SetUndo<C>(this, index, old, element));
+		adopt(element, index);
+		indexRemove(old);
+		indexAdd(element);
 		return old;
 	}
 
 	/**
 	 * Returns a view of the portion of this list between the specified
      * <tt>fromIndex</tt>, inclusive, and <tt>toIndex</tt>, exclusive.
+     * <p>
+     * The view is read-only and reads through to this array, so it
+     * reflects later changes to the elements in the range.
      *
 	 * @param fromIndex the starting index.
 	 * @param toIndex the end index.
 	 * @return the sub list.
+	 * @throws IndexOutOfBoundsException if the range is outside the list.
+	 * @throws IllegalArgumentException if fromIndex is greater than toIndex.
 	 */
 	public List<C> subList(int fromIndex, int toIndex)
 	{
-		return Collections.unmodifiableList(m_list.subList(fromIndex, toIndex));
+		if (fromIndex < 0) throw new IndexOutOfBoundsException("fromIndex = " + fromIndex);
+		if (toIndex > m_list.size()) throw new IndexOutOfBoundsException("toIndex = " + toIndex);
+		if (fromIndex > toIndex) throw new IllegalArgumentException("fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+		return new SubList<C>(this, fromIndex, toIndex - fromIndex);
 	}
 
 	/**
@@ -446,9 +690,22 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 		return m_list.hashCode();
 	}
 
-    public List primitive()
+	/**
+	 * Returns the primitive form of this array.
+	 * <p>
+	 * Large arrays are converted in parallel, see {@link PrimitiveTask}.
+	 *
+	 * @return a list of the primitive values.
+	 */
+    public List<Object> primitive()
 	{
-		ArrayList<Object> list = new ArrayList<Object>();
+		if (m_list.size() >= PrimitiveTask.THRESHOLD)
+		{
+			Object[] values = m_list.toArray();
+			PrimitiveTask.convert(values);
+			return new ArrayList<Object>(Arrays.asList(values));
+		}
+		ArrayList<Object> list = new ArrayList<Object>(m_list.size());
 		for (Object entry : m_list)
 		{
 			list.add(Klass.getPrimitive(entry));
@@ -456,16 +713,201 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 		return list;
 	}
 
+	/**
+	 * Trims the list to its size, then compacts all contained values.
+	 */
+	void compact()
+	{
+		if (m_list instanceof ArrayList) ((ArrayList<C>) m_list).trimToSize();
+		if (m_list instanceof RingList) ((RingList<C>) m_list).trimToSize();
+		for (C value : m_list)
+		{
+			compact(value);
+		}
+	}
+
+	/**
+	 * A read-only list iterator reading the backing list directly.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private final static class ArrayIterator<C> implements ListIterator<C>
+	{
+		private final Array<C> m_array;
+		private final int m_expectedModCount;
+		private int m_index;
+
+		private ArrayIterator(Array<C> array, int index)
+		{
+			m_array = array;
+			m_expectedModCount = array.m_modCount;
+			m_index = index;
+		}
+
+		private void checkModCount()
+		{
+			if (m_array.m_modCount != m_expectedModCount) throw new ConcurrentModificationException();
+		}
+
+		public boolean hasNext()
+		{
+			return m_index < m_array.m_list.size();
+		}
+
+		public C next()
+		{
+			checkModCount();
+			if (m_index >= m_array.m_list.size()) throw new NoSuchElementException();
+			return m_array.m_list.get(m_index++);
+		}
+
+		public boolean hasPrevious()
+		{
+			return m_index > 0;
+		}
+
+		public C previous()
+		{
+			checkModCount();
+			if (m_index <= 0) throw new NoSuchElementException();
+			return m_array.m_list.get(--m_index);
+		}
+
+		public int nextIndex()
+		{
+			return m_index;
+		}
+
+		public int previousIndex()
+		{
+			return m_index - 1;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public void set(C c)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public void add(C c)
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A read-only view of a range of an array, reading the backing list directly.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private final static class SubList<C> extends AbstractList<C> implements RandomAccess
+	{
+		private final Array<C> m_array;
+		private final int m_offset;
+		private final int m_size;
+
+		private SubList(Array<C> array, int offset, int size)
+		{
+			m_array = array;
+			m_offset = offset;
+			m_size = size;
+		}
+
+		public C get(int index)
+		{
+			if (index < 0 || index >= m_size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+			return m_array.m_list.get(m_offset + index);
+		}
+
+		public int size()
+		{
+			return m_size;
+		}
+
+		@Override
+		public void forEach(Consumer<? super C> action)
+		{
+			List<C> list = m_array.m_list;
+			for (int i = m_offset; i < m_offset + m_size; i++)
+			{
+				action.accept(list.get(i));
+			}
+		}
+	}
+
+	/**
+	 * A spliterator over an index range of a random access list.
+	 */
+	private final static class ArraySpliterator<C> implements Spliterator<C>
+	{
+		private final List<C> m_list;
+		private int m_index;
+		private int m_fence;
+
+		private ArraySpliterator(List<C> list, int index, int fence)
+		{
+			m_list = list;
+			m_index = index;
+			m_fence = fence;
+		}
+
+		private int fence()
+		{
+			if (m_fence < 0) m_fence = m_list.size();
+			return m_fence;
+		}
+
+		public boolean tryAdvance(Consumer<? super C> action)
+		{
+			if (m_index >= fence()) return false;
+			action.accept(m_list.get(m_index++));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super C> action)
+		{
+			int fence = fence();
+			for (int i = m_index; i < fence; i++)
+			{
+				action.accept(m_list.get(i));
+			}
+			m_index = fence;
+		}
+
+		public Spliterator<C> trySplit()
+		{
+			int fence = fence();
+			int middle = (m_index + fence) >>> 1;
+			if (middle <= m_index) return null;
+			Spliterator<C> prefix = new ArraySpliterator<C>(m_list, m_index, middle);
+			m_index = middle;
+			return prefix;
+		}
+
+		public long estimateSize()
+		{
+			return fence() - m_index;
+		}
+
+		public int characteristics()
+		{
+			return ORDERED | SIZED | SUBSIZED;
+		}
+	}
+
 	/**
 	 * Implements undo for a clear.
 	 */
 	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
-	private static class ClearUndo implements Undo
+	private static class ClearUndo<C> implements Undo
 	{
-		private final Array m_array;
-		private final ArrayList m_old;
+		private final Array<C> m_array;
+		private final List<C> m_old;
 
-		private ClearUndo(Array array)
+		private ClearUndo(Array<C> array)
 		{
 			m_array = array;
 			m_old = m_array.m_list;
@@ -474,6 +916,12 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 		public void undo()
 		{
 			m_array.m_list = m_old;
+			m_array.m_modCount++;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_array);
 		}
 	}
 
@@ -497,28 +945,72 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
         public void undo()
 		{
 			m_array.m_list.add(m_index, m_oldValue);
+			m_array.m_modCount++;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.delete(m_array, m_index);
+		}
+
+	}
+
+	/**
+	 * Implements undo for a set.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class SetUndo<C> implements Undo
+	{
+		private final Array<C> m_array;
+		private final int m_index;
+		private final C m_oldValue;
+		private final C m_element;
+
+		private SetUndo(Array<C> array, int index, C oldValue, C element)
+		{
+			m_array = array;
+			m_index = index;
+			m_oldValue = oldValue;
+			m_element = element;
 		}
 
+		public void undo()
+		{
+			m_array.m_list.set(m_index, m_oldValue);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.replace(m_array, m_index, m_element);
+		}
 	}
 
 	/**
 	 * Implements undo for an add.
 	 */
 	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
-	private static class AddUndo implements Undo
+	private static class AddUndo<C> implements Undo
 	{
-		private final Array m_array;
+		private final Array<C> m_array;
 		private final int m_index;
+		private final C m_element;
 
-		private AddUndo(Array array, int index)
+		private AddUndo(Array<C> array, int index, C element)
 		{
 			m_array = array;
 			m_index = index;
+			m_element = element;
 		}
 
 		public void undo()
 		{
 			m_array.m_list.remove(m_index);
+			m_array.m_modCount++;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.insert(m_array, m_index, m_element);
 		}
 	}
 
@@ -572,6 +1064,8 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 		return false;
 	}
 
+	@SafeVarargs
+	@SuppressWarnings({"varargs"})
 	public static <C> Array<C> newArray(C... objects)
 	{
 		return newArray(Arrays.asList(objects));
@@ -579,7 +1073,7 @@ public class Array<C> extends TransactionalContainer<C> implements List<C>, NonP
 	
 	public static <C> Array<C> newArray(List<C> list)
 	{
-        ElementType element = list == null || list.isEmpty() ? null :  ElementType.getReturnType(list.get(0).getClass());
+        ElementType<C> element = list == null || list.isEmpty() ? null :  ElementType.<C>getReturnType(list.get(0).getClass());
 		Array<C> a = new Array<C>(null, element);
 		a.addAll(list);
 		return a;
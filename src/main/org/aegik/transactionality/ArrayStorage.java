@@ -0,0 +1,51 @@
+package org.aegik.transactionality;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The kinds of storage available for an {@link Array}.
+ *
+ * @see Storage
+ * @author Christoffer Lerno
+ */
+public enum ArrayStorage
+{
+	/**
+	 * An ArrayList, the default. Replacing an element, and adding and
+	 * removing at the end, is O(1), anywhere else O(n).
+	 */
+	LIST,
+
+	/**
+	 * A ring buffer. Replacing an element, and adding and removing at
+	 * either end, is O(1), which suits arrays used as queues or deques.
+	 */
+	RING,
+
+	/**
+	 * A persistent vector. Copies and snapshots of the array are O(1),
+	 * and replacing an element with {@link Array#set(int, Object)},
+	 * appending or removing the last element only copies O(log n) nodes.
+	 * Inserting or removing elsewhere rebuilds the vector from that index.
+	 */
+	VECTOR;
+
+	/**
+	 * Creates an empty list of this kind.
+	 *
+	 * @return a new list.
+	 */
+	<C> List<C> newList()
+	{
+		switch (this)
+		{
+			case RING:
+				return new RingList<C>();
+			case VECTOR:
+				return new VectorList<C>();
+			default:
+				return new ArrayList<C>();
+		}
+	}
+}
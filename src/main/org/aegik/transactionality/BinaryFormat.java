@@ -0,0 +1,224 @@
+package org.aegik.transactionality;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compact binary encoding of primitive values.
+ * <p>
+ * Every value is written as a one byte tag followed by its data. Lengths
+ * and integers use a variable length encoding, and strings are
+ * written as UTF-8.
+ *
+ * @author Christoffer Lerno
+ */
+final class BinaryFormat
+{
+	private final static int NULL = 0;
+	private final static int STRING = 1;
+	private final static int INTEGER = 2;
+	private final static int LONG = 3;
+	private final static int DOUBLE = 4;
+	private final static int TRUE = 5;
+	private final static int FALSE = 6;
+	private final static int DATE = 7;
+	private final static int DATA = 8;
+	private final static int LIST = 9;
+	private final static int MAP = 10;
+
+	private BinaryFormat()
+	{
+	}
+
+	/**
+	 * Writes a primitive value.
+	 *
+	 * @param out the output to write to.
+	 * @param value the value, which must be null or of a type supported in plists.
+	 * @throws IOException if writing fails.
+	 * @throws IllegalArgumentException if the value has an unsupported type.
+	 */
+	@SuppressWarnings({"unchecked"})
+	static void writeValue(DataOutput out, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(NULL);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(INTEGER);
+			writeVarLong(out, zigZag((Integer) value));
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(LONG);
+			writeVarLong(out, zigZag((Long) value));
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		}
+		else if (value instanceof Date)
+		{
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof byte[])
+		{
+			byte[] bytes = (byte[]) value;
+			out.writeByte(DATA);
+			writeVarInt(out, bytes.length);
+			out.write(bytes);
+		}
+		else if (value instanceof List)
+		{
+			List<Object> list = (List<Object>) value;
+			out.writeByte(LIST);
+			writeVarInt(out, list.size());
+			for (Object o : list)
+			{
+				writeValue(out, o);
+			}
+		}
+		else if (value instanceof Map)
+		{
+			Map<String, Object> map = (Map<String, Object>) value;
+			out.writeByte(MAP);
+			writeVarInt(out, map.size());
+			for (Map.Entry<String, Object> entry : map.entrySet())
+			{
+				writeString(out, entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unsupported value " + value.getClass());
+		}
+	}
+
+	/**
+	 * Reads a primitive value.
+	 *
+	 * @param in the input to read from.
+	 * @return the value read.
+	 * @throws IOException if reading fails or the data is corrupt.
+	 */
+	static Object readValue(DataInput in) throws IOException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case INTEGER:
+				return (int) unZigZag(readVarLong(in));
+			case LONG:
+				return unZigZag(readVarLong(in));
+			case DOUBLE:
+				return in.readDouble();
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case DATE:
+				return new Date(in.readLong());
+			case DATA:
+				byte[] bytes = new byte[readVarInt(in)];
+				in.readFully(bytes);
+				return bytes;
+			case LIST:
+				int size = readVarInt(in);
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++)
+				{
+					list.add(readValue(in));
+				}
+				return list;
+			case MAP:
+				int entries = readVarInt(in);
+				Map<String, Object> map = new HashMap<String, Object>();
+				for (int i = 0; i < entries; i++)
+				{
+					String key = readString(in);
+					map.put(key, readValue(in));
+				}
+				return map;
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	static void writeString(DataOutput out, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes("UTF-8");
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException
+	{
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException
+	{
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+
+	static int readVarInt(DataInput in) throws IOException
+	{
+		long value = readVarLong(in);
+		if (value < 0 || value > Integer.MAX_VALUE) throw new IOException("Illegal length " + value);
+		return (int) value;
+	}
+
+	static void writeVarLong(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	private static long zigZag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,125 @@
+package org.aegik.transactionality;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of shared byte array contents.
+ * <p>
+ * When a {@link ByteArray} is loaded into a root with a blob table, its
+ * bytes are looked up in this table by content hash, so that equal
+ * arrays share a single byte[]. A shared array is copied the first time
+ * it is modified, so the sharing is invisible to users of ByteArray.
+ * <p>
+ * Like {@link KeyTable}, the table is direct-mapped: each content has
+ * exactly one slot, and new content simply replaces whatever occupied the
+ * slot before. Arrays shorter than the minimum length are not worth
+ * hashing and are never shared.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @see Root#setBlobTable(BlobTable)
+ * @author Christoffer Lerno
+ */
+public final class BlobTable
+{
+	private final AtomicReferenceArray<byte[]> m_blobs;
+	private final int m_minimumLength;
+	private final AtomicLong m_sharedCount;
+	private final AtomicLong m_savedBytes;
+
+	/**
+	 * Creates a blob table.
+	 *
+	 * @param capacity the maximum number of contents held, rounded up to
+	 * a power of two.
+	 * @param minimumLength the minimum length of arrays to share.
+	 * @throws IllegalArgumentException if the capacity is not positive.
+	 */
+	public BlobTable(int capacity, int minimumLength)
+	{
+		if (capacity <= 0) throw new IllegalArgumentException("Illegal capacity " + capacity);
+		int size = 1;
+		while (size < capacity)
+		{
+			size <<= 1;
+		}
+		m_blobs = new AtomicReferenceArray<byte[]>(size);
+		m_minimumLength = minimumLength;
+		m_sharedCount = new AtomicLong();
+		m_savedBytes = new AtomicLong();
+	}
+
+	/**
+	 * Returns the shared instance of some content.
+	 * <p>
+	 * Neither the argument nor the returned array may be modified
+	 * afterwards, as either may be shared.
+	 *
+	 * @param bytes the content to share.
+	 * @return an array equal to the argument, shared with previous arrays if possible.
+	 */
+	byte[] share(byte[] bytes)
+	{
+		if (bytes.length < m_minimumLength) return bytes;
+		int hash = Arrays.hashCode(bytes) * 0x9E3779B9;
+		int index = (hash ^ (hash >>> 16)) & (m_blobs.length() - 1);
+		byte[] current = m_blobs.get(index);
+		if (current != null && (current == bytes || Arrays.equals(current, bytes)))
+		{
+			if (current != bytes)
+			{
+				m_sharedCount.incrementAndGet();
+				m_savedBytes.addAndGet(bytes.length);
+			}
+			return current;
+		}
+		m_blobs.set(index, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns the minimum length of arrays shared by this table.
+	 *
+	 * @return the length below which arrays are never shared.
+	 */
+	public int getMinimumLength()
+	{
+		return m_minimumLength;
+	}
+
+	/**
+	 * Returns the capacity of this table.
+	 *
+	 * @return the maximum number of contents held.
+	 */
+	public int capacity()
+	{
+		return m_blobs.length();
+	}
+
+	/**
+	 * Returns the number of arrays that were given shared storage.
+	 * <p>
+	 * Shared arrays that were later modified have been copied, so the
+	 * number still sharing storage may be lower.
+	 *
+	 * @return the number of arrays that got shared storage.
+	 */
+	public long getSharedCount()
+	{
+		return m_sharedCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes not allocated thanks to sharing.
+	 *
+	 * @return the total length of the arrays that got shared storage.
+	 * @see #getSharedCount()
+	 */
+	public long getSavedBytes()
+	{
+		return m_savedBytes.get();
+	}
+}
@@ -1,16 +1,70 @@
 package org.aegik.transactionality;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 
-/** @author Christoffer Lerno */
-public class ByteArray implements Iterable<Byte>, NonPrimitive
+/**
+ * An array of bytes with transactional support.
+ * <p>
+ * The array has a length separate from the capacity of its storage, so
+ * it can grow with {@link #append(byte[])} and {@link #insert(int, byte[])}
+ * in amortized constant time per byte, and shrink with {@link #truncate(int)}.
+ * Undoing a change restores the length and only the bytes overwritten
+ * by the change.
+ * <p>
+ * The bytes are normally kept in a byte[] on the heap, but may also be
+ * kept in a direct buffer, see {@link #allocateDirect(Root, int)}, or in
+ * a memory mapped region of a file, see {@link #map(Root, FileChannel, long, int)},
+ * to keep large payloads out of the garbage collected heap. The API and
+ * the undo semantics are the same for all kinds of storage.
+ * <p>
+ * Byte arrays loaded into a root with a {@link BlobTable} may share
+ * their storage with equal arrays, and copy it when first modified.
+ *
+ * @author Christoffer Lerno
+ */
+public class ByteArray extends TransactionalContainer<Byte> implements Iterable<Byte>
 {
 	private final static byte[] EMPTY_ARRAY = new byte[0];
+	private final static int AND = 0;
+	private final static int OR = 1;
+	private final static int XOR = 2;
+	private final static int AND_NOT = 3;
+	private final static int CHUNK = 512;
+	private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private final static byte[] HEX_VALUES = new byte[128];
+	private final static char[] BINARY_DIGITS = new char[256 * 8];
+
+	static
+	{
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 16; i++)
+		{
+			HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+			HEX_VALUES[Character.toLowerCase(HEX_DIGITS[i])] = (byte) i;
+		}
+		for (int b = 0; b < 256; b++)
+		{
+			for (int i = 0; i < 8; i++)
+			{
+				BINARY_DIGITS[b * 8 + i] = (b & (1 << i)) == 0 ? '0' : '1';
+			}
+		}
+	}
 
 	private byte[] m_bytes;
-	private final Root m_root;
+	private ByteBuffer m_buffer;
+	private boolean m_mapped;
+	private boolean m_shared;
+	private int m_length;
 
 	/**
 	 * Create a new byte array with transactional support.
@@ -38,8 +92,7 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public ByteArray(byte[] bytes)
 	{
-		m_bytes = bytes;
-		m_root = null;
+		this(null, bytes);
 	}
 
 	/**
@@ -51,8 +104,241 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public ByteArray(Root root, byte[] bytes)
 	{
+		super(root, null);
 		m_bytes = bytes;
-		m_root = root;
+		m_length = bytes.length;
+	}
+
+	/**
+	 * Creates a byte array for loaded data, sharing its storage through
+	 * the blob table of the root if there is one and the data is at least
+	 * as long as its minimum length.
+	 *
+	 * @param root the root owning the array, may be null.
+	 * @param bytes the loaded bytes, which must not be modified afterwards.
+	 * @return the new byte array.
+	 */
+	static ByteArray load(Root root, byte[] bytes)
+	{
+		BlobTable table = root == null ? null : root.getBlobTable();
+		if (table == null || bytes.length < table.getMinimumLength()) return new ByteArray(root, bytes);
+		ByteArray array = new ByteArray(root, table.share(bytes));
+		array.m_shared = true;
+		return array;
+	}
+
+	/**
+	 * Tests if this array may share its storage with other arrays.
+	 *
+	 * @return true if the storage is copied before the next modification.
+	 */
+	boolean isShared()
+	{
+		return m_shared;
+	}
+
+	/**
+	 * Copies shared storage, so that it may be modified.
+	 */
+	private void unshare()
+	{
+		if (!m_shared) return;
+		m_bytes = m_bytes.clone();
+		m_shared = false;
+	}
+
+	/**
+	 * Create a new byte array with transactional support from its
+	 * hexadecimal representation, as returned by {@link #toString()}.
+	 * <p>
+	 * Both upper and lower case digits are accepted.
+	 *
+	 * @param root the root owning this array. I.e. that handles
+	 * transactions for the array.
+	 * @param hex the hexadecimal representation of the bytes.
+	 * @throws IllegalArgumentException if the length is odd or a character
+	 * is not a hexadecimal digit.
+	 */
+	public ByteArray(Root root, CharSequence hex)
+	{
+		this(root, decodeHex(hex));
+	}
+
+	private static byte[] decodeHex(CharSequence hex)
+	{
+		if ((hex.length() & 1) != 0) throw new IllegalArgumentException("Odd length of hex string: " + hex.length());
+		byte[] bytes = new byte[hex.length() >> 1];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) ((hexValue(hex, i * 2) << 4) | hexValue(hex, i * 2 + 1));
+		}
+		return bytes;
+	}
+
+	private static int hexValue(CharSequence hex, int index)
+	{
+		char c = hex.charAt(index);
+		int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+		if (value < 0) throw new IllegalArgumentException("Illegal hex digit '" + c + "' at " + index);
+		return value;
+	}
+
+	/**
+	 * Create a new byte array with transactional support, backed by a buffer.
+	 * <p>
+	 * The bytes between the position and the limit of the buffer make up
+	 * the array. They are used directly, not copied. If the array grows
+	 * beyond them, it moves to a new direct buffer.
+	 *
+	 * @param root the root owning this array. I.e. that handles
+	 * transactions for the array.
+	 * @param buffer the buffer holding the initial bytes of the array.
+	 */
+	public ByteArray(Root root, ByteBuffer buffer)
+	{
+		super(root, null);
+		m_buffer = buffer.slice();
+		m_mapped = false;
+		m_length = m_buffer.capacity();
+	}
+
+	/**
+	 * Creates an empty byte array kept in a direct buffer, outside the heap.
+	 *
+	 * @param root the root owning this array, may be null.
+	 * @param capacity the initial capacity of the array.
+	 * @return the new byte array.
+	 */
+	public static ByteArray allocateDirect(Root root, int capacity)
+	{
+		ByteArray array = new ByteArray(root, ByteBuffer.allocateDirect(capacity));
+		array.m_length = 0;
+		return array;
+	}
+
+	/**
+	 * Creates a byte array kept in a memory mapped region of a file.
+	 * <p>
+	 * Changes to the array are written to the region, so the file
+	 * always reflects the current state of the array, including changes
+	 * later rolled back. The array can't grow beyond the region.
+	 *
+	 * @param root the root owning this array, may be null.
+	 * @param channel a channel of the file, open for reading and writing.
+	 * @param position the position of the region in the file.
+	 * @param size the size of the region, which is also the length of the array.
+	 * @return the new byte array.
+	 * @throws IOException if mapping the region fails.
+	 */
+	public static ByteArray map(Root root, FileChannel channel, long position, int size) throws IOException
+	{
+		ByteArray array = new ByteArray(root, channel.map(FileChannel.MapMode.READ_WRITE, position, size));
+		array.m_mapped = true;
+		return array;
+	}
+
+	/**
+	 * Tests if this array is kept outside the heap.
+	 *
+	 * @return true if this array is backed by a direct or mapped buffer.
+	 */
+	public boolean isDirect()
+	{
+		return m_buffer != null;
+	}
+
+	/**
+	 * Returns a read-only view of the bytes of this array, without copying.
+	 * <p>
+	 * The view reflects later changes to the bytes, but not to the length.
+	 *
+	 * @return a read-only buffer from the first to the last byte of this array.
+	 */
+	public ByteBuffer asReadOnlyBuffer()
+	{
+		return view().asReadOnlyBuffer();
+	}
+
+	private ByteBuffer view()
+	{
+		ByteBuffer buffer = m_buffer == null ? ByteBuffer.wrap(m_bytes) : m_buffer.duplicate();
+		buffer.limit(m_length);
+		return buffer;
+	}
+
+	private ByteBuffer words()
+	{
+		return view().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private byte load(int index)
+	{
+		return m_buffer == null ? m_bytes[index] : m_buffer.get(index);
+	}
+
+	private void store(int index, byte value)
+	{
+		if (m_buffer == null)
+		{
+			unshare();
+			m_bytes[index] = value;
+		}
+		else
+		{
+			m_buffer.put(index, value);
+		}
+	}
+
+	private void copyIn(int index, byte[] bytes, int offset, int length)
+	{
+		if (m_buffer == null)
+		{
+			unshare();
+			System.arraycopy(bytes, offset, m_bytes, index, length);
+			return;
+		}
+		ByteBuffer buffer = m_buffer.duplicate();
+		buffer.position(index);
+		buffer.put(bytes, offset, length);
+	}
+
+	private void copyOut(int index, byte[] bytes, int offset, int length)
+	{
+		if (m_buffer == null)
+		{
+			System.arraycopy(m_bytes, index, bytes, offset, length);
+			return;
+		}
+		ByteBuffer buffer = m_buffer.duplicate();
+		buffer.position(index);
+		buffer.get(bytes, offset, length);
+	}
+
+	private void move(int from, int to, int length)
+	{
+		if (m_buffer == null)
+		{
+			unshare();
+			System.arraycopy(m_bytes, from, m_bytes, to, length);
+			return;
+		}
+		byte[] moved = new byte[length];
+		copyOut(from, moved, 0, length);
+		copyIn(to, moved, 0, length);
+	}
+
+	private void fillRange(int from, int to, byte value)
+	{
+		if (m_buffer == null)
+		{
+			unshare();
+			Arrays.fill(m_bytes, from, to, value);
+			return;
+		}
+		for (int i = from; i < to; i++)
+		{
+			m_buffer.put(i, value);
+		}
 	}
 
 	/**
@@ -64,24 +350,527 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public void set(int index, byte value)
 	{
-		addUndo(new SetUndo(m_bytes, index));
-		m_bytes[index] = value;
-	}
-
-	private void addUndo(Undo undo)
-	{
-		if (m_root != null) m_root.addAction(undo);
+		checkIndex(index);
+		checkMutable();
+		addUndo(new SetUndo(this, index));
+		store(index, value);
 	}
 
 	/**
 	 * Replaces the current array of bytes with a new array.
+	 * <p>
+	 * The array is kept on the heap afterwards.
 	 *
 	 * @param bytes the bytes to replace the current array with.
 	 */
 	public void replace(byte[] bytes)
 	{
+		checkMutable();
 		addUndo(new ReplaceUndo(this));
 		m_bytes = bytes;
+		m_buffer = null;
+		m_mapped = false;
+		m_shared = false;
+		m_length = bytes.length;
+	}
+
+	/**
+	 * Returns the capacity of this array, i.e. the length it can grow to
+	 * without reallocating its storage.
+	 *
+	 * @return the capacity of this array.
+	 */
+	public int capacity()
+	{
+		return m_buffer == null ? m_bytes.length : m_buffer.capacity();
+	}
+
+	/**
+	 * Ensures that this array can grow to a length without reallocating.
+	 * <p>
+	 * An array kept in a direct buffer moves to a new, larger direct buffer.
+	 *
+	 * @param capacity the minimum capacity.
+	 * @throws UnsupportedOperationException if the array is memory mapped
+	 * and the capacity exceeds the mapped region.
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		int current = capacity();
+		if (capacity <= current) return;
+		checkMutable();
+		if (m_mapped) throw new UnsupportedOperationException("Mapped byte array cannot grow beyond " + current + " bytes");
+		int newCapacity = current + (current >> 1) + 16;
+		if (newCapacity < capacity || newCapacity < 0) newCapacity = capacity;
+		if (m_buffer == null)
+		{
+			m_bytes = Arrays.copyOf(m_bytes, newCapacity);
+			m_shared = false;
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(newCapacity);
+		buffer.put(view());
+		buffer.clear();
+		m_buffer = buffer;
+	}
+
+	/**
+	 * Appends a byte to this array.
+	 *
+	 * @param value the byte to append.
+	 */
+	public void append(byte value)
+	{
+		checkMutable();
+		ensureCapacity(m_length + 1);
+		if (isJournaling()) addUndo(new LengthUndo(this, null));
+		store(m_length++, value);
+	}
+
+	/**
+	 * Appends bytes to this array.
+	 *
+	 * @param bytes the bytes to append.
+	 * @param offset the index of the first byte to append.
+	 * @param length the number of bytes to append.
+	 * @throws IndexOutOfBoundsException if the range is out of bounds.
+	 */
+	public void append(byte[] bytes, int offset, int length)
+	{
+		checkRange(bytes.length, offset, length);
+		checkMutable();
+		ensureCapacity(newLength(length));
+		if (isJournaling()) addUndo(new LengthUndo(this, null));
+		copyIn(m_length, bytes, offset, length);
+		m_length += length;
+	}
+
+	/**
+	 * Appends all bytes of an array to this array.
+	 *
+	 * @param bytes the bytes to append.
+	 */
+	public void append(byte[] bytes)
+	{
+		append(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Inserts bytes into this array, moving the bytes after the index.
+	 *
+	 * @param index the index to insert at.
+	 * @param bytes the bytes to insert.
+	 * @param offset the index of the first byte to insert.
+	 * @param length the number of bytes to insert.
+	 * @throws IndexOutOfBoundsException if the index or the range is out of bounds.
+	 */
+	public void insert(int index, byte[] bytes, int offset, int length)
+	{
+		checkRange(bytes.length, offset, length);
+		checkRange(m_length, index, 0);
+		checkMutable();
+		ensureCapacity(newLength(length));
+		if (isJournaling()) addUndo(new InsertUndo(this, index, length));
+		move(index, index + length, m_length - index);
+		copyIn(index, bytes, offset, length);
+		m_length += length;
+	}
+
+	/**
+	 * Inserts all bytes of an array into this array.
+	 *
+	 * @param index the index to insert at.
+	 * @param bytes the bytes to insert.
+	 * @throws IndexOutOfBoundsException if the index is out of bounds.
+	 */
+	public void insert(int index, byte[] bytes)
+	{
+		insert(index, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Shortens this array.
+	 * <p>
+	 * The capacity is kept, so that the array may grow again without
+	 * reallocating.
+	 *
+	 * @param length the new length.
+	 * @throws IndexOutOfBoundsException if the length is negative or
+	 * greater than the current length.
+	 */
+	public void truncate(int length)
+	{
+		checkRange(m_length, length, 0);
+		checkMutable();
+		if (length == m_length) return;
+		if (isJournaling())
+		{
+			byte[] truncated = new byte[m_length - length];
+			copyOut(length, truncated, 0, truncated.length);
+			addUndo(new LengthUndo(this, truncated));
+		}
+		m_length = length;
+	}
+
+	private int newLength(int added)
+	{
+		int length = m_length + added;
+		if (length < 0) throw new OutOfMemoryError("Byte array too large");
+		return length;
+	}
+
+	/**
+	 * Copies bytes into this array.
+	 * <p>
+	 * Like all bulk operations, this records a single undo holding the
+	 * overwritten range, rather than one undo per byte.
+	 *
+	 * @param index the index in this array to copy to.
+	 * @param bytes the bytes to copy.
+	 * @param offset the index of the first byte to copy.
+	 * @param length the number of bytes to copy.
+	 * @throws IndexOutOfBoundsException if either range is out of bounds.
+	 */
+	public void setRange(int index, byte[] bytes, int offset, int length)
+	{
+		checkRange(bytes.length, offset, length);
+		modifyRange(index, length);
+		copyIn(index, bytes, offset, length);
+	}
+
+	/**
+	 * Copies all bytes of an array into this array.
+	 *
+	 * @param index the index in this array to copy to.
+	 * @param bytes the bytes to copy.
+	 * @throws IndexOutOfBoundsException if the range is out of bounds.
+	 */
+	public void setRange(int index, byte[] bytes)
+	{
+		setRange(index, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Copies bytes to the start of this array.
+	 *
+	 * @param bytes the bytes to copy.
+	 * @param offset the index of the first byte to copy.
+	 * @param length the number of bytes to copy.
+	 * @throws IndexOutOfBoundsException if either range is out of bounds.
+	 */
+	public void copyFrom(byte[] bytes, int offset, int length)
+	{
+		setRange(0, bytes, offset, length);
+	}
+
+	/**
+	 * Sets a range of bytes to a value.
+	 *
+	 * @param from the index of the first byte, inclusive.
+	 * @param to the index of the last byte, exclusive.
+	 * @param value the value to set.
+	 * @throws IndexOutOfBoundsException if the range is out of bounds.
+	 */
+	public void fill(int from, int to, byte value)
+	{
+		if (from > to) throw new IndexOutOfBoundsException("From " + from + " > to " + to);
+		modifyRange(from, to - from);
+		fillRange(from, to, value);
+	}
+
+	/**
+	 * Sets all bytes to a value.
+	 *
+	 * @param value the value to set.
+	 */
+	public void fill(byte value)
+	{
+		fill(0, m_length, value);
+	}
+
+	/**
+	 * Performs a bitwise and with another array.
+	 * <p>
+	 * Bytes beyond the end of the other array are cleared.
+	 *
+	 * @param other the other array.
+	 */
+	public void and(ByteArray other)
+	{
+		int length = Math.min(m_length, other.m_length);
+		modifyRange(0, m_length);
+		combine(other, length, AND);
+		fillRange(length, m_length, (byte) 0);
+	}
+
+	/**
+	 * Performs a bitwise or with another array.
+	 * <p>
+	 * Bytes beyond the end of the other array are left unchanged.
+	 *
+	 * @param other the other array.
+	 */
+	public void or(ByteArray other)
+	{
+		int length = Math.min(m_length, other.m_length);
+		modifyRange(0, length);
+		combine(other, length, OR);
+	}
+
+	/**
+	 * Performs a bitwise exclusive or with another array.
+	 * <p>
+	 * Bytes beyond the end of the other array are left unchanged.
+	 *
+	 * @param other the other array.
+	 */
+	public void xor(ByteArray other)
+	{
+		int length = Math.min(m_length, other.m_length);
+		modifyRange(0, length);
+		combine(other, length, XOR);
+	}
+
+	/**
+	 * Clears all bits that are set in another array.
+	 * <p>
+	 * Bytes beyond the end of the other array are left unchanged.
+	 *
+	 * @param other the other array.
+	 */
+	public void andNot(ByteArray other)
+	{
+		int length = Math.min(m_length, other.m_length);
+		modifyRange(0, length);
+		combine(other, length, AND_NOT);
+	}
+
+	/**
+	 * Combines the first bytes of this array with another array, eight
+	 * bytes at a time.
+	 *
+	 * @param other the other array.
+	 * @param length the number of bytes to combine.
+	 * @param operation the operation, one of AND, OR, XOR and AND_NOT.
+	 */
+	private void combine(ByteArray other, int length, int operation)
+	{
+		if (m_buffer == null) unshare();
+		ByteBuffer target = words();
+		ByteBuffer source = other.words();
+		int words = length & ~7;
+		for (int i = 0; i < words; i += 8)
+		{
+			target.putLong(i, combine(target.getLong(i), source.getLong(i), operation));
+		}
+		for (int i = words; i < length; i++)
+		{
+			store(i, (byte) combine(load(i), other.load(i), operation));
+		}
+	}
+
+	private static long combine(long a, long b, int operation)
+	{
+		switch (operation)
+		{
+			case AND:
+				return a & b;
+			case OR:
+				return a | b;
+			case XOR:
+				return a ^ b;
+			default:
+				return a & ~b;
+		}
+	}
+
+	/**
+	 * Returns the number of set bits.
+	 *
+	 * @return the number of bits set to true in this array.
+	 */
+	public int cardinality()
+	{
+		ByteBuffer buffer = words();
+		int words = m_length & ~7;
+		int count = 0;
+		for (int i = 0; i < words; i += 8)
+		{
+			count += Long.bitCount(buffer.getLong(i));
+		}
+		for (int i = words; i < m_length; i++)
+		{
+			count += Integer.bitCount(load(i) & 0xFF);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the index of the first set bit at or after an index.
+	 *
+	 * @param fromIndex the bit index to start from.
+	 * @return the index of the next set bit, or -1 if there is none.
+	 */
+	public int nextSetBit(int fromIndex)
+	{
+		return nextBit(fromIndex, 0);
+	}
+
+	/**
+	 * Returns the index of the first clear bit at or after an index.
+	 *
+	 * @param fromIndex the bit index to start from.
+	 * @return the index of the next clear bit, or -1 if there is none.
+	 */
+	public int nextClearBit(int fromIndex)
+	{
+		return nextBit(fromIndex, -1L);
+	}
+
+	/**
+	 * Scans for the next bit differing from a pattern, a word at a time.
+	 *
+	 * @param fromIndex the bit index to start from.
+	 * @param pattern 0 to look for a set bit, -1 to look for a clear bit.
+	 * @return the index of the bit, or -1 if there is none.
+	 */
+	private int nextBit(int fromIndex, long pattern)
+	{
+		if (fromIndex < 0) throw new IndexOutOfBoundsException("Bit index " + fromIndex);
+		int bits = m_length * 8;
+		if (fromIndex >= bits) return -1;
+		ByteBuffer buffer = words();
+		int index = (fromIndex >>> 6) << 3;
+		long word = (word(buffer, index) ^ pattern) & (-1L << fromIndex);
+		while (word == 0)
+		{
+			index += 8;
+			if (index >= m_length) return -1;
+			word = word(buffer, index) ^ pattern;
+		}
+		int bit = index * 8 + Long.numberOfTrailingZeros(word);
+		return bit < bits ? bit : -1;
+	}
+
+	/**
+	 * Reads the little-endian word starting at a byte index, padding
+	 * with zeroes past the end of the array.
+	 */
+	private static long word(ByteBuffer buffer, int index)
+	{
+		if (index + 8 <= buffer.limit()) return buffer.getLong(index);
+		long word = 0;
+		for (int i = buffer.limit() - 1; i >= index; i--)
+		{
+			word = (word << 8) | (buffer.get(i) & 0xFF);
+		}
+		return word;
+	}
+
+	/**
+	 * Sets a range of bits to a value.
+	 * <p>
+	 * Whole bytes in the range are filled in bulk, and a single undo
+	 * is recorded for the range.
+	 *
+	 * @param fromIndex the index of the first bit, inclusive.
+	 * @param toIndex the index of the last bit, exclusive.
+	 * @param value the new state of the bits, true if set, false if clear.
+	 * @throws IndexOutOfBoundsException if the range is outside the byte array.
+	 */
+	public void setBits(int fromIndex, int toIndex, boolean value)
+	{
+		if (fromIndex < 0 || fromIndex > toIndex) throw new IndexOutOfBoundsException("Bits " + fromIndex + " to " + toIndex);
+		if (fromIndex == toIndex) return;
+		int first = fromIndex >>> 3;
+		int last = (toIndex - 1) >>> 3;
+		modifyRange(first, last - first + 1);
+		int firstMask = 0xFF << (fromIndex & 7);
+		int lastMask = 0xFF >>> (7 - ((toIndex - 1) & 7));
+		if (first == last)
+		{
+			setMasked(first, firstMask & lastMask, value);
+			return;
+		}
+		setMasked(first, firstMask, value);
+		fillRange(first + 1, last, value ? (byte) -1 : 0);
+		setMasked(last, lastMask, value);
+	}
+
+	private void setMasked(int index, int mask, boolean value)
+	{
+		byte current = load(index);
+		store(index, (byte) (value ? current | mask : current & ~mask));
+	}
+
+	/**
+	 * Copies bytes from this array into a buffer, filling the remaining
+	 * space of the buffer.
+	 *
+	 * @param index the index of the first byte to copy.
+	 * @param buffer the buffer to copy into.
+	 * @throws IndexOutOfBoundsException if there are fewer bytes left in
+	 * this array than remaining in the buffer.
+	 */
+	public void read(int index, ByteBuffer buffer)
+	{
+		int length = buffer.remaining();
+		checkRange(m_length, index, length);
+		ByteBuffer source = view();
+		source.position(index);
+		source.limit(index + length);
+		buffer.put(source);
+	}
+
+	/**
+	 * Copies the remaining bytes of a buffer into this array.
+	 *
+	 * @param index the index in this array to copy to.
+	 * @param buffer the buffer to copy from.
+	 * @throws IndexOutOfBoundsException if the bytes don't fit in this array.
+	 */
+	public void write(int index, ByteBuffer buffer)
+	{
+		int length = buffer.remaining();
+		modifyRange(index, length);
+		if (m_buffer == null)
+		{
+			unshare();
+			buffer.get(m_bytes, index, length);
+		}
+		else
+		{
+			ByteBuffer target = m_buffer.duplicate();
+			target.position(index);
+			target.put(buffer);
+		}
+	}
+
+	private void checkIndex(int index)
+	{
+		if (index >= m_length) throw new ArrayIndexOutOfBoundsException(index);
+	}
+
+	private static void checkRange(int size, int index, int length)
+	{
+		if (index < 0 || length < 0 || index > size - length)
+		{
+			throw new IndexOutOfBoundsException("Range " + index + "+" + length + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * Prepares a range of this array for modification, recording a single
+	 * undo for the whole range.
+	 *
+	 * @param index the index of the first byte to modify.
+	 * @param length the number of bytes to modify.
+	 */
+	private void modifyRange(int index, int length)
+	{
+		checkRange(m_length, index, length);
+		checkMutable();
+		if (length > 0 && isJournaling()) addUndo(new RangeUndo(this, index, length));
 	}
 
 	/**
@@ -93,7 +882,8 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public byte get(int index)
 	{
-		return m_bytes[index];
+		checkIndex(index);
+		return load(index);
 	}
 
 	/**
@@ -103,8 +893,22 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public byte[] toByteArray()
 	{
-		byte[] bytes = new byte[m_bytes.length];
-		System.arraycopy(m_bytes, 0, bytes, 0, m_bytes.length);
+		byte[] bytes = new byte[m_length];
+		copyOut(0, bytes, 0, m_length);
+		return bytes;
+	}
+
+	/**
+	 * Copies a range of this array.
+	 *
+	 * @param from the index of the first byte to copy.
+	 * @param to the index after the last byte to copy.
+	 * @return a copy of the range.
+	 */
+	byte[] copyOfRange(int from, int to)
+	{
+		byte[] bytes = new byte[to - from];
+		copyOut(from, bytes, 0, bytes.length);
 		return bytes;
 	}
 
@@ -115,14 +919,49 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 */
 	public int size()
 	{
-		return m_bytes.length;
+		return m_length;
+	}
+
+	void assign(Object key, Object value)
+	{
+		int index = index(key);
+		if (!(value instanceof byte[])) throw new ValidationException("Illegal bytes " + value);
+		byte[] bytes = (byte[]) value;
+		int overwritten = Math.min(bytes.length, m_length - index);
+		setRange(index, bytes, 0, overwritten);
+		append(bytes, overwritten, bytes.length - overwritten);
+	}
+
+	void removeEntries(Object key, int count)
+	{
+		int index = index(key);
+		if (count < 0 || count > m_length - index) throw new ValidationException("Illegal count " + count);
+		byte[] tail = copyOfRange(index + count, m_length);
+		truncate(index);
+		append(tail);
+	}
+
+	private int index(Object key)
+	{
+		if (!(key instanceof Integer) || (Integer) key < 0 || (Integer) key > m_length)
+		{
+			throw new ValidationException("Illegal index " + key);
+		}
+		return (Integer) key;
 	}
 
-	public Root root()
+	/**
+	 * Trims the storage to the length of this array.
+	 */
+	void compact()
 	{
-		return m_root;
+		if (m_buffer == null && m_bytes.length > m_length)
+		{
+			m_bytes = Arrays.copyOf(m_bytes, m_length);
+			m_shared = false;
+		}
 	}
-	
+
 	/**
 	 * Implements undo for a replace.
 	 */
@@ -131,16 +970,126 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	{
 		private final ByteArray m_bytes;
 		private final byte[] m_old;
+		private final ByteBuffer m_oldBuffer;
+		private final boolean m_mapped;
+		private final boolean m_shared;
+		private final int m_length;
 
 		private ReplaceUndo(ByteArray bytes)
 		{
 			m_bytes = bytes;
 			m_old = m_bytes.m_bytes;
+			m_oldBuffer = m_bytes.m_buffer;
+			m_mapped = m_bytes.m_mapped;
+			m_shared = m_bytes.m_shared;
+			m_length = m_bytes.m_length;
 		}
 
 		public void undo()
 		{
 			m_bytes.m_bytes = m_old;
+			m_bytes.m_buffer = m_oldBuffer;
+			m_bytes.m_mapped = m_mapped;
+			m_bytes.m_shared = m_shared;
+			m_bytes.m_length = m_length;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_bytes);
+		}
+	}
+
+	/**
+	 * Implements undo for a bulk operation, keeping a copy of the overwritten range.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class RangeUndo implements Undo
+	{
+		private final ByteArray m_array;
+		private final int m_index;
+		private final byte[] m_old;
+
+		private RangeUndo(ByteArray array, int index, int length)
+		{
+			m_array = array;
+			m_index = index;
+			m_old = new byte[length];
+			array.copyOut(index, m_old, 0, length);
+		}
+
+		public void undo()
+		{
+			m_array.copyIn(m_index, m_old, 0, m_old.length);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.write(m_array, m_index, m_old.length);
+		}
+	}
+
+	/**
+	 * Implements undo for a change of length, restoring any truncated bytes.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class LengthUndo implements Undo
+	{
+		private final ByteArray m_array;
+		private final int m_length;
+		private final byte[] m_truncated;
+
+		private LengthUndo(ByteArray array, byte[] truncated)
+		{
+			m_array = array;
+			m_length = array.m_length;
+			m_truncated = truncated;
+		}
+
+		public void undo()
+		{
+			if (m_truncated != null)
+			{
+				m_array.copyIn(m_length - m_truncated.length, m_truncated, 0, m_truncated.length);
+			}
+			m_array.m_length = m_length;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			// Appended bytes start at the old length, truncated ones at the new.
+			changes.resize(m_array, m_length, m_truncated == null ? m_length : m_length - m_truncated.length);
+		}
+	}
+
+	/**
+	 * Implements undo for an insert, moving the following bytes back.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class InsertUndo implements Undo
+	{
+		private final ByteArray m_array;
+		private final int m_index;
+		private final int m_count;
+		private final int m_length;
+
+		private InsertUndo(ByteArray array, int index, int count)
+		{
+			m_array = array;
+			m_index = index;
+			m_count = count;
+			m_length = array.m_length;
+		}
+
+		public void undo()
+		{
+			m_array.move(m_index + m_count, m_index, m_length - m_index);
+			m_array.m_length = m_length;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.resize(m_array, m_length, m_index);
 		}
 	}
 
@@ -150,20 +1099,25 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
 	private static class SetUndo implements Undo
 	{
-		private final byte[] m_array;
+		private final ByteArray m_array;
 		private final int m_index;
 		private final byte m_byte;
 
-		private SetUndo(byte[] array, int index)
+		private SetUndo(ByteArray array, int index)
 		{
 			m_array = array;
 			m_index = index;
-			m_byte = array[index];
+			m_byte = array.load(index);
 		}
 
 		public void undo()
 		{
-			m_array[m_index] = m_byte;
+			m_array.store(m_index, m_byte);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.write(m_array, m_index, 1);
 		}
 	}
 
@@ -178,13 +1132,112 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	@Override
 	public String toString()
 	{
-		StringBuilder builder = new StringBuilder();
-		for (byte b : m_bytes)
+		char[] chars = new char[m_length * 2];
+		encodeHex(0, m_length, chars);
+		return new String(chars);
+	}
+
+	/**
+	 * Appends the hexadecimal representation of this array to a builder.
+	 *
+	 * @param builder the builder to append to.
+	 * @return the builder.
+	 * @see #toString()
+	 */
+	public StringBuilder appendTo(StringBuilder builder)
+	{
+		builder.ensureCapacity(builder.length() + m_length * 2);
+		for (int i = 0; i < m_length; i++)
 		{
-			builder.append(Integer.toHexString((b & 0xF0) >> 4).toUpperCase());
-			builder.append(Integer.toHexString(b & 0x0F).toUpperCase());
+			int b = load(i) & 0xFF;
+			builder.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+		}
+		return builder;
+	}
+
+	/**
+	 * Appends the hexadecimal representation of this array, a chunk
+	 * at a time and without creating intermediate strings.
+	 *
+	 * @param out the appendable to append to.
+	 * @throws IOException if appending fails.
+	 * @see #toString()
+	 */
+	public void appendTo(Appendable out) throws IOException
+	{
+		char[] chars = new char[Math.min(m_length, CHUNK) * 2];
+		for (int i = 0; i < m_length; i += CHUNK)
+		{
+			int count = Math.min(CHUNK, m_length - i);
+			encodeHex(i, count, chars);
+			append(out, chars, count * 2);
+		}
+	}
+
+	/**
+	 * Writes the hexadecimal representation of this array as ASCII.
+	 *
+	 * @param out the stream to write to.
+	 * @throws IOException if writing fails.
+	 * @see #toString()
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		byte[] ascii = new byte[Math.min(m_length, CHUNK) * 2];
+		for (int i = 0; i < m_length; i += CHUNK)
+		{
+			int count = Math.min(CHUNK, m_length - i);
+			for (int j = 0; j < count; j++)
+			{
+				int b = load(i + j) & 0xFF;
+				ascii[j * 2] = (byte) HEX_DIGITS[b >>> 4];
+				ascii[j * 2 + 1] = (byte) HEX_DIGITS[b & 0x0F];
+			}
+			out.write(ascii, 0, count * 2);
+		}
+	}
+
+	private void encodeHex(int index, int count, char[] chars)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			int b = load(index + i) & 0xFF;
+			chars[i * 2] = HEX_DIGITS[b >>> 4];
+			chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+		}
+	}
+
+	/**
+	 * Encodes bytes as binary, separating bytes with spaces.
+	 *
+	 * @return the number of characters written.
+	 */
+	private int encodeBinary(int index, int count, char[] chars)
+	{
+		int length = 0;
+		for (int i = index; i < index + count; i++)
+		{
+			if (i > 0) chars[length++] = ' ';
+			System.arraycopy(BINARY_DIGITS, (load(i) & 0xFF) * 8, chars, length, 8);
+			length += 8;
+		}
+		return length;
+	}
+
+	private static void append(Appendable out, char[] chars, int length) throws IOException
+	{
+		if (out instanceof StringBuilder)
+		{
+			((StringBuilder) out).append(chars, 0, length);
+		}
+		else if (out instanceof Writer)
+		{
+			((Writer) out).write(chars, 0, length);
+		}
+		else
+		{
+			out.append(CharBuffer.wrap(chars, 0, length));
 		}
-		return builder.toString();
 	}
 
 
@@ -250,8 +1303,19 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	{
 		if (o == null) return false;
 		if (o == this) return true;
-		if (o instanceof byte[]) return Arrays.equals((byte[]) o, m_bytes);
-		return o instanceof ByteArray && o.equals(m_bytes);
+		if (o instanceof byte[]) return view().equals(ByteBuffer.wrap((byte[]) o));
+		return o instanceof ByteArray && view().equals(((ByteArray) o).view());
+	}
+
+	/**
+	 * Returns a hash code based on the contents of this array.
+	 *
+	 * @return the hash code, equal for arrays with the same bytes.
+	 */
+	@SuppressWarnings({"NonFinalFieldReferencedInHashCode"})
+	public int hashCode()
+	{
+		return view().hashCode();
 	}
 
 	/**
@@ -268,25 +1332,36 @@ public class ByteArray implements Iterable<Byte>, NonPrimitive
 	 * Returns a binary string representation of this array, with
 	 * all set bits as ones and clear bits as zeroes.
 	 * <p>
-	 * For instance, [129, 1] would be written as "10000001 00000001".
+	 * For instance, [129, 1] would be written as "10000001 10000000", as
+	 * the bits of each byte are written from the lowest to the highest.
 	 *
 	 * @return the binary string representation of this array.
 	 */
 	public String toBinaryString()
 	{
-		if (m_bytes.length == 0) return "";
-		StringBuilder builder = new StringBuilder(size() * 8);
-		for (byte b : m_bytes)
+		if (m_length == 0) return "";
+		char[] chars = new char[m_length * 9 - 1];
+		encodeBinary(0, m_length, chars);
+		return new String(chars);
+	}
+
+	/**
+	 * Appends the binary string representation of this array, a chunk
+	 * at a time and without creating intermediate strings.
+	 *
+	 * @param out the appendable to append to.
+	 * @throws IOException if appending fails.
+	 * @see #toBinaryString()
+	 */
+	public void appendBinaryTo(Appendable out) throws IOException
+	{
+		char[] chars = new char[Math.min(m_length, CHUNK) * 9];
+		for (int i = 0; i < m_length; i += CHUNK)
 		{
-			for (int i = 0; i < 8; i++)
-			{
-				builder.append((b & (1 << i)) == 0 ? '0' : '1');
-			}
-			builder.append(' ');
+			append(out, chars, encodeBinary(i, Math.min(CHUNK, m_length - i), chars));
 		}
-		builder.setLength(builder.length() - 1);
-		return builder.toString();
 	}
+
 	private final static class ByteArrayIterator implements ListIterator<Byte>
 	{
 		private final ByteArray m_array;
@@ -0,0 +1,772 @@
+package org.aegik.transactionality;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The set of changes committed by a transaction.
+ * <p>
+ * Each change consists of a type, a path from the top of the tree and
+ * a value in primitive form (i.e. the same form used by
+ * {@link Transactional#primitive()}). A path is a list of String keys
+ * for dictionary entries and Integer indices for array positions.
+ * <p>
+ * Changed dictionary entries are reported individually, with a null value
+ * if the entry was removed. Changes to arrays are reported as insertions,
+ * deletions and replacements of single positions, in the order they were
+ * made, so that their indices are relative to the preceding changes of the
+ * same array. Changes to members are reported as additions and removals
+ * of single members. Changes to byte arrays are reported as the new bytes
+ * of the changed ranges, plus a deletion if the array was shortened.
+ * Cleared containers, and byte arrays that were replaced, are reported as
+ * a whole with their entire new content as the value.
+ * <p>
+ * Changes are ordered so that a change never precedes a change of
+ * one of its ancestors, and changes already covered by the new value
+ * of an ancestor are left out. Changes to objects that are not attached
+ * to the tree at the time of commit are not reported.
+ * <p>
+ * Change sets can be written in a compact binary format, and applied
+ * to another tree with the same schema using
+ * {@link Transactionality#apply(Transactional, Collection)}.
+ *
+ * @see Root#commit()
+ * @see Root#setRecordingChanges(boolean)
+ * @author Christoffer Lerno
+ */
+public class ChangeSet implements Iterable<ChangeSet.Change>, Serializable
+{
+	private static final long serialVersionUID = 2L;
+
+	private final long m_sequence;
+	private final long m_timestamp;
+	private final List<Change> m_changes;
+
+	ChangeSet(long sequence, long timestamp, List<Change> changes)
+	{
+		m_sequence = sequence;
+		m_timestamp = timestamp;
+		m_changes = changes;
+	}
+
+	/**
+	 * Returns the sequence number of the commit. The first commit
+	 * on a root has sequence number 1.
+	 *
+	 * @return the sequence number of the commit that produced this change set.
+	 */
+	public long getSequence()
+	{
+		return m_sequence;
+	}
+
+	/**
+	 * Returns the time of the commit.
+	 *
+	 * @return the time of the commit, in milliseconds since the epoch.
+	 */
+	public long getTimestamp()
+	{
+		return m_timestamp;
+	}
+
+	/**
+	 * Returns the number of changes in this set.
+	 *
+	 * @return the number of changes.
+	 */
+	public int size()
+	{
+		return m_changes.size();
+	}
+
+	/**
+	 * Tests if this change set is empty.
+	 *
+	 * @return true if the transaction did not change anything.
+	 */
+	public boolean isEmpty()
+	{
+		return m_changes.isEmpty();
+	}
+
+	/**
+	 * Returns an unmodifiable list of all changes.
+	 *
+	 * @return the changes in this set.
+	 */
+	public List<Change> getChanges()
+	{
+		return Collections.unmodifiableList(m_changes);
+	}
+
+	public Iterator<Change> iterator()
+	{
+		return getChanges().iterator();
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_changes.toString();
+	}
+
+	/**
+	 * Writes this change set in binary format.
+	 *
+	 * @param out the output to write to.
+	 * @throws IOException if writing fails.
+	 * @throws IllegalArgumentException if a value cannot be represented in a plist.
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		BinaryFormat.writeVarLong(out, m_sequence);
+		out.writeLong(m_timestamp);
+		BinaryFormat.writeVarInt(out, m_changes.size());
+		for (Change change : m_changes)
+		{
+			out.writeByte(change.m_type.ordinal());
+			BinaryFormat.writeVarInt(out, change.m_path.size());
+			for (Object key : change.m_path)
+			{
+				BinaryFormat.writeValue(out, key);
+			}
+			BinaryFormat.writeValue(out, change.m_value);
+		}
+	}
+
+	/**
+	 * Reads a change set written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in the input to read from.
+	 * @return the change set.
+	 * @throws IOException if reading fails or the data is corrupt.
+	 */
+	public static ChangeSet readFrom(DataInput in) throws IOException
+	{
+		long sequence = BinaryFormat.readVarLong(in);
+		long timestamp = in.readLong();
+		int size = BinaryFormat.readVarInt(in);
+		List<Change> changes = new ArrayList<Change>(size);
+		Change.Type[] types = Change.Type.values();
+		for (int i = 0; i < size; i++)
+		{
+			int type = in.readUnsignedByte();
+			if (type >= types.length) throw new IOException("Illegal change type " + type);
+			int length = BinaryFormat.readVarInt(in);
+			List<Object> path = new ArrayList<Object>(length);
+			for (int j = 0; j < length; j++)
+			{
+				Object key = BinaryFormat.readValue(in);
+				if (!(key instanceof String || key instanceof Integer)) throw new IOException("Illegal path key " + key);
+				path.add(key);
+			}
+			changes.add(new Change(types[type], path, BinaryFormat.readValue(in)));
+		}
+		return new ChangeSet(sequence, timestamp, changes);
+	}
+
+	/**
+	 * Writes a batch of change sets to a byte array.
+	 *
+	 * @param changeSets the change sets to write.
+	 * @return the binary representation of the batch.
+	 * @throws IllegalArgumentException if a value cannot be represented in a plist.
+	 */
+	public static byte[] toBytes(Collection<ChangeSet> changeSets)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			BinaryFormat.writeVarInt(out, changeSets.size());
+			for (ChangeSet changeSet : changeSets)
+			{
+				changeSet.writeTo(out);
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads a batch of change sets written by {@link #toBytes(Collection)}.
+	 *
+	 * @param bytes the binary representation of the batch.
+	 * @return the change sets, in the order they were written.
+	 * @throws IOException if the data is corrupt.
+	 */
+	public static List<ChangeSet> fromBytes(byte[] bytes) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int size = BinaryFormat.readVarInt(in);
+		List<ChangeSet> changeSets = new ArrayList<ChangeSet>(size);
+		for (int i = 0; i < size; i++)
+		{
+			changeSets.add(readFrom(in));
+		}
+		return changeSets;
+	}
+
+	/**
+	 * Applies all changes to a tree, resolving the path of every change
+	 * against the schema of the tree.
+	 *
+	 * @param top the top container of the tree.
+	 * @throws ValidationException if a path or a value doesn't fit the schema.
+	 */
+	void applyTo(TransactionalContainer<?> top)
+	{
+		for (Change change : m_changes)
+		{
+			List<Object> path = change.m_path;
+			boolean member = change.m_type == Change.Type.ADD || change.m_type == Change.Type.REMOVE;
+			int depth = member ? path.size() : path.size() - 1;
+			if (depth < 0) throw new ValidationException("Cannot replace the top of the tree");
+			TransactionalContainer<?> container = top;
+			for (int i = 0; i < depth; i++)
+			{
+				container = TransactionalContainer.containerOf(container.entry(path.get(i)));
+				if (container == null) throw new ValidationException("Invalid path " + path);
+			}
+			try
+			{
+				switch (change.m_type)
+				{
+					case SET:
+						container.assign(path.get(depth), change.m_value);
+						break;
+					case INSERT:
+						container.insertEntry(path.get(depth), change.m_value);
+						break;
+					case DELETE:
+						if (!(change.m_value instanceof Integer)) throw new ValidationException("Illegal count " + change.m_value);
+						container.removeEntries(path.get(depth), (Integer) change.m_value);
+						break;
+					case ADD:
+						container.addMember(change.m_value);
+						break;
+					case REMOVE:
+						container.removeMember(change.m_value);
+						break;
+				}
+			}
+			catch (ValidationException e)
+			{
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				throw new ValidationException("Invalid data for path " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * A single change.
+	 */
+	public static class Change implements Serializable
+	{
+		private static final long serialVersionUID = 2L;
+
+		/**
+		 * The kind of a change.
+		 */
+		public enum Type
+		{
+			/**
+			 * The value replaces the entry at the path, or removes it if null.
+			 * For a byte array the path ends with an index, and the value
+			 * holds the new bytes from that index on, growing the array if
+			 * needed.
+			 */
+			SET,
+			/**
+			 * The value is inserted into an array at the index ending the path.
+			 */
+			INSERT,
+			/**
+			 * The value is the number of elements removed from an array or a
+			 * byte array, starting at the index ending the path.
+			 */
+			DELETE,
+			/**
+			 * The value is added to the members at the path.
+			 */
+			ADD,
+			/**
+			 * The value is removed from the members at the path.
+			 */
+			REMOVE
+		}
+
+		private final Type m_type;
+		private final List<Object> m_path;
+		private final Object m_value;
+
+		Change(List<Object> path, Object value)
+		{
+			this(Type.SET, path, value);
+		}
+
+		Change(Type type, List<Object> path, Object value)
+		{
+			m_type = type;
+			m_path = path;
+			m_value = value;
+		}
+
+		/**
+		 * Returns the kind of this change.
+		 *
+		 * @return the type of the change.
+		 */
+		public Type getType()
+		{
+			return m_type;
+		}
+
+		/**
+		 * Returns the path of the changed entry.
+		 *
+		 * @return an unmodifiable list of String keys and Integer indices.
+		 */
+		public List<Object> getPath()
+		{
+			return Collections.unmodifiableList(m_path);
+		}
+
+		/**
+		 * Returns the value of this change.
+		 *
+		 * @return the new value in primitive form, or null if the entry
+		 * was removed.
+		 * @see Type
+		 */
+		public Object getValue()
+		{
+			return m_value;
+		}
+
+		/**
+		 * Tests if this change is the removal of a dictionary entry.
+		 *
+		 * @return true if the entry was removed.
+		 */
+		public boolean isRemoval()
+		{
+			return m_type == Type.SET && m_value == null;
+		}
+
+		@Override
+		public String toString()
+		{
+			Object value = m_value instanceof byte[] ? new ByteArray((byte[]) m_value) : m_value;
+			return m_type == Type.SET ? m_path + "=" + value : m_path + " " + m_type + " " + value;
+		}
+	}
+
+	/**
+	 * Collects the changes recorded by the undo journal and resolves them
+	 * into a change set.
+	 * <p>
+	 * The cost of building is proportional to the number of changed entries,
+	 * positions and bytes, and to the depth of the changed containers.
+	 */
+	static class Builder
+	{
+		private final List<TransactionalContainer<?>> m_containers;
+		private final Map<TransactionalContainer<?>, Touched> m_touched;
+		private final Map<TransactionalContainer<?>, List<Object>> m_paths;
+
+		Builder()
+		{
+			m_containers = new ArrayList<TransactionalContainer<?>>();
+			m_touched = new IdentityHashMap<TransactionalContainer<?>, Touched>();
+			m_paths = new IdentityHashMap<TransactionalContainer<?>, List<Object>>();
+		}
+
+		private Touched touched(TransactionalContainer<?> container)
+		{
+			Touched touched = m_touched.get(container);
+			if (touched == null)
+			{
+				touched = new Touched();
+				m_touched.put(container, touched);
+				m_containers.add(container);
+			}
+			return touched;
+		}
+
+		/**
+		 * Registers a changed entry of a dictionary.
+		 *
+		 * @param container the dictionary.
+		 * @param key the changed key.
+		 */
+		void touch(TransactionalContainer<?> container, String key)
+		{
+			Touched touched = touched(container);
+			if (touched.m_whole) return;
+			if (touched.m_keys == null) touched.m_keys = new LinkedHashSet<String>();
+			touched.m_keys.add(key);
+		}
+
+		/**
+		 * Registers a container that has changed as a whole.
+		 *
+		 * @param container the changed container.
+		 */
+		void touch(TransactionalContainer<?> container)
+		{
+			Touched touched = touched(container);
+			touched.m_whole = true;
+			touched.m_keys = null;
+			touched.m_operations = null;
+			touched.m_ranges = null;
+		}
+
+		/**
+		 * Registers an element inserted into an array.
+		 *
+		 * @param array the array.
+		 * @param index the index of the element at the time of insertion.
+		 * @param element the inserted element.
+		 */
+		void insert(TransactionalContainer<?> array, int index, Object element)
+		{
+			Touched touched = touched(array);
+			if (touched.m_whole) return;
+			Operation last = touched.lastOperation();
+			if (last != null && last.m_type == Change.Type.DELETE && last.m_index == index && last.m_count == 1)
+			{
+				// A removal followed by an insertion at the same index is a replacement.
+				last.m_type = Change.Type.SET;
+				last.m_value = element;
+				return;
+			}
+			touched.operations().add(new Operation(Change.Type.INSERT, index, element));
+		}
+
+		/**
+		 * Registers an element replaced in an array.
+		 *
+		 * @param array the array.
+		 * @param index the index of the element at the time of replacement.
+		 * @param element the new element.
+		 */
+		void replace(TransactionalContainer<?> array, int index, Object element)
+		{
+			Touched touched = touched(array);
+			if (touched.m_whole) return;
+			Operation last = touched.lastOperation();
+			if (last != null && last.m_type == Change.Type.SET && last.m_index == index)
+			{
+				last.m_value = element;
+				return;
+			}
+			touched.operations().add(new Operation(Change.Type.SET, index, element));
+		}
+
+		/**
+		 * Registers an element removed from an array.
+		 *
+		 * @param array the array.
+		 * @param index the index of the element at the time of removal.
+		 */
+		void delete(TransactionalContainer<?> array, int index)
+		{
+			Touched touched = touched(array);
+			if (touched.m_whole) return;
+			Operation last = touched.lastOperation();
+			if (last != null && last.m_type == Change.Type.DELETE && (last.m_index == index || last.m_index == index + 1))
+			{
+				last.m_index = index;
+				last.m_count++;
+				return;
+			}
+			Operation operation = new Operation(Change.Type.DELETE, index, null);
+			operation.m_count = 1;
+			touched.operations().add(operation);
+		}
+
+		/**
+		 * Registers a member added to or removed from a set.
+		 *
+		 * @param members the set.
+		 * @param member the member.
+		 * @param added true if the member was added, false if removed.
+		 */
+		void member(TransactionalContainer<?> members, Object member, boolean added)
+		{
+			Touched touched = touched(members);
+			if (touched.m_whole) return;
+			touched.operations().add(new Operation(added ? Change.Type.ADD : Change.Type.REMOVE, 0, member));
+		}
+
+		/**
+		 * Registers overwritten bytes of a byte array.
+		 *
+		 * @param array the byte array.
+		 * @param index the index of the first overwritten byte.
+		 * @param length the number of overwritten bytes.
+		 */
+		void write(ByteArray array, int index, int length)
+		{
+			Touched touched = touched(array);
+			if (touched.m_whole) return;
+			touched.addRange(index, index + length);
+		}
+
+		/**
+		 * Registers a change of length of a byte array, or an operation
+		 * moving its bytes.
+		 *
+		 * @param array the byte array.
+		 * @param length the length before the change.
+		 * @param from the index of the first byte that may have changed
+		 * or moved.
+		 */
+		void resize(ByteArray array, int length, int from)
+		{
+			Touched touched = touched(array);
+			if (touched.m_whole) return;
+			if (touched.m_length < 0) touched.m_length = length;
+			if (from < touched.m_tail) touched.m_tail = from;
+			if (touched.m_ranges == null) touched.m_ranges = new long[4];
+		}
+
+		private List<Object> pathOf(TransactionalContainer<?> container)
+		{
+			if (m_paths.containsKey(container)) return m_paths.get(container);
+			List<Object> path;
+			TransactionalContainer<?> parent = container.parent();
+			if (parent == null)
+			{
+				path = container.path();
+			}
+			else
+			{
+				Object key = container.parentSegment();
+				List<Object> parentPath = key == null ? null : pathOf(parent);
+				path = parentPath == null ? null : append(parentPath, key);
+			}
+			m_paths.put(container, path);
+			return path;
+		}
+
+		private static List<Object> append(List<Object> path, Object key)
+		{
+			List<Object> result = new ArrayList<Object>(path.size() + 1);
+			result.addAll(path);
+			result.add(key);
+			return result;
+		}
+
+		ChangeSet build(long sequence)
+		{
+			List<Change> changes = new ArrayList<Change>();
+			List<TransactionalContainer<?>> owners = new ArrayList<TransactionalContainer<?>>();
+			BitSet wholes = new BitSet();
+			// The containers reported with their entire new content, either as
+			// a whole or as the new value of an entry or a position.
+			Set<TransactionalContainer<?>> replaced = Collections.newSetFromMap(new IdentityHashMap<TransactionalContainer<?>, Boolean>());
+			Set<TransactionalContainer<?>> values = Collections.newSetFromMap(new IdentityHashMap<TransactionalContainer<?>, Boolean>());
+			for (TransactionalContainer<?> container : m_containers)
+			{
+				List<Object> path = pathOf(container);
+				if (path == null) continue;
+				Touched touched = m_touched.get(container);
+				if (touched.m_whole)
+				{
+					wholes.set(changes.size());
+					changes.add(new Change(path, container.primitive()));
+					owners.add(container);
+					replaced.add(container);
+					continue;
+				}
+				if (touched.m_keys != null)
+				{
+					for (String key : touched.m_keys)
+					{
+						Object value = container.entry(key);
+						changes.add(new Change(append(path, key), Klass.getPrimitive(value)));
+						owners.add(container);
+						TransactionalContainer<?> child = TransactionalContainer.containerOf(value);
+						if (child != null) values.add(child);
+					}
+				}
+				if (touched.m_operations != null)
+				{
+					for (Operation operation : touched.m_operations)
+					{
+						switch (operation.m_type)
+						{
+							case DELETE:
+								changes.add(new Change(Change.Type.DELETE, append(path, operation.m_index), operation.m_count));
+								break;
+							case ADD:
+							case REMOVE:
+								changes.add(new Change(operation.m_type, path, Klass.getPrimitive(operation.m_value)));
+								break;
+							default:
+								changes.add(new Change(operation.m_type, append(path, operation.m_index), Klass.getPrimitive(operation.m_value)));
+								TransactionalContainer<?> child = TransactionalContainer.containerOf(operation.m_value);
+								if (child != null) values.add(child);
+								break;
+						}
+						owners.add(container);
+					}
+				}
+				if (touched.m_ranges != null)
+				{
+					int before = changes.size();
+					touched.collectBytes((ByteArray) container, path, changes);
+					for (int i = before; i < changes.size(); i++)
+					{
+						owners.add(container);
+					}
+				}
+			}
+			replaced.addAll(values);
+			// A container reported as a whole is only covered by a new value
+			// of itself or of an ancestor.
+			List<Change> result = new ArrayList<Change>(changes.size());
+			for (int i = 0; i < changes.size(); i++)
+			{
+				TransactionalContainer<?> owner = owners.get(i);
+				boolean covered = wholes.get(i)
+						? values.contains(owner) || isCovered(replaced, owner.parent())
+						: isCovered(replaced, owner);
+				if (!covered) result.add(changes.get(i));
+			}
+			Collections.sort(result, new Comparator<Change>()
+			{
+				public int compare(Change o1, Change o2)
+				{
+					return o1.m_path.size() - o2.m_path.size();
+				}
+			});
+			return new ChangeSet(sequence, System.currentTimeMillis(), result);
+		}
+
+		/**
+		 * Tests if a change is already covered by the new value of a container.
+		 *
+		 * @param replaced the containers reported with their entire new content.
+		 * @param owner the container holding the change, may be null.
+		 * @return true if the owner or one of its ancestors is replaced.
+		 */
+		private static boolean isCovered(Set<TransactionalContainer<?>> replaced, TransactionalContainer<?> owner)
+		{
+			for (TransactionalContainer<?> container = owner; container != null; container = container.parent())
+			{
+				if (replaced.contains(container)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * A pending array or members operation.
+		 */
+		private static class Operation
+		{
+			private Change.Type m_type;
+			private int m_index;
+			private int m_count;
+			private Object m_value;
+
+			private Operation(Change.Type type, int index, Object value)
+			{
+				m_type = type;
+				m_index = index;
+				m_count = 0;
+				m_value = value;
+			}
+		}
+
+		/**
+		 * The changes recorded for a single container.
+		 */
+		private static class Touched
+		{
+			private boolean m_whole;
+			private Set<String> m_keys;
+			private List<Operation> m_operations;
+			// Byte ranges as start << 32 | end, with the length before the
+			// first change of length and the first byte moved by any.
+			private long[] m_ranges;
+			private int m_rangeCount;
+			private int m_length = -1;
+			private int m_tail = Integer.MAX_VALUE;
+
+			private List<Operation> operations()
+			{
+				if (m_operations == null) m_operations = new ArrayList<Operation>();
+				return m_operations;
+			}
+
+			private Operation lastOperation()
+			{
+				return m_operations == null || m_operations.isEmpty() ? null : m_operations.get(m_operations.size() - 1);
+			}
+
+			private void addRange(int start, int end)
+			{
+				if (m_ranges == null)
+				{
+					m_ranges = new long[4];
+				}
+				else if (m_rangeCount > 0)
+				{
+					// Consecutive writes to adjacent bytes extend the last range.
+					long last = m_ranges[m_rangeCount - 1];
+					int lastStart = (int) (last >>> 32);
+					int lastEnd = (int) last;
+					if (start >= lastStart && start <= lastEnd)
+					{
+						m_ranges[m_rangeCount - 1] = (long) lastStart << 32 | Math.max(lastEnd, end);
+						return;
+					}
+				}
+				if (m_rangeCount == m_ranges.length) m_ranges = Arrays.copyOf(m_ranges, m_rangeCount * 2);
+				m_ranges[m_rangeCount++] = (long) start << 32 | end;
+			}
+
+			/**
+			 * Adds the changes of a byte array: a deletion if it is shorter
+			 * than before, then the final bytes of all changed ranges.
+			 */
+			private void collectBytes(ByteArray array, List<Object> path, List<Change> changes)
+			{
+				int length = array.size();
+				if (m_length > length)
+				{
+					changes.add(new Change(Change.Type.DELETE, append(path, length), m_length - length));
+				}
+				if (m_tail < length) addRange(m_tail, length);
+				long[] ranges = Arrays.copyOf(m_ranges, m_rangeCount);
+				Arrays.sort(ranges);
+				int start = 0;
+				int end = -1;
+				for (long range : ranges)
+				{
+					int rangeStart = (int) (range >>> 32);
+					int rangeEnd = Math.min((int) range, length);
+					if (rangeStart >= rangeEnd) continue;
+					if (rangeStart > end)
+					{
+						if (end > start) changes.add(new Change(append(path, start), array.copyOfRange(start, end)));
+						start = rangeStart;
+					}
+					end = Math.max(end, rangeEnd);
+				}
+				if (end > start) changes.add(new Change(append(path, start), array.copyOfRange(start, end)));
+			}
+		}
+	}
+}
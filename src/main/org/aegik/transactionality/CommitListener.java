@@ -0,0 +1,22 @@
+package org.aegik.transactionality;
+
+/**
+ * A listener notified of the changes made by committed transactions.
+ * <p>
+ * Listeners are registered with a path prefix on the root, and receive
+ * a single notification per transaction containing all changes at or
+ * below that prefix, as well as changes that replace an ancestor of the
+ * prefix. Rolled back transactions are never reported.
+ *
+ * @see Root#addCommitListener(CommitListener, Object...)
+ * @author Christoffer Lerno
+ */
+public interface CommitListener
+{
+	/**
+	 * Called after a transaction has been committed.
+	 *
+	 * @param changes the committed changes matching the prefix of the listener.
+	 */
+	void committed(ChangeSet changes);
+}
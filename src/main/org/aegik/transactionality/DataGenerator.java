@@ -0,0 +1,222 @@
+package org.aegik.transactionality;
+
+import xmlwise.Plist;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates random data following the schema of a Transactional interface.
+ * <p>
+ * The generator walks the properties of the interface, generating random
+ * values for primitives, Arrays, Dicts and nested objects. The shape of
+ * the data is controlled by:
+ * <ul>
+ * <li>size - the number of elements of the containers of the top object.</li>
+ * <li>fan-out - the number of elements of containers below the top object.</li>
+ * <li>depth - the maximum nesting depth of objects. Optional objects and
+ * containers of objects are left out or empty below this depth. Required
+ * objects are always generated.</li>
+ * </ul>
+ * Optional properties are included with a configurable probability.
+ * <p>
+ * Generators created with the same seed and settings generate the same data.
+ * <p>
+ * Example, a plist file for load testing:
+ * <code>
+ * <pre>
+ * DataGenerator generator = new DataGenerator(42, 10000, 3, 5);
+ * generator.save(Catalog.class, new File("catalog.plist"));
+ * </pre>
+ * </code>
+ * <em>This class is not thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class DataGenerator
+{
+	private final static String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+	private final static int MAX_WORD_LENGTH = 12;
+	private final static long MAX_DATE = 4102444800000L;
+
+	private final Random m_random;
+	private final int m_size;
+	private final int m_depth;
+	private final int m_fanOut;
+	private double m_optionalProbability;
+
+	/**
+	 * Creates a data generator.
+	 *
+	 * @param seed the seed of the random values.
+	 * @param size the number of elements of the containers of the top object.
+	 * @param depth the maximum nesting depth of objects, where the top object is at depth 0.
+	 * @param fanOut the number of elements of containers below the top object.
+	 * @throws IllegalArgumentException if any of the size, depth or fan-out is negative.
+	 */
+	public DataGenerator(long seed, int size, int depth, int fanOut)
+	{
+		if (size < 0 || depth < 0 || fanOut < 0)
+		{
+			throw new IllegalArgumentException("Illegal size " + size + ", depth " + depth + " or fan-out " + fanOut);
+		}
+		m_random = new Random(seed);
+		m_size = size;
+		m_depth = depth;
+		m_fanOut = fanOut;
+		m_optionalProbability = 0.5;
+	}
+
+	/**
+	 * Sets the probability that an optional property is included.
+	 * <p>
+	 * The default is 0.5.
+	 *
+	 * @param probability the probability, from 0 to 1.
+	 * @throws IllegalArgumentException if the probability is outside 0 to 1.
+	 */
+	public void setOptionalProbability(double probability)
+	{
+		if (probability < 0 || probability > 1) throw new IllegalArgumentException("Illegal probability " + probability);
+		m_optionalProbability = probability;
+	}
+
+	/**
+	 * Generates the primitive form of an object.
+	 *
+	 * @param c the interface of the object.
+	 * @return random data for the object, suitable for init.
+	 * @throws IllegalArgumentException if the class is not a suitable class.
+	 */
+	public Map<String, Object> generate(Class<? extends Transactional> c)
+	{
+		return Klass.getKlass(c).generate(this, 0);
+	}
+
+	/**
+	 * Generates a new root object.
+	 *
+	 * @param c the interface of the object.
+	 * @return a new root initialized with random data.
+	 * @see Transactionality#createRoot(Class)
+	 */
+	public <C extends Transactional> C createRoot(Class<C> c)
+	{
+		C object = Transactionality.createRoot(c);
+		object.init(generate(c));
+		return object;
+	}
+
+	/**
+	 * Generates an object as a plist.
+	 *
+	 * @param c the interface of the object.
+	 * @return random data for the object as plist XML.
+	 */
+	public String toXml(Class<? extends Transactional> c)
+	{
+		return Plist.toXml(generate(c));
+	}
+
+	/**
+	 * Generates an object and saves it as a plist file.
+	 *
+	 * @param c the interface of the object.
+	 * @param file the file to write.
+	 * @throws IOException if writing the file fails.
+	 * @see Transactionality#fromFile(Class, File)
+	 */
+	public void save(Class<? extends Transactional> c, File file) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			writer.write(toXml(c));
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	Random random()
+	{
+		return m_random;
+	}
+
+	/**
+	 * Returns the number of elements to generate for a container.
+	 *
+	 * @param elementType the type of the elements.
+	 * @param depth the depth of the object holding the container.
+	 * @return the number of elements.
+	 */
+	int count(ElementType<?> elementType, int depth)
+	{
+		if (!canNest(elementType, depth)) return 0;
+		return depth == 0 ? m_size : m_fanOut;
+	}
+
+	/**
+	 * Decides if an optional property should be generated.
+	 *
+	 * @param type the type of the property.
+	 * @param depth the depth of the object holding the property.
+	 * @return true to generate the property.
+	 */
+	boolean includeOptional(ElementType<?> type, int depth)
+	{
+		return canNest(type, depth) && m_random.nextDouble() < m_optionalProbability;
+	}
+
+	private boolean canNest(ElementType<?> type, int depth)
+	{
+		Type c = type.getType();
+		return depth < m_depth || !(c instanceof Class) || !Transactional.class.isAssignableFrom((Class<?>) c);
+	}
+
+	/**
+	 * Generates a random value of a primitive class.
+	 *
+	 * @param c the class of the value.
+	 * @return a random value.
+	 */
+	Object primitive(Class<?> c)
+	{
+		if (c == Integer.class) return m_random.nextInt();
+		if (c == Double.class) return m_random.nextInt(100000000) / 100.0;
+		if (c == Boolean.class) return m_random.nextBoolean();
+		// Plists store dates with second precision.
+		if (c == Date.class) return new Date((long) (m_random.nextDouble() * MAX_DATE) / 1000 * 1000);
+		return word();
+	}
+
+	/**
+	 * Generates a random lower case word.
+	 *
+	 * @return a word of 1 to 12 letters.
+	 */
+	String word()
+	{
+		char[] chars = new char[1 + m_random.nextInt(MAX_WORD_LENGTH)];
+		for (int i = 0; i < chars.length; i++)
+		{
+			chars[i] = LETTERS.charAt(m_random.nextInt(LETTERS.length()));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Generates a random key for a dictionary.
+	 *
+	 * @param index the index of the key, keeping keys unique within a dictionary.
+	 * @return a key.
+	 */
+	String key(int index)
+	{
+		return word() + index;
+	}
+}
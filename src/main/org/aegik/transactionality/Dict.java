@@ -2,6 +2,9 @@ package org.aegik.transactionality;
 
 import java.util.Map;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A dictionary with key-value pairs.
@@ -14,7 +17,7 @@ import java.util.*;
  */
 public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>, NonPrimitive
 {
-	private HashMap<String, C> m_values;
+	private StringMap<C> m_values;
 
 	/**
 	 * Creates a dictionary with transaction support through the root node.
@@ -24,20 +27,39 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	 */
 	Dict(Root root, ElementType<C> internalType)
 	{
-		super(root, internalType);
-		m_values = new HashMap<String, C>();
+		this(root, internalType, 0);
+	}
 
+	/**
+	 * Creates a dictionary with transaction support through the root node,
+	 * with room for the expected number of entries.
+	 *
+	 * @param root the root for this dictionary.
+	 * @param internalType the internal type of objects of this dictionary.
+	 * @param expectedSize the expected number of entries.
+	 */
+	Dict(Root root, ElementType<C> internalType, int expectedSize)
+	{
+		super(root, internalType);
+		m_values = new StringMap<C>(expectedSize);
 	}
 
 	/**
 	 * Creates a copy of an existing dictionary.
+	 * <p>
+	 * The copy shares its values with the original. Values that are
+	 * containers remain children of the original, so their changes are
+	 * still reported under the paths of the original.
 	 *
 	 * @param original the original dictionary.
 	 */
 	public Dict(Dict<C> original)
 	{
-		this(original.root(), original.internalType());
-		putAll(original.internalMap());
+		this(original.root(), original.internalType(), original.size());
+		for (Map.Entry<String, C> entry : original.m_values.entrySet())
+		{
+			m_values.put(entry.getKey(), entry.getValue());
+		}
 	}
 
 	protected Map<String, C> internalMap()
@@ -45,9 +67,29 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 		return m_values;
 	}
 
+	/**
+	 * Returns the primitive form of this dictionary.
+	 * <p>
+	 * Large dictionaries are converted in parallel, see {@link PrimitiveTask}.
+	 *
+	 * @return a map of the primitive values.
+	 */
 	public Map<String, Object> primitive()
 	{
-		Map<String, Object> map = new HashMap<String, Object>();
+		int size = m_values.size();
+		Map<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+		if (size >= PrimitiveTask.THRESHOLD)
+		{
+			String[] keys = new String[size];
+			Object[] values = new Object[size];
+			m_values.copyTo(keys, values);
+			PrimitiveTask.convert(values);
+			for (int i = 0; i < size; i++)
+			{
+				map.put(keys[i], values[i]);
+			}
+			return map;
+		}
 		for (Map.Entry<String, C> entry : m_values.entrySet())
 		{
 			map.put(entry.getKey(), Klass.getPrimitive(entry.getValue()));
@@ -55,6 +97,29 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 		return map;
 	}
 
+	/**
+	 * Returns a sequential stream of the entries of this dictionary.
+	 *
+	 * @return a stream of immutable entries.
+	 */
+	public Stream<Map.Entry<String, C>> stream()
+	{
+		return StreamSupport.stream(m_values.entrySet().spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel stream of the entries of this dictionary.
+	 * <p>
+	 * The stream reads the dictionary as it is when traversal starts, and
+	 * is safe as long as no transaction modifies the dictionary.
+	 *
+	 * @return a parallel stream of immutable entries.
+	 */
+	public Stream<Map.Entry<String, C>> parallelStream()
+	{
+		return StreamSupport.stream(m_values.entrySet().spliterator(), true);
+	}
+
 	public C create(final String property)
 	{
 		C newObject = createNewObject();
@@ -64,6 +129,9 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 
 	/**
 	 * Sets a property.
+	 * <p>
+	 * The key is replaced by a shared instance, either the key of the
+	 * schema or one from the key table of the root.
 	 *
 	 * @param property the name of the property.
 	 * @param value the new value of the property.
@@ -76,13 +144,22 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 		{
 			return remove(property);
 		}
-		C oldValue = m_values.put(property, value);
-		addUndo(new PutUndo<C>(this, property, oldValue));
+		checkMutable();
+		String key = canonicalKey(property);
+		C oldValue = m_values.put(key, value);
+		addUndo(new PutUndo<C>(this, key, oldValue));
+		adopt(value, key);
+		if (oldValue != null) indexRemove(oldValue);
+		indexAdd(value);
 		return oldValue;
 	}
 
 	/**
 	 * Add all properties in a map to this dictionary.
+	 * <p>
+	 * Each key is added as by {@link #put(String, Object)}, so only the
+	 * entries actually written are journaled and the cost is proportional
+	 * to the size of the map added.
 	 *
 	 * @param map the map to add.
 	 * @throws IllegalArgumentException if any of the values in this map
@@ -91,10 +168,11 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	public void putAll(Map<? extends String, ? extends C> map)
 	{
 		if (map.isEmpty()) return;
-		HashMap<String, C> values = m_values;
-		clear();
-		m_values.putAll(values);
-		m_values.putAll(map);
+		checkMutable();
+		for (Map.Entry<? extends String, ? extends C> entry : map.entrySet())
+		{
+			put(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
@@ -108,10 +186,13 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	 */
 	public C remove(Object key)
 	{
-		final String stringKey = String.valueOf(key);
+		checkMutable();
+		String stringKey = String.valueOf(key);
 		final C oldValue = m_values.remove(stringKey);
 		if (oldValue == null) return null;
+		stringKey = canonicalKey(stringKey);
 		addUndo(new PutUndo<C>(this, stringKey, oldValue));
+		indexRemove(oldValue);
 		return oldValue;
 	}
 
@@ -125,6 +206,19 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 		return m_values.size();
 	}
 
+	/**
+	 * Performs an action for each key-value pair of this dictionary.
+	 * <p>
+	 * Unlike iterating over the entry set, this allocates nothing.
+	 *
+	 * @param action the action to perform.
+	 */
+	@Override
+	public void forEach(BiConsumer<? super String, ? super C> action)
+	{
+		m_values.forEach(action);
+	}
+
 	/**
 	 * Returns an unmodifiable collection of all values in this dictionary.
 	 *
@@ -132,17 +226,28 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	 */
 	public Collection<C> values()
 	{
-		return Collections.unmodifiableCollection(m_values.values());
+		return m_values.values();
 	}
 
 	/**
 	 * Remove all key-value pairs from this map.
+	 * <p>
+	 * Outside of a transaction the storage is cleared in place.
 	 */
 	public void clear()
 	{
+		checkMutable();
 		if (m_values.isEmpty()) return;
-		addUndo(new ClearUndo<C>(this));
-		m_values = new HashMap<String, C>();
+		if (!isJournaling())
+		{
+			m_values.clear();
+		}
+		else
+		{
+			addUndo(new ClearUndo<C>(this));
+			m_values = new StringMap<C>();
+		}
+		indexRebuild();
 	}
 
 	/**
@@ -173,12 +278,16 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 
 	/**
 	 * Returns an unmodifiable set of all entries in this dictionary.
+	 * <p>
+	 * The iterator of the set returns a new immutable entry per element,
+	 * use {@link #forEach(BiConsumer)} to visit the entries without
+	 * allocating.
 	 *
 	 * @return an unmodifiable set of all entries in this dictionary.
 	 */
 	public Set<Entry<String, C>> entrySet()
 	{
-		return Collections.unmodifiableSet(m_values.entrySet());
+		return m_values.entrySet();
 	}
 
 	/**
@@ -210,7 +319,7 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	 */
 	public Set<String> keySet()
 	{
-		return Collections.unmodifiableSet(m_values.keySet());
+		return m_values.keySet();
 	}
 
 	/**
@@ -264,10 +373,97 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 
 	public void init(Map<String, ?> map)
 	{
+		checkMutable();
 		m_values.clear();
 		for (Map.Entry<String, ?> entry : map.entrySet())
 		{
-			m_values.put(entry.getKey(), internalType().newObject(root(), entry.getValue()));
+			String key = canonicalKey(entry.getKey());
+			C value = internalType().newObject(root(), entry.getValue());
+			m_values.put(key, value);
+			adopt(value, key);
+		}
+		indexRebuild();
+	}
+
+	/**
+	 * Returns an index over a property of the values of this dictionary.
+	 *
+	 * @param property the key of the indexed property.
+	 * @return the index.
+	 * @throws IllegalArgumentException if the property is not indexed.
+	 * @see HashIndex
+	 */
+	public PropertyIndex<C> getIndex(String property)
+	{
+		return findIndex(property, false);
+	}
+
+	/**
+	 * Returns a sorted index over a property of the values of this dictionary.
+	 *
+	 * @param property the key of the indexed property.
+	 * @return the index.
+	 * @throws IllegalArgumentException if the property has no sorted index.
+	 * @see SortedIndex
+	 */
+	public SortedPropertyIndex<C> getSortedIndex(String property)
+	{
+		return (SortedPropertyIndex<C>) findIndex(property, true);
+	}
+
+	Collection<C> elements()
+	{
+		return m_values.values();
+	}
+
+	/**
+	 * Returns the type of the value stored for a key.
+	 *
+	 * @param key the key.
+	 * @return the element type for the key.
+	 * @throws ValidationException if the key cannot have a value.
+	 */
+	protected ElementType<C> elementType(String key)
+	{
+		if (internalType() == null) throw new ValidationException("Object type not defined.");
+		return internalType();
+	}
+
+	Object entry(Object key)
+	{
+		if (!(key instanceof String)) throw new ValidationException("Illegal key " + key);
+		return get(key);
+	}
+
+	void assign(Object key, Object value)
+	{
+		if (!(key instanceof String)) throw new ValidationException("Illegal key " + key);
+		String property = (String) key;
+		if (value == null)
+		{
+			remove(property);
+		}
+		else
+		{
+			put(property, elementType(property).newObject(root(), value));
+		}
+	}
+
+	Object keyOf(TransactionalContainer<?> child, String key)
+	{
+		return containerOf(m_values.get(key)) == child ? key : null;
+	}
+
+	/**
+	 * Replaces the values with a copy of minimal capacity, then compacts
+	 * all contained values.
+	 */
+	void compact()
+	{
+		m_values = m_values.compact();
+		for (C value : m_values.values())
+		{
+			compact(value);
 		}
 	}
 
@@ -278,7 +474,7 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	private static class ClearUndo<T> implements Undo
 	{
 		private final Dict<T> m_dict;
-		private final HashMap<String, T> m_old;
+		private final StringMap<T> m_old;
 
 		private ClearUndo(Dict<T> dict)
 		{
@@ -290,6 +486,11 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 		{
 			m_dict.m_values = m_old;
 		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_dict);
+		}
 	}
 
 	/**
@@ -320,6 +521,11 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 				m_dict.m_values.put(m_property, m_oldValue);
 			}
 		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_dict, m_property);
+		}
 	}
 
 	public static <C> Dict<C> newDict(Object... keyValues)
@@ -335,14 +541,14 @@ public class Dict<C> extends TransactionalContainer<C> implements Map<String, C>
 	}
 
 	@SuppressWarnings({"unchecked"})
-    public static <C> Dict<C> newDict(Map map)
+    public static <C> Dict<C> newDict(Map<String, ?> map)
 	{
         ElementType<C> elementType = ElementType.getReturnType(map.values().iterator().next().getClass());
-		Dict<C> d = new Dict(null,
-		                     map.isEmpty()
-		                     ? null
-		                     : elementType);
-		d.putAll(map);
+		Dict<C> d = new Dict<C>(null,
+		                        map.isEmpty()
+		                        ? null
+		                        : elementType);
+		d.putAll((Map<String, C>) map);
 		return d;
 	}
 }
@@ -1,7 +1,9 @@
 package org.aegik.transactionality;
 
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -10,7 +12,7 @@ import java.util.Map;
 /** @author Christoffer Lerno */
 abstract class ElementType<C>
 {
-	private final static HashMap<Type, ElementType> PRIMITIVE_TYPES = new HashMap<Type, ElementType>();
+	private final static HashMap<Type, ElementType<?>> PRIMITIVE_TYPES = new HashMap<Type, ElementType<?>>();
 
 	static
 	{
@@ -23,7 +25,40 @@ abstract class ElementType<C>
 		{
 			public ByteArray newObject(Root root, Object data)
 			{
-				return data == null ? new ByteArray(root) : new ByteArray(root, (byte[]) data);
+				return data == null ? new ByteArray(root) : ByteArray.load(root, (byte[]) data);
+			}
+
+			Object generate(DataGenerator generator, int depth)
+			{
+				byte[] bytes = new byte[generator.count(this, depth)];
+				generator.random().nextBytes(bytes);
+				return bytes;
+			}
+		});
+		PRIMITIVE_TYPES.put(IntMembers.class, new ElementType<IntMembers>(IntMembers.class)
+		{
+			public IntMembers newObject(Root root, Object data)
+			{
+				IntMembers members = new IntMembers(root);
+				if (data != null)
+				{
+					for (Object o : (List<?>) data)
+					{
+						if (!(o instanceof Integer)) throw new ValidationException("Expected class " + Integer.class + " was " + o.getClass());
+						members.add(((Integer) o).intValue());
+					}
+				}
+				return members;
+			}
+
+			Object generate(DataGenerator generator, int depth)
+			{
+				List<Object> list = new ArrayList<Object>();
+				for (int i = generator.count(this, depth); i > 0; i--)
+				{
+					list.add(generator.random().nextInt());
+				}
+				return list;
 			}
 		});
 		PRIMITIVE_TYPES.put(Object.class, new ElementType<Object>(Object.class)
@@ -32,6 +67,11 @@ abstract class ElementType<C>
 			{
 				return object;
 			}
+
+			Object generate(DataGenerator generator, int depth)
+			{
+				return generator.word();
+			}
 		});
 	}
 
@@ -43,25 +83,51 @@ abstract class ElementType<C>
 
 	public abstract C newObject(Root root, Object object);
 
+	/**
+	 * Generates random data for an object of this type.
+	 *
+	 * @param generator the generator to use.
+	 * @param depth the nesting depth of the Transactional object holding the data.
+	 * @return the primitive form of a random object of this type.
+	 */
+	abstract Object generate(DataGenerator generator, int depth);
+
 	public Type getType()
 	{
 		return m_type;
 	}
 
+	/**
+	 * Tests if objects of this type are primitives rather than containers.
+	 *
+	 * @return true if the objects can never be containers.
+	 */
+	boolean isPrimitive()
+	{
+		Type type = m_type instanceof ParameterizedType ? ((ParameterizedType) m_type).getRawType() : m_type;
+		return type instanceof Class && Klass.isPrimitive((Class<?>) type);
+	}
+
 	@SuppressWarnings({"unchecked"})
     public static <C> ElementType<C> getReturnType(Type returnType)
 	{
-		ElementType type = PRIMITIVE_TYPES.get(returnType);
+		return (ElementType<C>) elementType(returnType);
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private static ElementType<?> elementType(Type returnType)
+	{
+		ElementType<?> type = PRIMITIVE_TYPES.get(returnType);
 		if (type != null) return type;
 		if (returnType instanceof Class)
 		{
-			if (Enum.class.isAssignableFrom((Class) returnType))
+			if (Enum.class.isAssignableFrom((Class<?>) returnType))
 			{
-				return new EnumObjectType((Class) returnType);
+				return new EnumObjectType<Enum<?>>((Class<Enum<?>>) returnType);
 			}
-			if (Transactional.class.isAssignableFrom((Class) returnType))
+			if (Transactional.class.isAssignableFrom((Class<?>) returnType))
 			{
-				return new ProxyElementType(returnType);
+				return new ProxyElementType<Transactional>(returnType);
 			}
 		}
 		else if (returnType instanceof ParameterizedType)
@@ -69,20 +135,169 @@ abstract class ElementType<C>
 			ParameterizedType parameterizedType = (ParameterizedType) returnType;
 			if (parameterizedType.getRawType().equals(Dict.class))
 			{
-				return new DictElementType(returnType,
-				                           getReturnType(parameterizedType.getActualTypeArguments()[0]));
+				return new DictElementType<Object>(returnType,
+				                                   getReturnType(parameterizedType.getActualTypeArguments()[0]));
 			}
 			else if (parameterizedType.getRawType().equals(Array.class))
 			{
-				return new ArrayElementType(returnType,
-				                           getReturnType(parameterizedType.getActualTypeArguments()[0]));
+				return new ArrayElementType<Object>(returnType,
+				                                    getReturnType(parameterizedType.getActualTypeArguments()[0]));
+			}
+			else if (parameterizedType.getRawType().equals(SortedDict.class))
+			{
+				return new SortedDictElementType<Object>(returnType,
+				                                         getReturnType(parameterizedType.getActualTypeArguments()[0]));
+			}
+			else if (parameterizedType.getRawType().equals(Members.class))
+			{
+				Type memberType = parameterizedType.getActualTypeArguments()[0];
+				if (!(memberType instanceof Class) || !Klass.isPrimitive((Class<?>) memberType))
+				{
+					throw new ValidationException("Unsupported member type " + memberType);
+				}
+				return new MembersElementType<Object>(returnType, getReturnType(memberType));
 			}
 			throw new ValidationException("Unsupported generic class " + returnType);
 		}
 		throw new ValidationException("Unsupported return type: " + returnType);
 	}
 
-	private static class EnumObjectType<C extends Enum<C>> extends ElementType<C>
+	/**
+	 * Returns the type of an Array property using a specific kind of storage.
+	 *
+	 * @param type the type of the property.
+	 * @param storage the kind of storage.
+	 * @return the type creating arrays with the storage.
+	 * @throws ValidationException if the type is not an Array.
+	 */
+	@SuppressWarnings({"unchecked"})
+	static <C> ElementType<C> stored(ElementType<C> type, ArrayStorage storage)
+	{
+		if (!(type instanceof ArrayElementType))
+		{
+			throw new ValidationException("Storage on non-Array type: " + type.getType());
+		}
+		return (ElementType<C>) withStorage((ArrayElementType<?>) type, storage);
+	}
+
+	private static <C> ArrayElementType<C> withStorage(ArrayElementType<C> type, ArrayStorage storage)
+	{
+		return new ArrayElementType<C>(type.getType(), type.m_internalType, storage);
+	}
+
+	/**
+	 * Wraps the type of a Dict or Array property so that the created
+	 * containers maintain secondary indexes over their elements.
+	 *
+	 * @param type the type of the property.
+	 * @param hashed the keys of the properties to hash index.
+	 * @param sorted the keys of the properties to sort index.
+	 * @return the indexed type.
+	 * @throws ValidationException if the elements are not Transactional, or
+	 * an indexed property doesn't exist, isn't primitive or, for a sorted
+	 * index, isn't Comparable.
+	 */
+	static <C> ElementType<C> indexed(ElementType<C> type, String[] hashed, String[] sorted)
+	{
+		ElementType<?> internalType = null;
+		if (type instanceof ArrayElementType) internalType = ((ArrayElementType<?>) type).m_internalType;
+		if (type instanceof DictElementType) internalType = ((DictElementType<?>) type).m_internalType;
+		if (!(internalType instanceof ProxyElementType))
+		{
+			throw new ValidationException("Index on non-Transactional elements: " + type.getType());
+		}
+		Class<?> elementClass = (Class<?>) internalType.getType();
+		for (String property : hashed)
+		{
+			indexedProperty(elementClass, property);
+		}
+		for (String property : sorted)
+		{
+			if (!Comparable.class.isAssignableFrom(indexedProperty(elementClass, property)))
+			{
+				throw new ValidationException("Sorted index on non-Comparable '" + property + "' in " + elementClass);
+			}
+		}
+		return new IndexedElementType<C>(type, hashed, sorted);
+	}
+
+	private static List<Object> generateList(ElementType<?> internalType, DataGenerator generator, int depth)
+	{
+		List<Object> list = new ArrayList<Object>();
+		for (int i = generator.count(internalType, depth); i > 0; i--)
+		{
+			list.add(internalType.generate(generator, depth));
+		}
+		return list;
+	}
+
+	private static Map<String, Object> generateMap(ElementType<?> internalType, DataGenerator generator, int depth)
+	{
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i = generator.count(internalType, depth); i > 0; i--)
+		{
+			map.put(generator.key(i), internalType.generate(generator, depth));
+		}
+		return map;
+	}
+
+	private static Class<?> indexedProperty(Class<?> elementClass, String property)
+	{
+		for (Method method : elementClass.getMethods())
+		{
+			String name = method.getName();
+			if (name.startsWith("get") && name.length() > 3 && method.getParameterTypes().length == 0
+			    && Klass.keyFromMethod(name.substring(3)).equals(property))
+			{
+				if (!Klass.isPrimitive(method.getReturnType()))
+				{
+					throw new ValidationException("Index on non-primitive '" + property + "' in " + elementClass);
+				}
+				return method.getReturnType();
+			}
+		}
+		throw new ValidationException("Index on unknown property '" + property + "' in " + elementClass);
+	}
+
+	private static class IndexedElementType<C> extends ElementType<C>
+	{
+		private final ElementType<C> m_type;
+		private final String[] m_hashed;
+		private final String[] m_sorted;
+
+		public IndexedElementType(ElementType<C> type, String[] hashed, String[] sorted)
+		{
+			super(type.getType());
+			m_type = type;
+			m_hashed = hashed;
+			m_sorted = sorted;
+		}
+
+		@SuppressWarnings({"unchecked"})
+		public C newObject(Root root, Object value)
+		{
+			C object = m_type.newObject(root, value);
+			TransactionalContainer<Object> container = (TransactionalContainer<Object>) object;
+			List<PropertyIndex<Object>> indexes = new ArrayList<PropertyIndex<Object>>();
+			for (String property : m_hashed)
+			{
+				indexes.add(new PropertyIndex<Object>(container, property));
+			}
+			for (String property : m_sorted)
+			{
+				indexes.add(new SortedPropertyIndex<Object>(container, property));
+			}
+			container.setIndexes(indexes);
+			return object;
+		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return m_type.generate(generator, depth);
+		}
+	}
+
+	private static class EnumObjectType<C extends Enum<?>> extends ElementType<C>
 	{
 		private final C[] m_enumValues;
 
@@ -104,6 +319,11 @@ abstract class ElementType<C>
 			}
 			throw new ValidationException("Illegal enum value: " + object);
 		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return m_enumValues[generator.random().nextInt(m_enumValues.length)].name();
+		}
 	}
 
 	private static class PrimitiveElementType<C> extends ElementType<C>
@@ -130,6 +350,10 @@ abstract class ElementType<C>
 			return m_initialValue;
 		}
 
+		Object generate(DataGenerator generator, int depth)
+		{
+			return generator.primitive(m_initialValue.getClass());
+		}
 	}
 
 	private static class ProxyElementType<T extends Transactional> extends ElementType<T>
@@ -149,24 +373,37 @@ abstract class ElementType<C>
 			}
 			return t;
 		}
+
+		@SuppressWarnings({"unchecked"})
+		Object generate(DataGenerator generator, int depth)
+		{
+			return Klass.getKlass((Class<T>) getType()).generate(generator, depth + 1);
+		}
 	}
 
 	private static class ArrayElementType<C> extends ElementType<Array<C>>
 	{
 		private final ElementType<C> m_internalType;
+		private final ArrayStorage m_storage;
 
 		public ArrayElementType(Type returnType, ElementType<C> internalType)
+		{
+			this(returnType, internalType, ArrayStorage.LIST);
+		}
+
+		public ArrayElementType(Type returnType, ElementType<C> internalType, ArrayStorage storage)
 		{
 			super(returnType);
 			m_internalType = internalType;
+			m_storage = storage;
 		}
 
 		public Array<C> newObject(Root root, Object value)
 		{
-			Array<C> array = new Array<C>(root, m_internalType);
+			Array<C> array = new Array<C>(root, m_internalType, m_storage);
 			if (value != null)
 			{
-				List list = (List) value;
+				List<?> list = (List<?>) value;
 				for (Object o : list)
 				{
 					array.add(m_internalType.newObject(root, o));
@@ -174,6 +411,67 @@ abstract class ElementType<C>
 			}
 			return array;
 		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return generateList(m_internalType, generator, depth);
+		}
+	}
+
+	private static class MembersElementType<C> extends ElementType<Members<C>>
+	{
+		private final ElementType<C> m_internalType;
+
+		public MembersElementType(Type returnType, ElementType<C> internalType)
+		{
+			super(returnType);
+			m_internalType = internalType;
+		}
+
+		public Members<C> newObject(Root root, Object value)
+		{
+			Members<C> members = new Members<C>(root, m_internalType);
+			if (value != null)
+			{
+				for (Object o : (List) value)
+				{
+					members.add(m_internalType.newObject(root, o));
+				}
+			}
+			return members;
+		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return generateList(m_internalType, generator, depth);
+		}
+	}
+
+	private static class SortedDictElementType<C> extends ElementType<SortedDict<C>>
+	{
+		private final ElementType<C> m_internalType;
+
+		public SortedDictElementType(Type returnType, ElementType<C> internalType)
+		{
+			super(returnType);
+			m_internalType = internalType;
+		}
+
+		@SuppressWarnings({"unchecked"})
+		public SortedDict<C> newObject(Root root, Object value)
+		{
+			SortedDict<C> dict = new SortedDict<C>(root, m_internalType);
+			if (value != null)
+			{
+				dict.init((Map) value);
+			}
+			return dict;
+		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return generateMap(m_internalType, generator, depth);
+		}
 	}
 
 	private static class DictElementType<C> extends ElementType<Dict<C>>
@@ -192,11 +490,16 @@ abstract class ElementType<C>
 			Dict<C> dict = new Dict<C>(root, m_internalType);
 			if (value != null)
 			{
-				Map map = (Map) value;
+				Map<String, Object> map = (Map<String, Object>) value;
 				dict.init(map);
 			}
 			return dict;
 		}
+
+		Object generate(DataGenerator generator, int depth)
+		{
+			return generateMap(m_internalType, generator, depth);
+		}
 	}
 
 
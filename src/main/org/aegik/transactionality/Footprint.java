@@ -0,0 +1,504 @@
+package org.aegik.transactionality;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * An estimate of the heap used by a tree.
+ * <p>
+ * The estimate walks the tree from a Transactional object, adding up the
+ * size of every object reachable from it: proxies, containers, their
+ * internal tables, keys, boxed values and byte arrays. Objects shared
+ * with the rest of the JVM are left out: the root, schema metadata,
+ * schema keys, enums and cached boxed values. Each object is counted
+ * once, where it is first reached.
+ * <p>
+ * The bytes are reported per type, that is per Transactional interface
+ * or container class, and per path for the containers down to a depth.
+ * The bytes of a path include everything below it.
+ * <p>
+ * If a transaction is active, the undo journal of the root is measured as
+ * well, counting only what the journal alone keeps alive, such as
+ * removed values and the copies kept when containers are cleared.
+ * <p>
+ * Sizes assume a 64-bit JVM with compressed pointers and compact strings.
+ * Memory outside the heap, such as the contents of direct or mapped byte
+ * arrays, is not included.
+ * <p>
+ * Example:
+ * <code>
+ * <pre>
+ * Footprint footprint = Footprint.of(catalog, 2);
+ * System.out.println(footprint.getTreeBytes() + " bytes in tree");
+ * System.out.println(footprint.getBytesByType());
+ * </pre>
+ * </code>
+ *
+ * @author Christoffer Lerno
+ */
+public final class Footprint
+{
+	private final static int HEADER = 12;
+	private final static int ARRAY_HEADER = 16;
+	private final static int REFERENCE = 4;
+	private final static String PACKAGE = Footprint.class.getPackage().getName() + ".";
+
+	private final Set<Object> m_visited;
+	private final Map<Class<?>, Layout> m_layouts;
+	private final ArrayDeque<Object> m_pending;
+	private final Map<String, Long> m_bytesByType;
+	private final Map<String, Long> m_bytesByPath;
+	private final Map<String, Long> m_journalBytesByType;
+	private final int m_pathDepth;
+	private Klass m_klass;
+	private boolean m_inTree;
+	private long m_bytes;
+	private long m_treeBytes;
+	private int m_journalLength;
+
+	private Footprint(int pathDepth)
+	{
+		m_visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		m_layouts = new HashMap<Class<?>, Layout>();
+		m_pending = new ArrayDeque<Object>();
+		m_bytesByType = new TreeMap<String, Long>();
+		m_bytesByPath = new LinkedHashMap<String, Long>();
+		m_journalBytesByType = new TreeMap<String, Long>();
+		m_pathDepth = pathDepth;
+		m_klass = null;
+		m_inTree = true;
+		m_bytes = 0;
+		m_treeBytes = 0;
+		m_journalLength = 0;
+	}
+
+	/**
+	 * Estimates the heap used by a tree, reporting the top path only.
+	 *
+	 * @param object the object at the top of the tree to measure.
+	 * @return the estimate.
+	 * @see #of(Transactional, int)
+	 */
+	public static Footprint of(Transactional object)
+	{
+		return of(object, 0);
+	}
+
+	/**
+	 * Estimates the heap used by a tree.
+	 * <p>
+	 * The object does not have to be the top of its tree, but only the
+	 * object and its descendants are measured. The journal of the root is
+	 * measured in either case.
+	 * <p>
+	 * The tree must not be modified during the call.
+	 *
+	 * @param object the object at the top of the tree to measure.
+	 * @param pathDepth the depth of the deepest paths to report, where the
+	 * object itself is at depth 0.
+	 * @return the estimate.
+	 */
+	public static Footprint of(Transactional object, int pathDepth)
+	{
+		Footprint footprint = new Footprint(pathDepth);
+		TransactionalContainer<?> container = TransactionalContainer.containerOf(object);
+		footprint.walkNode(object, container, "", 0);
+		footprint.m_treeBytes = footprint.m_bytes;
+		Root root = container.root();
+		if (root != null && root.isInTransaction())
+		{
+			footprint.walkJournal(root.journal());
+		}
+		return footprint;
+	}
+
+	/**
+	 * Returns the estimated bytes of the tree and of the journal.
+	 *
+	 * @return the total bytes.
+	 */
+	public long getTotalBytes()
+	{
+		return m_bytes;
+	}
+
+	/**
+	 * Returns the estimated bytes of the tree.
+	 *
+	 * @return the bytes retained by the tree.
+	 */
+	public long getTreeBytes()
+	{
+		return m_treeBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes held only by the undo journal.
+	 *
+	 * @return the journal bytes, or 0 if no transaction was active.
+	 */
+	public long getJournalBytes()
+	{
+		return m_bytes - m_treeBytes;
+	}
+
+	/**
+	 * Returns the number of undo records in the journal.
+	 *
+	 * @return the journal length, or 0 if no transaction was active.
+	 */
+	public int getJournalLength()
+	{
+		return m_journalLength;
+	}
+
+	/**
+	 * Returns the bytes of the tree per type.
+	 * <p>
+	 * Objects are reported under the name of their Transactional interface,
+	 * other containers under their simple class name. The bytes of a type
+	 * don't include the bytes of the containers below its objects.
+	 *
+	 * @return the bytes per type, sorted by type name.
+	 */
+	public Map<String, Long> getBytesByType()
+	{
+		return Collections.unmodifiableMap(m_bytesByType);
+	}
+
+	/**
+	 * Returns the bytes of the tree per path.
+	 * <p>
+	 * Paths are written as keys and indices separated by '/', the top of
+	 * the measured tree being "/".
+	 *
+	 * @return the bytes of each container and everything below it, in tree order.
+	 */
+	public Map<String, Long> getBytesByPath()
+	{
+		return Collections.unmodifiableMap(m_bytesByPath);
+	}
+
+	/**
+	 * Returns the bytes of the journal per kind of undo record.
+	 *
+	 * @return the bytes per undo class, sorted by name.
+	 */
+	public Map<String, Long> getJournalBytesByType()
+	{
+		return Collections.unmodifiableMap(m_journalBytesByType);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Footprint[tree=" + m_treeBytes + ", journal=" + getJournalBytes()
+		       + " (" + m_journalLength + " records), types=" + m_bytesByType + "]";
+	}
+
+	private void walkNode(Object node, TransactionalContainer<?> container, String path, int depth)
+	{
+		long start = m_bytes;
+		Klass previous = m_klass;
+		m_klass = container instanceof ProxyInvocationHandler ? ((ProxyInvocationHandler) container).klass() : null;
+		measure(node, node, container);
+		measure(container, node, container);
+		m_klass = previous;
+		add(m_bytesByType, typeOf(node, container), m_bytes - start);
+		// Paths are only built down to the reported depth.
+		String name = path == null ? null : path.length() == 0 ? "/" : path;
+		boolean childPaths = depth < m_pathDepth;
+		if (name != null) m_bytesByPath.put(name, 0L);
+		if (container instanceof Map)
+		{
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) container).entrySet())
+			{
+				walkChild(entry.getValue(), childPaths ? path + "/" + entry.getKey() : null, depth + 1);
+			}
+		}
+		else if (container instanceof List)
+		{
+			List<?> list = (List<?>) container;
+			for (int i = 0; i < list.size(); i++)
+			{
+				walkChild(list.get(i), childPaths ? path + "/" + i : null, depth + 1);
+			}
+		}
+		if (name != null) m_bytesByPath.put(name, m_bytes - start);
+	}
+
+	private void walkChild(Object value, String path, int depth)
+	{
+		TransactionalContainer<?> child = TransactionalContainer.containerOf(value);
+		if (child != null && !m_visited.contains(child))
+		{
+			walkNode(value, child, path, depth);
+		}
+	}
+
+	private static String typeOf(Object node, TransactionalContainer<?> container)
+	{
+		if (node != container) return node.getClass().getInterfaces()[0].getName();
+		return container.getClass().getSimpleName();
+	}
+
+	private void walkJournal(List<Undo> journal)
+	{
+		m_inTree = false;
+		m_journalLength = journal.size();
+		// The journal is a LinkedList.
+		m_bytes += align(HEADER + 3 * REFERENCE + 8) + (long) journal.size() * align(HEADER + 3 * REFERENCE);
+		for (Undo undo : journal)
+		{
+			long start = m_bytes;
+			measure(undo, undo, undo);
+			add(m_journalBytesByType, undo.getClass().getName().substring(PACKAGE.length()), m_bytes - start);
+		}
+	}
+
+	private static void add(Map<String, Long> map, String key, long bytes)
+	{
+		Long old = map.get(key);
+		map.put(key, old == null ? bytes : old + bytes);
+	}
+
+	/**
+	 * Adds the size of all objects reachable from an object.
+	 * <p>
+	 * In the tree, other containers than the node being measured are
+	 * left to be walked as nodes of their own.
+	 */
+	private void measure(Object object, Object node, Object container)
+	{
+		m_pending.push(object);
+		while (!m_pending.isEmpty())
+		{
+			Object o = m_pending.pop();
+			if (isShared(o) || m_visited.contains(o)) continue;
+			if (m_inTree && o != node && o != container
+			    && (o instanceof TransactionalContainer || o instanceof Transactional)) continue;
+			m_visited.add(o);
+			m_bytes += size(o);
+		}
+	}
+
+	private boolean isShared(Object o)
+	{
+		if (o instanceof String) return m_klass != null && m_klass.isPropertyKey((String) o);
+		if (o instanceof Integer) return (Integer) o == Integer.valueOf((Integer) o);
+		if (o instanceof Long) return (Long) o == Long.valueOf((Long) o);
+		return o instanceof Root || o instanceof Klass || o instanceof ElementType
+		       || o instanceof KeyTable || o instanceof BlobTable || o instanceof Boolean
+		       || o instanceof Enum || o instanceof Class;
+	}
+
+	/**
+	 * Returns the size of an object, queuing the objects it references.
+	 */
+	private long size(Object o)
+	{
+		Class<?> c = o.getClass();
+		if (c.isArray()) return arraySize(o, c.getComponentType());
+		if (o instanceof String) return stringSize((String) o);
+		if (Proxy.isProxyClass(c))
+		{
+			m_pending.push(Proxy.getInvocationHandler(o));
+			return align(HEADER + REFERENCE);
+		}
+		if (c.getName().startsWith(PACKAGE)) return layout(c).size(o);
+		return modelSize(o);
+	}
+
+	private long arraySize(Object array, Class<?> component)
+	{
+		int length = java.lang.reflect.Array.getLength(array);
+		if (component.isPrimitive()) return align(ARRAY_HEADER + (long) length * primitiveSize(component));
+		for (Object element : (Object[]) array)
+		{
+			if (element != null) m_pending.push(element);
+		}
+		return align(ARRAY_HEADER + (long) length * REFERENCE);
+	}
+
+	private static long stringSize(String s)
+	{
+		int bytesPerChar = 1;
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (s.charAt(i) > 0xFF)
+			{
+				bytesPerChar = 2;
+				break;
+			}
+		}
+		return align(HEADER + 2 * 4 + REFERENCE) + align(ARRAY_HEADER + (long) s.length() * bytesPerChar);
+	}
+
+	/**
+	 * Estimates the size of JDK classes, whose fields may not be read.
+	 */
+	private long modelSize(Object o)
+	{
+		if (o instanceof Integer || o instanceof Float || o instanceof Short
+		    || o instanceof Character || o instanceof Byte) return align(HEADER + 4);
+		if (o instanceof Number) return align(HEADER + 8);
+		if (o instanceof Date) return align(HEADER + 8 + REFERENCE);
+		if (o instanceof ByteBuffer)
+		{
+			ByteBuffer buffer = (ByteBuffer) o;
+			if (buffer.hasArray()) m_pending.push(buffer.array());
+			return align(HEADER + 8 * 4 + 2 * REFERENCE + 8);
+		}
+		if (o instanceof Map)
+		{
+			Map<?, ?> map = (Map<?, ?>) o;
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				if (entry.getKey() != null) m_pending.push(entry.getKey());
+				if (entry.getValue() != null) m_pending.push(entry.getValue());
+			}
+			return mapSize(map);
+		}
+		if (o instanceof Collection)
+		{
+			Collection<?> collection = (Collection<?>) o;
+			for (Object element : collection)
+			{
+				if (element != null) m_pending.push(element);
+			}
+			return collectionSize(collection);
+		}
+		return align(HEADER + REFERENCE);
+	}
+
+	private static long mapSize(Map<?, ?> map)
+	{
+		int size = map.size();
+		if (map instanceof TreeMap)
+		{
+			return align(HEADER + 4 * REFERENCE + 8) + size * align(HEADER + 5 * REFERENCE + 1);
+		}
+		if (map instanceof IdentityHashMap)
+		{
+			return align(HEADER + 3 * REFERENCE + 8) + align(ARRAY_HEADER + 2L * tableSize(size, 32) * REFERENCE);
+		}
+		long entry = align(HEADER + 4 + 3 * REFERENCE);
+		if (map instanceof LinkedHashMap) entry += 2 * REFERENCE;
+		return align(HEADER + 4 * REFERENCE + 4 * 4) + align(ARRAY_HEADER + (long) tableSize(size, 16) * REFERENCE)
+		       + size * entry;
+	}
+
+	private static long collectionSize(Collection<?> collection)
+	{
+		int size = collection.size();
+		if (collection instanceof LinkedList)
+		{
+			return align(HEADER + 2 * REFERENCE + 8) + size * align(HEADER + 3 * REFERENCE);
+		}
+		if (collection instanceof TreeSet)
+		{
+			return align(HEADER + REFERENCE) + align(HEADER + 4 * REFERENCE + 8) + size * align(HEADER + 5 * REFERENCE + 1);
+		}
+		if (collection instanceof HashSet)
+		{
+			return align(HEADER + REFERENCE) + align(HEADER + 4 * REFERENCE + 4 * 4)
+			       + align(ARRAY_HEADER + (long) tableSize(size, 16) * REFERENCE) + size * align(HEADER + 4 + 3 * REFERENCE);
+		}
+		// Array backed lists, assuming no spare capacity.
+		return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + (long) size * REFERENCE);
+	}
+
+	/**
+	 * Returns the length of a hash table holding a number of entries at
+	 * a load factor of 0.75.
+	 */
+	private static int tableSize(int size, int minimum)
+	{
+		int length = minimum;
+		while (length * 3 < size * 4)
+		{
+			length <<= 1;
+		}
+		return length;
+	}
+
+	private static int primitiveSize(Class<?> c)
+	{
+		if (c == long.class || c == double.class) return 8;
+		if (c == int.class || c == float.class) return 4;
+		if (c == short.class || c == char.class) return 2;
+		return 1;
+	}
+
+	private static long align(long size)
+	{
+		return (size + 7) & ~7L;
+	}
+
+	private Layout layout(Class<?> c)
+	{
+		Layout layout = m_layouts.get(c);
+		if (layout == null)
+		{
+			layout = new Layout(c);
+			m_layouts.put(c, layout);
+		}
+		return layout;
+	}
+
+	/**
+	 * The size and references of a class of this package.
+	 */
+	private final class Layout
+	{
+		private final long m_size;
+		private final List<Field> m_references;
+
+		private Layout(Class<?> c)
+		{
+			long size = HEADER;
+			m_references = new ArrayList<Field>();
+			for (Class<?> type = c; type != null; type = type.getSuperclass())
+			{
+				boolean readable = type.getName().startsWith(PACKAGE);
+				for (Field field : type.getDeclaredFields())
+				{
+					if (Modifier.isStatic(field.getModifiers())) continue;
+					if (field.getType().isPrimitive())
+					{
+						size += primitiveSize(field.getType());
+						continue;
+					}
+					size += REFERENCE;
+					// Fields of JDK superclasses only hold lazily created views.
+					if (readable)
+					{
+						field.setAccessible(true);
+						m_references.add(field);
+					}
+				}
+			}
+			m_size = align(size);
+		}
+
+		private long size(Object o)
+		{
+			try
+			{
+				for (Field field : m_references)
+				{
+					Object value = field.get(o);
+					if (value != null) m_pending.push(value);
+				}
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			return m_size;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.aegik.transactionality;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+
+/**
+ * Declares hash indexes on the elements of a Dict or Array property.
+ * <p>
+ * The annotated getter must return a Dict or Array of a Transactional
+ * type, and each value names a property of that type, using the key of
+ * the property (e.g. "customer-id" for getCustomerId). The index is then
+ * available through {@link Dict#getIndex(String)} or {@link Array#getIndex(String)}.
+ *
+ * @see SortedIndex
+ * @author Christoffer Lerno
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface HashIndex
+{
+	/**
+	 * The keys of the properties to index.
+	 */
+	String[] value();
+}
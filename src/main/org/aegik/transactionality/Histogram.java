@@ -0,0 +1,150 @@
+package org.aegik.transactionality;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with power of two buckets.
+ * <p>
+ * Bucket 0 counts zeroes and bucket n counts values from 2<sup>n-1</sup>
+ * up to 2<sup>n</sup> - 1, so recording a value is a few atomic
+ * increments regardless of the range of the values.
+ * <p>
+ * <em>This class is thread-safe.</em>
+ *
+ * @see TransactionMetrics
+ * @author Christoffer Lerno
+ */
+public final class Histogram
+{
+	private final static int BUCKETS = 64;
+
+	private final AtomicLongArray m_buckets;
+	private final AtomicLong m_count;
+	private final AtomicLong m_sum;
+	private final AtomicLong m_max;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public Histogram()
+	{
+		m_buckets = new AtomicLongArray(BUCKETS);
+		m_count = new AtomicLong();
+		m_sum = new AtomicLong();
+		m_max = new AtomicLong();
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value the value, negative values are recorded as 0.
+	 */
+	public void record(long value)
+	{
+		if (value < 0) value = 0;
+		m_buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		m_count.incrementAndGet();
+		m_sum.addAndGet(value);
+		long max = m_max.get();
+		while (value > max && !m_max.compareAndSet(max, value))
+		{
+			max = m_max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the number of values.
+	 */
+	public long getCount()
+	{
+		return m_count.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded.
+	 *
+	 * @return the mean, or 0 if no values have been recorded.
+	 */
+	public double getMean()
+	{
+		long count = m_count.get();
+		return count == 0 ? 0 : (double) m_sum.get() / count;
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return the largest value, or 0 if no values have been recorded.
+	 */
+	public long getMax()
+	{
+		return m_max.get();
+	}
+
+	/**
+	 * Returns an upper bound of a percentile of the values.
+	 *
+	 * @param percentile the percentile, from 0 to 100.
+	 * @return the upper bound of the bucket containing the percentile, or 0
+	 * if no values have been recorded.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] buckets = getBuckets();
+		long total = 0;
+		for (long count : buckets)
+		{
+			total += count;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++)
+		{
+			seen += buckets[i];
+			if (seen >= rank && seen > 0) return Math.min(upperBound(i), getMax());
+		}
+		return 0;
+	}
+
+	private static long upperBound(int bucket)
+	{
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	/**
+	 * Returns the number of values in each bucket.
+	 *
+	 * @return a copy of the buckets, with trailing empty buckets removed.
+	 */
+	public long[] getBuckets()
+	{
+		int length = BUCKETS;
+		while (length > 0 && m_buckets.get(length - 1) == 0)
+		{
+			length--;
+		}
+		long[] buckets = new long[length];
+		for (int i = 0; i < length; i++)
+		{
+			buckets[i] = m_buckets.get(i);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Removes all recorded values.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			m_buckets.set(i, 0);
+		}
+		m_count.set(0);
+		m_sum.set(0);
+		m_max.set(0);
+	}
+}
@@ -0,0 +1,543 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of ints with transactional support.
+ * <p>
+ * Works like {@link Members}, but the members are stored unboxed in an
+ * open addressing table, so no object is allocated per member and the
+ * int methods never box. Members are stored as a plist list of integers.
+ *
+ * @author Christoffer Lerno
+ */
+public class IntMembers extends TransactionalContainer<Integer> implements Set<Integer>, NonPrimitive
+{
+	private final static int[] EMPTY_TABLE = new int[0];
+	private final static int MINIMUM_CAPACITY = 8;
+
+	private int[] m_table;
+	private boolean m_hasZero;
+	private int m_size;
+
+	/**
+	 * Creates an empty set with transactional support.
+	 *
+	 * @param root the root owning this set. I.e. that handles
+	 * transactions for this set.
+	 */
+	public IntMembers(Root root)
+	{
+		super(root, null);
+		m_table = EMPTY_TABLE;
+		m_hasZero = false;
+		m_size = 0;
+	}
+
+	/**
+	 * Creates an empty set without transactional support.
+	 */
+	public IntMembers()
+	{
+		this((Root) null);
+	}
+
+	/**
+	 * Creates a copy of an existing set.
+	 *
+	 * @param original the original set.
+	 */
+	public IntMembers(IntMembers original)
+	{
+		this(original.root());
+		m_table = original.m_table.clone();
+		m_hasZero = original.m_hasZero;
+		m_size = original.m_size;
+	}
+
+	private static int slot(int value, int mask)
+	{
+		int hash = value * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Tests if a value is a member of this set.
+	 *
+	 * @param value the value to test.
+	 * @return true if the value is a member.
+	 */
+	public boolean contains(int value)
+	{
+		if (value == 0) return m_hasZero;
+		if (m_table.length == 0) return false;
+		int mask = m_table.length - 1;
+		for (int i = slot(value, mask); m_table[i] != 0; i = (i + 1) & mask)
+		{
+			if (m_table[i] == value) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a member to this set.
+	 *
+	 * @param value the member to add.
+	 * @return true if the member was not already in the set.
+	 */
+	public boolean add(int value)
+	{
+		checkMutable();
+		if (!insert(value)) return false;
+		addUndo(new AddUndo(this, value));
+		return true;
+	}
+
+	/**
+	 * Removes a member from this set.
+	 *
+	 * @param value the member to remove.
+	 * @return true if the set contained the member.
+	 */
+	public boolean remove(int value)
+	{
+		checkMutable();
+		if (!delete(value)) return false;
+		addUndo(new RemoveUndo(this, value));
+		return true;
+	}
+
+	private boolean insert(int value)
+	{
+		if (value == 0)
+		{
+			if (m_hasZero) return false;
+			m_hasZero = true;
+			m_size++;
+			return true;
+		}
+		if ((m_size + 1) * 4 > m_table.length * 3) resize();
+		int mask = m_table.length - 1;
+		int i = slot(value, mask);
+		while (m_table[i] != 0)
+		{
+			if (m_table[i] == value) return false;
+			i = (i + 1) & mask;
+		}
+		m_table[i] = value;
+		m_size++;
+		return true;
+	}
+
+	private boolean delete(int value)
+	{
+		if (value == 0)
+		{
+			if (!m_hasZero) return false;
+			m_hasZero = false;
+			m_size--;
+			return true;
+		}
+		if (m_table.length == 0) return false;
+		int mask = m_table.length - 1;
+		int hole = slot(value, mask);
+		while (m_table[hole] != value)
+		{
+			if (m_table[hole] == 0) return false;
+			hole = (hole + 1) & mask;
+		}
+		for (int i = (hole + 1) & mask; m_table[i] != 0; i = (i + 1) & mask)
+		{
+			int slot = slot(m_table[i], mask);
+			// Move the entry if its preferred slot is not within (hole, i].
+			if (((i - slot) & mask) >= ((i - hole) & mask))
+			{
+				m_table[hole] = m_table[i];
+				hole = i;
+			}
+		}
+		m_table[hole] = 0;
+		m_size--;
+		return true;
+	}
+
+	private void resize()
+	{
+		int[] old = m_table;
+		int capacity = Math.max(MINIMUM_CAPACITY, old.length * 2);
+		m_table = new int[capacity];
+		rehash(old);
+	}
+
+	private void rehash(int[] values)
+	{
+		int mask = m_table.length - 1;
+		for (int value : values)
+		{
+			if (value == 0) continue;
+			int i = slot(value, mask);
+			while (m_table[i] != 0)
+			{
+				i = (i + 1) & mask;
+			}
+			m_table[i] = value;
+		}
+	}
+
+	/**
+	 * Returns the members of this set.
+	 *
+	 * @return a new array with the members in no particular order.
+	 */
+	public int[] toIntArray()
+	{
+		int[] values = new int[m_size];
+		int i = 0;
+		if (m_hasZero) values[i++] = 0;
+		for (int value : m_table)
+		{
+			if (value != 0) values[i++] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * Performs an action for each member of this set, without boxing.
+	 *
+	 * @param action the action to perform.
+	 */
+	public void forEachInt(IntConsumer action)
+	{
+		if (m_hasZero) action.accept(0);
+		for (int value : m_table)
+		{
+			if (value != 0) action.accept(value);
+		}
+	}
+
+	@Override
+	public void forEach(final Consumer<? super Integer> action)
+	{
+		forEachInt(new IntConsumer()
+		{
+			public void accept(int value)
+			{
+				action.accept(value);
+			}
+		});
+	}
+
+	public boolean add(Integer value)
+	{
+		return add(value.intValue());
+	}
+
+	public boolean contains(Object o)
+	{
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	public boolean remove(Object o)
+	{
+		checkMutable();
+		return o instanceof Integer && remove(((Integer) o).intValue());
+	}
+
+	public boolean containsAll(Collection<?> collection)
+	{
+		for (Object o : collection)
+		{
+			if (!contains(o)) return false;
+		}
+		return true;
+	}
+
+	public boolean addAll(Collection<? extends Integer> collection)
+	{
+		boolean changed = false;
+		for (Integer value : collection)
+		{
+			changed |= add(value.intValue());
+		}
+		return changed;
+	}
+
+	public boolean removeAll(Collection<?> collection)
+	{
+		boolean changed = false;
+		for (Object o : collection)
+		{
+			changed |= remove(o);
+		}
+		return changed;
+	}
+
+	public boolean retainAll(Collection<?> collection)
+	{
+		boolean changed = false;
+		for (int value : toIntArray())
+		{
+			if (!collection.contains(value)) changed |= remove(value);
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes all members of this set.
+	 */
+	public void clear()
+	{
+		checkMutable();
+		if (m_size == 0) return;
+		addUndo(new ClearUndo(this));
+		m_table = EMPTY_TABLE;
+		m_hasZero = false;
+		m_size = 0;
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	public boolean isEmpty()
+	{
+		return m_size == 0;
+	}
+
+	/**
+	 * Returns an iterator over the members of this set.
+	 * <p>
+	 * Note that this iterator does not support remove.
+	 *
+	 * @return an iterator over the members, boxing each of them.
+	 */
+	public Iterator<Integer> iterator()
+	{
+		return new Iterator<Integer>()
+		{
+			private final int[] m_table = IntMembers.this.m_table;
+			private boolean m_zero = m_hasZero;
+			private int m_index = advance(0);
+
+			private int advance(int index)
+			{
+				while (index < m_table.length && m_table[index] == 0)
+				{
+					index++;
+				}
+				return index;
+			}
+
+			public boolean hasNext()
+			{
+				return m_zero || m_index < m_table.length;
+			}
+
+			public Integer next()
+			{
+				if (m_zero)
+				{
+					m_zero = false;
+					return 0;
+				}
+				if (m_index >= m_table.length) throw new NoSuchElementException();
+				int value = m_table[m_index];
+				m_index = advance(m_index + 1);
+				return value;
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public Object[] toArray()
+	{
+		Object[] array = new Object[m_size];
+		int i = 0;
+		for (int value : toIntArray())
+		{
+			array[i++] = value;
+		}
+		return array;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	public <T> T[] toArray(T[] a)
+	{
+		if (a.length < m_size)
+		{
+			a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), m_size);
+		}
+		int i = 0;
+		for (int value : toIntArray())
+		{
+			a[i++] = (T) Integer.valueOf(value);
+		}
+		if (a.length > m_size) a[m_size] = null;
+		return a;
+	}
+
+	/**
+	 * Tests this set for equality with another set.
+	 *
+	 * @param o another object to compare to.
+	 * @return true if the other object is a Set with the same members.
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (o == this) return true;
+		if (!(o instanceof Set)) return false;
+		Set<?> set = (Set<?>) o;
+		return set.size() == m_size && containsAll(set);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = 0;
+		for (int value : m_table)
+		{
+			hash += value;
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return Arrays.toString(toIntArray());
+	}
+
+	public List<Object> primitive()
+	{
+		ArrayList<Object> list = new ArrayList<Object>(m_size);
+		for (int value : toIntArray())
+		{
+			list.add(value);
+		}
+		return list;
+	}
+
+	void addMember(Object value)
+	{
+		add(member(value));
+	}
+
+	void removeMember(Object value)
+	{
+		remove(member(value));
+	}
+
+	private static int member(Object value)
+	{
+		if (!(value instanceof Integer)) throw new ValidationException("Illegal member " + value);
+		return (Integer) value;
+	}
+
+	/**
+	 * Replaces the table with one sized for the current members.
+	 */
+	void compact()
+	{
+		int[] old = m_table;
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity * 3 < m_size * 4)
+		{
+			capacity <<= 1;
+		}
+		if (capacity >= old.length) return;
+		m_table = new int[capacity];
+		rehash(old);
+	}
+
+	/**
+	 * Implements undo for a clear.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class ClearUndo implements Undo
+	{
+		private final IntMembers m_members;
+		private final int[] m_table;
+		private final boolean m_hasZero;
+		private final int m_size;
+
+		private ClearUndo(IntMembers members)
+		{
+			m_members = members;
+			m_table = members.m_table;
+			m_hasZero = members.m_hasZero;
+			m_size = members.m_size;
+		}
+
+		public void undo()
+		{
+			m_members.m_table = m_table;
+			m_members.m_hasZero = m_hasZero;
+			m_members.m_size = m_size;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_members);
+		}
+	}
+
+	/**
+	 * Implements undo for an add.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class AddUndo implements Undo
+	{
+		private final IntMembers m_members;
+		private final int m_value;
+
+		private AddUndo(IntMembers members, int value)
+		{
+			m_members = members;
+			m_value = value;
+		}
+
+		public void undo()
+		{
+			m_members.delete(m_value);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.member(m_members, m_value, true);
+		}
+	}
+
+	/**
+	 * Implements undo for a remove.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class RemoveUndo implements Undo
+	{
+		private final IntMembers m_members;
+		private final int m_value;
+
+		private RemoveUndo(IntMembers members, int value)
+		{
+			m_members = members;
+			m_value = value;
+		}
+
+		public void undo()
+		{
+			m_members.insert(m_value);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.member(m_members, m_value, false);
+		}
+	}
+}
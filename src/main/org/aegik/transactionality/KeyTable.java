@@ -0,0 +1,69 @@
+package org.aegik.transactionality;
+
+/**
+ * A bounded table of interned dictionary keys.
+ * <p>
+ * Keys that are not part of a schema, such as the keys of a {@link Dict}
+ * or of a wildcard property, are looked up in this table when they are
+ * loaded or put, so that equal keys share a single String instance and
+ * lookups can succeed on identity.
+ * <p>
+ * The table is direct-mapped: each key has exactly one slot, and a new
+ * key simply replaces whatever key occupied the slot before. The memory
+ * used is therefore bounded by the capacity, at the price of occasionally
+ * failing to share a key.
+ * <p>
+ * <em>This class is thread-safe.</em> Concurrent calls may miss a shared
+ * instance, but always return a key equal to the argument.
+ *
+ * @see Root#setKeyTable(KeyTable)
+ * @author Christoffer Lerno
+ */
+public final class KeyTable
+{
+	private final String[] m_keys;
+
+	/**
+	 * Creates a key table.
+	 *
+	 * @param capacity the maximum number of keys held, rounded up to
+	 * a power of two.
+	 * @throws IllegalArgumentException if the capacity is not positive.
+	 */
+	public KeyTable(int capacity)
+	{
+		if (capacity <= 0) throw new IllegalArgumentException("Illegal capacity " + capacity);
+		int size = 1;
+		while (size < capacity)
+		{
+			size <<= 1;
+		}
+		m_keys = new String[size];
+	}
+
+	/**
+	 * Returns the shared instance of a key.
+	 *
+	 * @param key the key to intern.
+	 * @return a String equal to the key, shared with previous keys if possible.
+	 */
+	public String intern(String key)
+	{
+		int hash = key.hashCode() * 0x9E3779B9;
+		int index = (hash ^ (hash >>> 16)) & (m_keys.length - 1);
+		String current = m_keys[index];
+		if (current != null && (current == key || current.equals(key))) return current;
+		m_keys[index] = key;
+		return key;
+	}
+
+	/**
+	 * Returns the capacity of this table.
+	 *
+	 * @return the maximum number of keys held.
+	 */
+	public int capacity()
+	{
+		return m_keys.length;
+	}
+}
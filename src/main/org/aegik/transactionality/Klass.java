@@ -12,13 +12,13 @@ import java.lang.reflect.Type;
  * @author Christoffer Lerno */
 public class Klass
 {
-	private final static Set<Class> PRIMITIVES = new HashSet<Class>(Arrays.asList(String.class,
-	                                                                              Object.class,
-	                                                                              Integer.class,
-	                                                                              Double.class,
-	                                                                              Boolean.class,
-	                                                                              Date.class));
-	private final static Map<Class, Klass> ACTIONS = new HashMap<Class, Klass>();
+	private final static Set<Class<?>> PRIMITIVES = new HashSet<Class<?>>(Arrays.asList(String.class,
+	                                                                                    Object.class,
+	                                                                                    Integer.class,
+	                                                                                    Double.class,
+	                                                                                    Boolean.class,
+	                                                                                    Date.class));
+	private final static Map<Class<?>, Klass> ACTIONS = new HashMap<Class<?>, Klass>();
 	private static final String ANY_KEY = "*";
 
 	/**
@@ -51,13 +51,15 @@ public class Klass
 	}
 
 	private final Map<String, KlassMethod> m_actions;
-	private final Map<String, ElementType> m_objectTypes;
+	private final Map<String, ElementType<?>> m_objectTypes;
+	private final StringMap<String> m_keys;
 	private final TreeSet<String> m_optional;
 
 	private Klass(Class<? extends Transactional> c)
 	{
 		m_actions = new HashMap<String, KlassMethod>();
-		m_objectTypes = new HashMap<String, ElementType>();
+		m_objectTypes = new HashMap<String, ElementType<?>>();
+		m_keys = new StringMap<String>();
 		m_optional = new TreeSet<String>();
 		initialize(c);
 	}
@@ -188,8 +190,7 @@ public class Klass
 		{
 			public Object invoke(ProxyInvocationHandler proxy, Object[] args) throws Exception
 			{
-				proxy.root().commit();
-				return null;
+				return proxy.root().commit();
 			}
 		});
 		m_actions.put("rollback", new KlassMethod()
@@ -208,6 +209,22 @@ public class Klass
 			}
 		});
 
+		m_actions.put("freeze", new KlassMethod()
+		{
+			public Object invoke(ProxyInvocationHandler proxy, Object[] args) throws Exception
+			{
+				proxy.root().freeze();
+				return null;
+			}
+		});
+		m_actions.put("isFrozen", new KlassMethod()
+		{
+			public Object invoke(ProxyInvocationHandler proxy, Object[] args) throws Exception
+			{
+				return proxy.root().isFrozen();
+			}
+		});
+
 		m_actions.put("beginTransaction", new KlassMethod()
 		{
 			public Object invoke(ProxyInvocationHandler proxy, Object[] args) throws Exception
@@ -229,13 +246,8 @@ public class Klass
 		Set<String> valuesSet = new HashSet<String>(m_objectTypes.keySet());
 		for (Map.Entry<String, Object> entry : map.entrySet())
 		{
-			ElementType type = m_objectTypes.get(entry.getKey());
-			if (type == null)
-			{
-				type = m_objectTypes.get(ANY_KEY);
-			}
+			ElementType<?> type = elementType(entry.getKey());
 			valuesSet.remove(entry.getKey());
-			if (type == null) throw new ValidationException("Unexpected value '" + entry.getKey() + "'");
 			try
 			{
 				proxy.put(entry.getKey(), type.newObject(proxy.root(), entry.getValue()));
@@ -250,13 +262,95 @@ public class Klass
 		if (valuesSet.size() > 0) throw new ValidationException("Missing required value(s): " + valuesSet);
 	}
 
+	/**
+	 * Returns the shared instance of a key.
+	 * <p>
+	 * Property keys of this class are replaced by the instance used by the
+	 * schema. Other keys are interned using the key table of the root, if any.
+	 *
+	 * @param key the key.
+	 * @param root the root of the object the key is used with, may be null.
+	 * @return a String equal to the key.
+	 */
+	String canonicalKey(String key, Root root)
+	{
+		String canonical = m_keys.get(key);
+		if (canonical != null) return canonical;
+		KeyTable table = root == null ? null : root.getKeyTable();
+		return table == null ? key : table.intern(key);
+	}
+
+	/**
+	 * Tests if a String is the instance of a property key held by this class.
+	 *
+	 * @param key the key to test.
+	 * @return true if the key is the schema instance of a property key.
+	 */
+	boolean isPropertyKey(String key)
+	{
+		return m_keys.get(key) == key;
+	}
+
+	/**
+	 * Returns the number of properties of this class.
+	 *
+	 * @return the number of properties.
+	 */
+	int propertyCount()
+	{
+		return m_objectTypes.size();
+	}
+
+	/**
+	 * Generates random data for an object of this class.
+	 * <p>
+	 * Properties are generated in key order, so that the same generator
+	 * state always gives the same data.
+	 *
+	 * @param generator the generator to use.
+	 * @param depth the nesting depth of the object.
+	 * @return the primitive form of a random object.
+	 */
+	Map<String, Object> generate(DataGenerator generator, int depth)
+	{
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (String key : new TreeSet<String>(m_objectTypes.keySet()))
+		{
+			if (key.equals(ANY_KEY)) continue;
+			ElementType<?> type = m_objectTypes.get(key);
+			if (m_optional.contains(key) && !generator.includeOptional(type, depth)) continue;
+			map.put(key, type.generate(generator, depth));
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the element type of a property.
+	 *
+	 * @param key the property key.
+	 * @return the element type of the property, or the type of the
+	 * wildcard property if there is no property with this key.
+	 * @throws ValidationException if the key is not a property of this class.
+	 */
+	@SuppressWarnings({"unchecked"})
+	ElementType<Object> elementType(String key)
+	{
+		ElementType<?> type = m_objectTypes.get(key);
+		if (type == null)
+		{
+			type = m_objectTypes.get(ANY_KEY);
+		}
+		if (type == null) throw new ValidationException("Unexpected value '" + key + "'");
+		return (ElementType<Object>) type;
+	}
+
 	private void createDelete(Method method)
 	{
 		verifyParameters(method);
 		String name = method.getName();
-		final String key = keyFromMethod(name.substring(6));
+		final String key = canonicalKey(keyFromMethod(name.substring(6)), null);
 		m_optional.add(key);
-		ElementType objectType = m_objectTypes.get(key);
+		ElementType<?> objectType = m_objectTypes.get(key);
 		if (objectType == null) throw new IllegalArgumentException(name + " without getter in "
 		                                                           + method.getDeclaringClass());
 		if (!method.getReturnType().equals(boolean.class))
@@ -278,8 +372,8 @@ public class Klass
 		if (isPrimitive(method.getReturnType())) throw new IllegalArgumentException("Primitive new " +
 		                                                                            name + " in "
 		                                                                            + method.getDeclaringClass());
-		final String key = keyFromMethod(name.substring(6));
-		final ElementType objectType = m_objectTypes.get(key);
+		final String key = canonicalKey(keyFromMethod(name.substring(6)), null);
+		final ElementType<?> objectType = m_objectTypes.get(key);
 		if (objectType == null) throw new IllegalArgumentException(name + " without getter in "
 		                                                           + method.getDeclaringClass());
 		if (!objectType.getType().equals(method.getGenericReturnType()))
@@ -300,8 +394,8 @@ public class Klass
 
 	private void createSetter(Method method)
 	{
-		final String key = keyFromMethod(method.getName().substring(3));
-		ElementType objectType = m_objectTypes.get(key);
+		final String key = canonicalKey(keyFromMethod(method.getName().substring(3)), null);
+		ElementType<?> objectType = m_objectTypes.get(key);
 		if (objectType == null)
 			throw new IllegalArgumentException("Setter " + method.getName() + " without getter in "
 			                                   + method.getDeclaringClass());
@@ -322,8 +416,22 @@ public class Klass
 	{
 		verifyParameters(method);
 		final String key = keyFromMethod(method.getName().substring(3));
-		ElementType type = ElementType.getReturnType(method.getGenericReturnType());
+		ElementType<?> type = ElementType.getReturnType(method.getGenericReturnType());
+		Storage storage = method.getAnnotation(Storage.class);
+		if (storage != null)
+		{
+			type = ElementType.stored(type, storage.value());
+		}
+		HashIndex hashIndex = method.getAnnotation(HashIndex.class);
+		SortedIndex sortedIndex = method.getAnnotation(SortedIndex.class);
+		if (hashIndex != null || sortedIndex != null)
+		{
+			type = ElementType.indexed(type,
+			                           hashIndex == null ? new String[0] : hashIndex.value(),
+			                           sortedIndex == null ? new String[0] : sortedIndex.value());
+		}
 		m_objectTypes.put(key, type);
+		m_keys.put(key, key);
 		if (method.getAnnotation(Optional.class) != null || type.getType().equals(Object.class))
 		{
 			m_optional.add(key);
@@ -360,7 +468,7 @@ public class Klass
 		return m_actions.get(method.getName()).invoke(proxy, args);
 	}
 
-	public static boolean isPrimitive(Class c)
+	public static boolean isPrimitive(Class<?> c)
 	{
 		return PRIMITIVES.contains(c) || Enum.class.isAssignableFrom(c);
 	}
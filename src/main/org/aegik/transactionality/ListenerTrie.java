@@ -0,0 +1,188 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * A trie of commit listeners keyed by path prefix.
+ * <p>
+ * Each node of the trie corresponds to a dictionary key or an array index,
+ * so dispatching a change only visits the nodes along its path.
+ *
+ * @author Christoffer Lerno
+ */
+class ListenerTrie
+{
+	private final Node m_top;
+
+	ListenerTrie()
+	{
+		m_top = new Node();
+	}
+
+	/**
+	 * Adds a listener for a path prefix.
+	 *
+	 * @param listener the listener to add.
+	 * @param executor the executor delivering notifications, or null to
+	 * deliver them on the committing thread.
+	 * @param prefix the path prefix, a sequence of String keys and Integer indices.
+	 * @throws IllegalArgumentException if the prefix contains anything but
+	 * Strings and Integers.
+	 */
+	void add(CommitListener listener, Executor executor, Object... prefix)
+	{
+		if (listener == null) throw new NullPointerException();
+		Node node = m_top;
+		for (Object key : prefix)
+		{
+			if (!(key instanceof String || key instanceof Integer))
+			{
+				throw new IllegalArgumentException("Illegal path key " + key);
+			}
+			Node child = node.m_children.get(key);
+			if (child == null)
+			{
+				child = new Node();
+				node.m_children.put(key, child);
+			}
+			node = child;
+		}
+		node.m_subscriptions.add(new Subscription(listener, executor));
+	}
+
+	/**
+	 * Removes all registrations of a listener.
+	 *
+	 * @param listener the listener to remove.
+	 * @return true if the listener was registered.
+	 */
+	boolean remove(CommitListener listener)
+	{
+		return m_top.remove(listener);
+	}
+
+	/**
+	 * Tests if there are no listeners.
+	 *
+	 * @return true if no listener is registered.
+	 */
+	boolean isEmpty()
+	{
+		return m_top.m_subscriptions.isEmpty() && m_top.m_children.isEmpty();
+	}
+
+	/**
+	 * Notifies all listeners affected by the changes, with one notification
+	 * per listener registration.
+	 *
+	 * @param changes the committed changes.
+	 * @throws RuntimeException the first exception thrown by a listener
+	 * called on this thread, once all listeners have been notified.
+	 */
+	void dispatch(ChangeSet changes)
+	{
+		if (changes.isEmpty() || isEmpty()) return;
+		Map<Subscription, List<ChangeSet.Change>> matches = new LinkedHashMap<Subscription, List<ChangeSet.Change>>();
+		List<Subscription> found = new ArrayList<Subscription>();
+		for (ChangeSet.Change change : changes)
+		{
+			found.clear();
+			Node node = m_top;
+			for (Object key : change.getPath())
+			{
+				found.addAll(node.m_subscriptions);
+				node = node.m_children.get(key);
+				if (node == null) break;
+			}
+			if (node != null) node.collectAll(found);
+			for (Subscription subscription : found)
+			{
+				List<ChangeSet.Change> list = matches.get(subscription);
+				if (list == null)
+				{
+					list = new ArrayList<ChangeSet.Change>();
+					matches.put(subscription, list);
+				}
+				list.add(change);
+			}
+		}
+		RuntimeException exception = null;
+		for (Map.Entry<Subscription, List<ChangeSet.Change>> entry : matches.entrySet())
+		{
+			ChangeSet matching = new ChangeSet(changes.getSequence(), changes.getTimestamp(), entry.getValue());
+			try
+			{
+				entry.getKey().deliver(matching);
+			}
+			catch (RuntimeException e)
+			{
+				if (exception == null) exception = e;
+			}
+		}
+		if (exception != null) throw exception;
+	}
+
+	private static class Node
+	{
+		private final Map<Object, Node> m_children = new HashMap<Object, Node>();
+		private final List<Subscription> m_subscriptions = new ArrayList<Subscription>();
+
+		private void collectAll(List<Subscription> subscriptions)
+		{
+			subscriptions.addAll(m_subscriptions);
+			for (Node child : m_children.values())
+			{
+				child.collectAll(subscriptions);
+			}
+		}
+
+		private boolean remove(CommitListener listener)
+		{
+			boolean removed = false;
+			for (Iterator<Subscription> it = m_subscriptions.iterator(); it.hasNext();)
+			{
+				if (it.next().m_listener == listener)
+				{
+					it.remove();
+					removed = true;
+				}
+			}
+			for (Iterator<Node> it = m_children.values().iterator(); it.hasNext();)
+			{
+				Node child = it.next();
+				removed |= child.remove(listener);
+				if (child.m_subscriptions.isEmpty() && child.m_children.isEmpty()) it.remove();
+			}
+			return removed;
+		}
+	}
+
+	private static class Subscription
+	{
+		private final CommitListener m_listener;
+		private final Executor m_executor;
+
+		private Subscription(CommitListener listener, Executor executor)
+		{
+			m_listener = listener;
+			m_executor = executor;
+		}
+
+		private void deliver(final ChangeSet changes)
+		{
+			if (m_executor == null)
+			{
+				m_listener.committed(changes);
+				return;
+			}
+			m_executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					m_listener.committed(changes);
+				}
+			});
+		}
+	}
+}
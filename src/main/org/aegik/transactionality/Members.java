@@ -0,0 +1,345 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A set of primitive values with transactional support.
+ * <p>
+ * Unlike using an Array as a set, membership tests, additions and removals
+ * are O(1). Members are stored as a plist list, so a property may change
+ * from Array to Members without changing the stored data, but the order
+ * of the members is not preserved.
+ * <p>
+ * Only primitive members are supported, e.g. Strings, Integers and enums.
+ *
+ * @see IntMembers
+ * @author Christoffer Lerno
+ */
+public class Members<C> extends TransactionalContainer<C> implements Set<C>, NonPrimitive
+{
+	private HashSet<C> m_set;
+
+	/**
+	 * Creates an empty set with transactional support, belonging to the given root.
+	 *
+	 * @param root the root owning this set. I.e. that handles
+	 * transactions for this set.
+	 * @param internalType the object type for the members.
+	 */
+	Members(Root root, ElementType<C> internalType)
+	{
+		super(root, internalType);
+		m_set = new HashSet<C>();
+	}
+
+	/**
+	 * Creates a copy of an existing set.
+	 *
+	 * @param original the original set.
+	 */
+	public Members(Members<C> original)
+	{
+		this(original.root(), original.internalType());
+		m_set.addAll(original.m_set);
+	}
+
+	/**
+	 * Adds a member to this set.
+	 *
+	 * @param o the member to add.
+	 * @return true if the member was not already in the set.
+	 * @throws NullPointerException if the member is null.
+	 */
+	public boolean add(C o)
+	{
+		if (o == null) throw new NullPointerException();
+		checkMutable();
+		if (!m_set.add(o)) return false;
+		addUndo(new AddUndo<C>(this, o));
+		return true;
+	}
+
+	/**
+	 * Adds all members of a collection to this set.
+	 *
+	 * @param collection the members to add.
+	 * @return true if this set changed as a result of the call.
+	 * @throws NullPointerException if the collection contains null.
+	 */
+	public boolean addAll(Collection<? extends C> collection)
+	{
+		boolean changed = false;
+		for (C o : collection)
+		{
+			changed |= add(o);
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes a member from this set.
+	 *
+	 * @param o the member to remove.
+	 * @return true if the set contained the member.
+	 */
+	@SuppressWarnings({"unchecked"})
+	public boolean remove(Object o)
+	{
+		checkMutable();
+		if (!m_set.remove(o)) return false;
+		addUndo(new RemoveUndo<C>(this, (C) o));
+		return true;
+	}
+
+	/**
+	 * Removes all members contained in a collection.
+	 *
+	 * @param collection the members to remove.
+	 * @return true if this set changed as a result of the call.
+	 */
+	public boolean removeAll(Collection<?> collection)
+	{
+		boolean changed = false;
+		for (Object o : collection)
+		{
+			changed |= remove(o);
+		}
+		return changed;
+	}
+
+	/**
+	 * Retains only the members contained in a collection.
+	 *
+	 * @param collection the members to retain.
+	 * @return true if this set changed as a result of the call.
+	 */
+	public boolean retainAll(Collection<?> collection)
+	{
+		boolean changed = false;
+		for (Object o : m_set.toArray())
+		{
+			if (!collection.contains(o)) changed |= remove(o);
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes all members of this set.
+	 */
+	public void clear()
+	{
+		checkMutable();
+		if (m_set.isEmpty()) return;
+		addUndo(new ClearUndo<C>(this));
+		m_set = new HashSet<C>();
+	}
+
+	/**
+	 * Tests if a value is a member of this set.
+	 *
+	 * @param o the value to test.
+	 * @return true if the value is a member.
+	 */
+	public boolean contains(Object o)
+	{
+		return m_set.contains(o);
+	}
+
+	public boolean containsAll(Collection<?> collection)
+	{
+		return m_set.containsAll(collection);
+	}
+
+	public int size()
+	{
+		return m_set.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return m_set.isEmpty();
+	}
+
+	/**
+	 * Returns an iterator over the members of this set.
+	 * <p>
+	 * Note that this iterator does not support remove.
+	 *
+	 * @return an iterator over the members.
+	 */
+	public Iterator<C> iterator()
+	{
+		return Collections.unmodifiableSet(m_set).iterator();
+	}
+
+	/**
+	 * Performs an action for each member of this set.
+	 *
+	 * @param action the action to perform.
+	 */
+	@Override
+	public void forEach(Consumer<? super C> action)
+	{
+		m_set.forEach(action);
+	}
+
+	public Object[] toArray()
+	{
+		return m_set.toArray();
+	}
+
+	@SuppressWarnings({"SuspiciousToArrayCall"})
+	public <T> T[] toArray(T[] a)
+	{
+		return m_set.toArray(a);
+	}
+
+	/**
+	 * Tests this set for equality with another set.
+	 *
+	 * @param o another object to compare to.
+	 * @return true if the other object is a Set with the same members.
+	 */
+	@SuppressWarnings({"EqualsWhichDoesntCheckParameterClass", "NonFinalFieldReferenceInEquals"})
+	@Override
+	public boolean equals(Object o)
+	{
+		return m_set.equals(o);
+	}
+
+	@SuppressWarnings({"NonFinalFieldReferencedInHashCode"})
+	@Override
+	public int hashCode()
+	{
+		return m_set.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_set.toString();
+	}
+
+	public List<Object> primitive()
+	{
+		ArrayList<Object> list = new ArrayList<Object>(m_set.size());
+		for (C member : m_set)
+		{
+			list.add(Klass.getPrimitive(member));
+		}
+		return list;
+	}
+
+	void addMember(Object value)
+	{
+		add(member(value));
+	}
+
+	void removeMember(Object value)
+	{
+		remove(member(value));
+	}
+
+	private C member(Object value)
+	{
+		if (internalType() == null) throw new ValidationException("Object type not defined.");
+		return internalType().newObject(root(), value);
+	}
+
+	/**
+	 * Replaces the backing set with one sized for the current members.
+	 */
+	void compact()
+	{
+		m_set = new HashSet<C>(m_set);
+	}
+
+	/**
+	 * Implements undo for a clear.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class ClearUndo<C> implements Undo
+	{
+		private final Members<C> m_members;
+		private final HashSet<C> m_old;
+
+		private ClearUndo(Members<C> members)
+		{
+			m_members = members;
+			m_old = members.m_set;
+		}
+
+		public void undo()
+		{
+			m_members.m_set = m_old;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_members);
+		}
+	}
+
+	/**
+	 * Implements undo for an add.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class AddUndo<C> implements Undo
+	{
+		private final Members<C> m_members;
+		private final C m_member;
+
+		private AddUndo(Members<C> members, C member)
+		{
+			m_members = members;
+			m_member = member;
+		}
+
+		public void undo()
+		{
+			m_members.m_set.remove(m_member);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.member(m_members, m_member, true);
+		}
+	}
+
+	/**
+	 * Implements undo for a remove.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class RemoveUndo<C> implements Undo
+	{
+		private final Members<C> m_members;
+		private final C m_member;
+
+		private RemoveUndo(Members<C> members, C member)
+		{
+			m_members = members;
+			m_member = member;
+		}
+
+		public void undo()
+		{
+			m_members.m_set.add(m_member);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.member(m_members, m_member, false);
+		}
+	}
+
+	@SafeVarargs
+	@SuppressWarnings({"varargs"})
+	public static <C> Members<C> newMembers(C... objects)
+	{
+		ElementType<C> element = objects.length == 0 ? null : ElementType.<C>getReturnType(objects[0].getClass());
+		Members<C> members = new Members<C>(null, element);
+		members.addAll(Arrays.asList(objects));
+		return members;
+	}
+}
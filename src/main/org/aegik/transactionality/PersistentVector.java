@@ -0,0 +1,297 @@
+package org.aegik.transactionality;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * An immutable list with structural sharing.
+ * <p>
+ * The elements are kept in a trie of 32-element nodes, with the last
+ * up to 32 elements in a separate tail. Reading an element is O(log32 n),
+ * and replacing, appending or removing the last element returns a new
+ * vector sharing all but O(log32 n) nodes with this one. Inserting or
+ * removing at index i costs O((n - i) log32 n), as the elements after the
+ * index are appended again.
+ * <p>
+ * The list methods inherited from AbstractList that would modify the
+ * list throw UnsupportedOperationException.
+ *
+ * @author Christoffer Lerno
+ */
+final class PersistentVector<E> extends AbstractList<E> implements RandomAccess
+{
+	private final static int BITS = 5;
+	private final static int WIDTH = 1 << BITS;
+	private final static int MASK = WIDTH - 1;
+	private final static Object[] EMPTY_NODE = new Object[WIDTH];
+	private final static PersistentVector<Object> EMPTY = new PersistentVector<Object>(0, BITS, EMPTY_NODE, new Object[0]);
+
+	private final int m_size;
+	private final int m_shift;
+	private final Object[] m_root;
+	private final Object[] m_tail;
+
+	private PersistentVector(int size, int shift, Object[] root, Object[] tail)
+	{
+		m_size = size;
+		m_shift = shift;
+		m_root = root;
+		m_tail = tail;
+	}
+
+	/**
+	 * Returns the empty vector.
+	 *
+	 * @return an empty vector.
+	 */
+	@SuppressWarnings({"unchecked"})
+	static <E> PersistentVector<E> empty()
+	{
+		return (PersistentVector<E>) EMPTY;
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	private int tailOffset()
+	{
+		return m_size < WIDTH ? 0 : ((m_size - 1) >>> BITS) << BITS;
+	}
+
+	private Object[] nodeFor(int index)
+	{
+		if (index < 0 || index >= m_size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+		if (index >= tailOffset()) return m_tail;
+		Object[] node = m_root;
+		for (int level = m_shift; level > 0; level -= BITS)
+		{
+			node = (Object[]) node[(index >>> level) & MASK];
+		}
+		return node;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	public E get(int index)
+	{
+		return (E) nodeFor(index)[index & MASK];
+	}
+
+	/**
+	 * Performs an action for each element, reading each node once.
+	 *
+	 * @param action the action to perform.
+	 */
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public void forEach(Consumer<? super E> action)
+	{
+		for (int i = 0; i < m_size; i += WIDTH)
+		{
+			Object[] node = nodeFor(i);
+			int end = Math.min(WIDTH, m_size - i);
+			for (int j = 0; j < end; j++)
+			{
+				action.accept((E) node[j]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a vector with an element replaced.
+	 *
+	 * @param index the index of the element.
+	 * @param element the new element.
+	 * @return the new vector.
+	 * @throws IndexOutOfBoundsException if the index is out of range.
+	 */
+	PersistentVector<E> with(int index, E element)
+	{
+		nodeFor(index);
+		if (index >= tailOffset())
+		{
+			Object[] tail = m_tail.clone();
+			tail[index & MASK] = element;
+			return new PersistentVector<E>(m_size, m_shift, m_root, tail);
+		}
+		return new PersistentVector<E>(m_size, m_shift, assign(m_shift, m_root, index, element), m_tail);
+	}
+
+	private static Object[] assign(int level, Object[] node, int index, Object element)
+	{
+		Object[] copy = node.clone();
+		if (level == 0)
+		{
+			copy[index & MASK] = element;
+		}
+		else
+		{
+			int child = (index >>> level) & MASK;
+			copy[child] = assign(level - BITS, (Object[]) node[child], index, element);
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns a vector with an element appended.
+	 *
+	 * @param element the element to append.
+	 * @return the new vector.
+	 */
+	PersistentVector<E> plus(E element)
+	{
+		if (m_size - tailOffset() < WIDTH)
+		{
+			Object[] tail = new Object[m_tail.length + 1];
+			System.arraycopy(m_tail, 0, tail, 0, m_tail.length);
+			tail[m_tail.length] = element;
+			return new PersistentVector<E>(m_size + 1, m_shift, m_root, tail);
+		}
+		Object[] root;
+		int shift = m_shift;
+		if ((m_size >>> BITS) > (1 << m_shift))
+		{
+			root = new Object[WIDTH];
+			root[0] = m_root;
+			root[1] = newPath(m_shift, m_tail);
+			shift += BITS;
+		}
+		else
+		{
+			root = pushTail(m_shift, m_root, m_tail);
+		}
+		return new PersistentVector<E>(m_size + 1, shift, root, new Object[] { element });
+	}
+
+	private Object[] pushTail(int level, Object[] parent, Object[] tail)
+	{
+		int child = ((m_size - 1) >>> level) & MASK;
+		Object[] copy = parent.clone();
+		if (level == BITS)
+		{
+			copy[child] = tail;
+		}
+		else
+		{
+			Object[] node = (Object[]) parent[child];
+			copy[child] = node != null ? pushTail(level - BITS, node, tail) : newPath(level - BITS, tail);
+		}
+		return copy;
+	}
+
+	private static Object[] newPath(int level, Object[] node)
+	{
+		if (level == 0) return node;
+		Object[] path = new Object[WIDTH];
+		path[0] = newPath(level - BITS, node);
+		return path;
+	}
+
+	/**
+	 * Returns a vector without the last element.
+	 *
+	 * @return the new vector.
+	 * @throws IllegalStateException if the vector is empty.
+	 */
+	PersistentVector<E> minus()
+	{
+		if (m_size == 0) throw new IllegalStateException("Empty vector");
+		if (m_size == 1) return empty();
+		if (m_size - tailOffset() > 1)
+		{
+			Object[] tail = new Object[m_tail.length - 1];
+			System.arraycopy(m_tail, 0, tail, 0, tail.length);
+			return new PersistentVector<E>(m_size - 1, m_shift, m_root, tail);
+		}
+		Object[] tail = nodeFor(m_size - 2);
+		Object[] root = popTail(m_shift, m_root);
+		int shift = m_shift;
+		if (root == null) root = EMPTY_NODE;
+		if (m_shift > BITS && root[1] == null)
+		{
+			root = (Object[]) root[0];
+			shift -= BITS;
+		}
+		return new PersistentVector<E>(m_size - 1, shift, root, tail);
+	}
+
+	private Object[] popTail(int level, Object[] node)
+	{
+		int child = ((m_size - 2) >>> level) & MASK;
+		if (level > BITS)
+		{
+			Object[] newChild = popTail(level - BITS, (Object[]) node[child]);
+			if (newChild == null && child == 0) return null;
+			Object[] copy = node.clone();
+			copy[child] = newChild;
+			return copy;
+		}
+		if (child == 0) return null;
+		Object[] copy = node.clone();
+		copy[child] = null;
+		return copy;
+	}
+
+	/**
+	 * Returns a vector with an element inserted.
+	 *
+	 * @param index the index to insert at.
+	 * @param element the element to insert.
+	 * @return the new vector.
+	 * @throws IndexOutOfBoundsException if the index is out of range.
+	 */
+	PersistentVector<E> plus(int index, E element)
+	{
+		if (index < 0 || index > m_size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+		Object[] moved = suffix(index);
+		PersistentVector<E> vector = truncate(index).plus(element);
+		return vector.append(moved);
+	}
+
+	/**
+	 * Returns a vector with an element removed.
+	 *
+	 * @param index the index of the element to remove.
+	 * @return the new vector.
+	 * @throws IndexOutOfBoundsException if the index is out of range.
+	 */
+	PersistentVector<E> minus(int index)
+	{
+		nodeFor(index);
+		Object[] moved = suffix(index + 1);
+		return truncate(index).append(moved);
+	}
+
+	private Object[] suffix(int from)
+	{
+		Object[] elements = new Object[m_size - from];
+		for (int i = 0; i < elements.length; i++)
+		{
+			elements[i] = nodeFor(from + i)[(from + i) & MASK];
+		}
+		return elements;
+	}
+
+	private PersistentVector<E> truncate(int size)
+	{
+		PersistentVector<E> vector = this;
+		while (vector.m_size > size)
+		{
+			vector = vector.minus();
+		}
+		return vector;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private PersistentVector<E> append(Object[] elements)
+	{
+		PersistentVector<E> vector = this;
+		for (Object element : elements)
+		{
+			vector = vector.plus((E) element);
+		}
+		return vector;
+	}
+}
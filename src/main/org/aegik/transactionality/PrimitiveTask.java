@@ -0,0 +1,73 @@
+package org.aegik.transactionality;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts a range of values to primitives using fork-join.
+ * <p>
+ * Used by the containers to create the primitive form of large contents
+ * in parallel. The conversion only reads the containers, so it is safe as
+ * long as no transaction modifies them at the same time.
+ * <p>
+ * Tasks run in the fork-join pool of the calling thread, or in the common
+ * pool when called from outside a pool. Nested containers that are large
+ * enough are converted in parallel as well, in the same pool.
+ *
+ * @author Christoffer Lerno
+ */
+final class PrimitiveTask extends RecursiveAction
+{
+	/**
+	 * The minimum size of a container for it to be converted in parallel.
+	 */
+	final static int THRESHOLD = 4096;
+
+	private final static int CHUNK = 1024;
+	private static final long serialVersionUID = 1L;
+
+	private final Object[] m_values;
+	private final int m_from;
+	private final int m_to;
+
+	private PrimitiveTask(Object[] values, int from, int to)
+	{
+		m_values = values;
+		m_from = from;
+		m_to = to;
+	}
+
+	/**
+	 * Replaces each value in an array with its primitive form.
+	 *
+	 * @param values the values to convert.
+	 */
+	static void convert(Object[] values)
+	{
+		PrimitiveTask task = new PrimitiveTask(values, 0, values.length);
+		if (ForkJoinTask.inForkJoinPool())
+		{
+			task.invoke();
+		}
+		else
+		{
+			ForkJoinPool.commonPool().invoke(task);
+		}
+	}
+
+	@Override
+	protected void compute()
+	{
+		if (m_to - m_from <= CHUNK)
+		{
+			for (int i = m_from; i < m_to; i++)
+			{
+				m_values[i] = Klass.getPrimitive(m_values[i]);
+			}
+			return;
+		}
+		int middle = (m_from + m_to) >>> 1;
+		invokeAll(new PrimitiveTask(m_values, m_from, middle), new PrimitiveTask(m_values, middle, m_to));
+	}
+}
@@ -0,0 +1,367 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+
+/**
+ * A secondary index over a property of the elements of a Dict or Array.
+ * <p>
+ * The index maps each value of the property to the elements having that
+ * value, so that looking up elements by value costs O(1) rather than a
+ * scan of the container. It is kept up to date as elements are added or
+ * removed and as the property of an element is set, and every change to
+ * the index is journaled on the root, so a rollback restores the index
+ * along with the data.
+ * <p>
+ * Indexes are declared on the getter of the container using
+ * {@link HashIndex} or {@link SortedIndex}. As with change paths, an element
+ * is expected to be held by a single container: setting the property of an
+ * element only updates the indexes of the container that last adopted it.
+ *
+ * @author Christoffer Lerno
+ */
+public class PropertyIndex<C>
+{
+	private final TransactionalContainer<C> m_owner;
+	private final String m_property;
+	private Map<Object, IdentityHashMap<C, Boolean>> m_buckets;
+	private IdentityHashMap<TransactionalContainer<?>, Entry<C>> m_entries;
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param owner the container whose elements are indexed.
+	 * @param property the key of the indexed property.
+	 */
+	PropertyIndex(TransactionalContainer<C> owner, String property)
+	{
+		m_owner = owner;
+		m_property = property;
+		m_buckets = createBuckets();
+		m_entries = new IdentityHashMap<TransactionalContainer<?>, Entry<C>>();
+	}
+
+	/**
+	 * Creates the map from property values to elements.
+	 *
+	 * @return an empty map.
+	 */
+	Map<Object, IdentityHashMap<C, Boolean>> createBuckets()
+	{
+		return new HashMap<Object, IdentityHashMap<C, Boolean>>();
+	}
+
+	/**
+	 * Tests if elements with a value are held by the index.
+	 *
+	 * @param value the value of the property.
+	 * @return true if the value is indexed.
+	 */
+	boolean accepts(Object value)
+	{
+		return true;
+	}
+
+	/**
+	 * Returns the map from property values to elements.
+	 *
+	 * @return the map of buckets.
+	 */
+	Map<Object, IdentityHashMap<C, Boolean>> buckets()
+	{
+		return m_buckets;
+	}
+
+	/**
+	 * Returns the key of the indexed property.
+	 *
+	 * @return the property key.
+	 */
+	public String getProperty()
+	{
+		return m_property;
+	}
+
+	/**
+	 * Returns all elements having a value for the indexed property.
+	 *
+	 * @param value the value to look for.
+	 * @return a list of the matching elements in no particular order,
+	 * each element listed once.
+	 */
+	public List<C> get(Object value)
+	{
+		IdentityHashMap<C, Boolean> bucket = accepts(value) ? m_buckets.get(value) : null;
+		return bucket == null ? new ArrayList<C>() : new ArrayList<C>(bucket.keySet());
+	}
+
+	/**
+	 * Counts the elements having a value for the indexed property.
+	 *
+	 * @param value the value to look for.
+	 * @return the number of distinct elements with that value.
+	 */
+	public int count(Object value)
+	{
+		IdentityHashMap<C, Boolean> bucket = accepts(value) ? m_buckets.get(value) : null;
+		return bucket == null ? 0 : bucket.size();
+	}
+
+	/**
+	 * Tests if any element has a value for the indexed property.
+	 *
+	 * @param value the value to look for.
+	 * @return true if at least one element has that value.
+	 */
+	public boolean contains(Object value)
+	{
+		return count(value) > 0;
+	}
+
+	/**
+	 * Adds an element to the index.
+	 *
+	 * @param element the element added to the container.
+	 */
+	void add(C element)
+	{
+		TransactionalContainer<?> container = TransactionalContainer.containerOf(element);
+		if (container == null) return;
+		insert(container, element, valueOf(container));
+		m_owner.addUndo(new AddUndo(this, container));
+	}
+
+	/**
+	 * Removes an element from the index.
+	 *
+	 * @param element the element removed from the container.
+	 */
+	void remove(C element)
+	{
+		TransactionalContainer<?> container = TransactionalContainer.containerOf(element);
+		Entry<C> entry = container == null ? null : m_entries.get(container);
+		if (entry == null) return;
+		Object value = entry.m_value;
+		delete(container);
+		m_owner.addUndo(new RemoveUndo<C>(this, container, element, value));
+	}
+
+	/**
+	 * Moves an element to the bucket of its current property value.
+	 *
+	 * @param container the container of the element, ignored if it is
+	 * not indexed.
+	 */
+	void update(TransactionalContainer<?> container)
+	{
+		Entry<C> entry = m_entries.get(container);
+		if (entry == null) return;
+		Object value = valueOf(container);
+		Object oldValue = entry.m_value;
+		if (value == null ? oldValue == null : value.equals(oldValue)) return;
+		move(entry, value);
+		m_owner.addUndo(new MoveUndo<C>(this, container, oldValue));
+	}
+
+	/**
+	 * Replaces the contents of the index.
+	 * <p>
+	 * The old contents are kept by a single undo.
+	 *
+	 * @param elements all elements of the container.
+	 */
+	void rebuild(Collection<? extends C> elements)
+	{
+		m_owner.addUndo(new RebuildUndo<C>(this));
+		m_buckets = createBuckets();
+		m_entries = new IdentityHashMap<TransactionalContainer<?>, Entry<C>>();
+		for (C element : elements)
+		{
+			TransactionalContainer<?> container = TransactionalContainer.containerOf(element);
+			if (container != null) insert(container, element, valueOf(container));
+		}
+	}
+
+	private Object valueOf(TransactionalContainer<?> container)
+	{
+		return ((Dict<?>) container).get(m_property);
+	}
+
+	private void insert(TransactionalContainer<?> container, C element, Object value)
+	{
+		Entry<C> entry = m_entries.get(container);
+		if (entry == null)
+		{
+			entry = new Entry<C>(element, value);
+			m_entries.put(container, entry);
+			link(entry);
+		}
+		entry.m_count++;
+	}
+
+	private void delete(TransactionalContainer<?> container)
+	{
+		Entry<C> entry = m_entries.get(container);
+		if (--entry.m_count > 0) return;
+		m_entries.remove(container);
+		unlink(entry);
+	}
+
+	private void move(Entry<C> entry, Object value)
+	{
+		unlink(entry);
+		entry.m_value = value;
+		link(entry);
+	}
+
+	private void link(Entry<C> entry)
+	{
+		if (!accepts(entry.m_value)) return;
+		IdentityHashMap<C, Boolean> bucket = m_buckets.get(entry.m_value);
+		if (bucket == null)
+		{
+			bucket = new IdentityHashMap<C, Boolean>(2);
+			m_buckets.put(entry.m_value, bucket);
+		}
+		bucket.put(entry.m_element, Boolean.TRUE);
+	}
+
+	private void unlink(Entry<C> entry)
+	{
+		if (!accepts(entry.m_value)) return;
+		IdentityHashMap<C, Boolean> bucket = m_buckets.get(entry.m_value);
+		bucket.remove(entry.m_element);
+		if (bucket.isEmpty()) m_buckets.remove(entry.m_value);
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_property + "=" + m_buckets.keySet();
+	}
+
+	/**
+	 * An indexed element, with the number of times it is held by the container.
+	 */
+	private static class Entry<C>
+	{
+		private final C m_element;
+		private Object m_value;
+		private int m_count;
+
+		private Entry(C element, Object value)
+		{
+			m_element = element;
+			m_value = value;
+			m_count = 0;
+		}
+	}
+
+	/**
+	 * Implements undo for adding an element.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class AddUndo implements Undo
+	{
+		private final PropertyIndex<?> m_index;
+		private final TransactionalContainer<?> m_container;
+
+		private AddUndo(PropertyIndex<?> index, TransactionalContainer<?> container)
+		{
+			m_index = index;
+			m_container = container;
+		}
+
+		public void undo()
+		{
+			m_index.delete(m_container);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+		}
+	}
+
+	/**
+	 * Implements undo for removing an element.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class RemoveUndo<C> implements Undo
+	{
+		private final PropertyIndex<C> m_index;
+		private final TransactionalContainer<?> m_container;
+		private final C m_element;
+		private final Object m_value;
+
+		private RemoveUndo(PropertyIndex<C> index, TransactionalContainer<?> container, C element, Object value)
+		{
+			m_index = index;
+			m_container = container;
+			m_element = element;
+			m_value = value;
+		}
+
+		public void undo()
+		{
+			m_index.insert(m_container, m_element, m_value);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+		}
+	}
+
+	/**
+	 * Implements undo for a changed property value.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class MoveUndo<C> implements Undo
+	{
+		private final PropertyIndex<C> m_index;
+		private final TransactionalContainer<?> m_container;
+		private final Object m_oldValue;
+
+		private MoveUndo(PropertyIndex<C> index, TransactionalContainer<?> container, Object oldValue)
+		{
+			m_index = index;
+			m_container = container;
+			m_oldValue = oldValue;
+		}
+
+		public void undo()
+		{
+			m_index.move(m_index.m_entries.get(m_container), m_oldValue);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+		}
+	}
+
+	/**
+	 * Implements undo for a rebuild.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class RebuildUndo<C> implements Undo
+	{
+		private final PropertyIndex<C> m_index;
+		private final Map<Object, IdentityHashMap<C, Boolean>> m_buckets;
+		private final IdentityHashMap<TransactionalContainer<?>, Entry<C>> m_entries;
+
+		private RebuildUndo(PropertyIndex<C> index)
+		{
+			m_index = index;
+			m_buckets = index.m_buckets;
+			m_entries = index.m_entries;
+		}
+
+		public void undo()
+		{
+			m_index.m_buckets = m_buckets;
+			m_index.m_entries = m_entries;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+		}
+	}
+}
@@ -10,11 +10,42 @@ class ProxyInvocationHandler extends Dict<Object> implements InvocationHandler
 
 	public ProxyInvocationHandler(Root root, Klass klass)
 	{
-		super(root, null);
+		super(root, null, klass.propertyCount());
 		m_klass = klass;
 		m_klass.init(root, this);
 	}
 	
+	@Override
+	public Object put(String property, Object value)
+	{
+		Object oldValue = super.put(property, value);
+		if (value != null) propertyChanged(property);
+		return oldValue;
+	}
+
+	@Override
+	public Object remove(Object key)
+	{
+		Object oldValue = super.remove(key);
+		if (oldValue != null) propertyChanged(String.valueOf(key));
+		return oldValue;
+	}
+
+	protected String canonicalKey(String key)
+	{
+		return m_klass.canonicalKey(key, root());
+	}
+
+	protected ElementType<Object> elementType(String key)
+	{
+		return m_klass.elementType(key);
+	}
+
+	Klass klass()
+	{
+		return m_klass;
+	}
+
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
 	{
 		return m_klass.invoke(this, method, args);
@@ -0,0 +1,203 @@
+package org.aegik.transactionality;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * A list backed by a circular array.
+ * <p>
+ * Adding or removing at either end is O(1), and inserting or removing
+ * anywhere else only moves the elements on the shorter side of the index.
+ * The capacity is always a power of two, so positions wrap with a mask.
+ *
+ * @author Christoffer Lerno
+ */
+final class RingList<E> extends AbstractList<E> implements RandomAccess
+{
+	private final static Object[] EMPTY_ELEMENTS = new Object[0];
+	private final static int MINIMUM_CAPACITY = 8;
+
+	private Object[] m_elements;
+	private int m_head;
+	private int m_size;
+
+	RingList()
+	{
+		m_elements = EMPTY_ELEMENTS;
+		m_head = 0;
+		m_size = 0;
+	}
+
+	private void checkIndex(int index, int size)
+	{
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+	}
+
+	@SuppressWarnings({"unchecked"})
+	public E get(int index)
+	{
+		checkIndex(index, m_size);
+		return (E) m_elements[(m_head + index) & (m_elements.length - 1)];
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public E set(int index, E element)
+	{
+		checkIndex(index, m_size);
+		int slot = (m_head + index) & (m_elements.length - 1);
+		E old = (E) m_elements[slot];
+		m_elements[slot] = element;
+		return old;
+	}
+
+	@Override
+	public void add(int index, E element)
+	{
+		checkIndex(index, m_size + 1);
+		if (m_size == m_elements.length) resize(Math.max(MINIMUM_CAPACITY, m_elements.length * 2));
+		int mask = m_elements.length - 1;
+		if (index < m_size - index)
+		{
+			m_head = (m_head - 1) & mask;
+			for (int i = 0; i < index; i++)
+			{
+				m_elements[(m_head + i) & mask] = m_elements[(m_head + i + 1) & mask];
+			}
+		}
+		else
+		{
+			for (int i = m_size; i > index; i--)
+			{
+				m_elements[(m_head + i) & mask] = m_elements[(m_head + i - 1) & mask];
+			}
+		}
+		m_elements[(m_head + index) & mask] = element;
+		m_size++;
+		modCount++;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public E remove(int index)
+	{
+		checkIndex(index, m_size);
+		int mask = m_elements.length - 1;
+		E old = (E) m_elements[(m_head + index) & mask];
+		if (index < m_size - 1 - index)
+		{
+			for (int i = index; i > 0; i--)
+			{
+				m_elements[(m_head + i) & mask] = m_elements[(m_head + i - 1) & mask];
+			}
+			m_elements[m_head] = null;
+			m_head = (m_head + 1) & mask;
+		}
+		else
+		{
+			for (int i = index; i < m_size - 1; i++)
+			{
+				m_elements[(m_head + i) & mask] = m_elements[(m_head + i + 1) & mask];
+			}
+			m_elements[(m_head + m_size - 1) & mask] = null;
+		}
+		m_size--;
+		modCount++;
+		return old;
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	@Override
+	public void clear()
+	{
+		Arrays.fill(m_elements, null);
+		m_head = 0;
+		m_size = 0;
+		modCount++;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public void forEach(Consumer<? super E> action)
+	{
+		Object[] elements = m_elements;
+		int mask = elements.length - 1;
+		for (int i = 0; i < m_size; i++)
+		{
+			action.accept((E) elements[(m_head + i) & mask]);
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> collection)
+	{
+		return filter(collection, false);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> collection)
+	{
+		return filter(collection, true);
+	}
+
+	/**
+	 * Keeps the elements that are, or are not, in a collection, moving
+	 * each kept element once.
+	 *
+	 * @param collection the collection to test against.
+	 * @param retain true to keep the elements in the collection.
+	 * @return true if any element was removed.
+	 */
+	private boolean filter(Collection<?> collection, boolean retain)
+	{
+		int mask = m_elements.length - 1;
+		int kept = 0;
+		for (int i = 0; i < m_size; i++)
+		{
+			Object element = m_elements[(m_head + i) & mask];
+			if (collection.contains(element) == retain)
+			{
+				m_elements[(m_head + kept++) & mask] = element;
+			}
+		}
+		if (kept == m_size) return false;
+		for (int i = kept; i < m_size; i++)
+		{
+			m_elements[(m_head + i) & mask] = null;
+		}
+		m_size = kept;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Reduces the capacity to the smallest power of two holding the elements.
+	 */
+	void trimToSize()
+	{
+		int capacity = m_size == 0 ? 0 : MINIMUM_CAPACITY;
+		while (capacity < m_size)
+		{
+			capacity <<= 1;
+		}
+		if (capacity < m_elements.length) resize(capacity);
+	}
+
+	private void resize(int capacity)
+	{
+		Object[] elements = capacity == 0 ? EMPTY_ELEMENTS : new Object[capacity];
+		for (int i = 0; i < m_size; i++)
+		{
+			elements[i] = m_elements[(m_head + i) & (m_elements.length - 1)];
+		}
+		m_elements = elements;
+		m_head = 0;
+	}
+}
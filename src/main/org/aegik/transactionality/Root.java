@@ -1,6 +1,7 @@
 package org.aegik.transactionality;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
  * A tree root containing a single dictionary.
@@ -10,13 +11,24 @@ import java.util.*;
  * @see #beginTransaction()
  * @see #commit()
  * @see #rollback()
+ * @see #freeze()
+ * @see #addCommitListener(CommitListener, Object...)
  *
  * @author Christoffer Lerno
  */
-class Root
+public class Root
 {
 	private boolean m_transaction;
+	private volatile boolean m_frozen;
+	private boolean m_recordingChanges;
+	private long m_sequence;
+	private TransactionalContainer<?> m_top;
 	private final LinkedList<Undo> m_undos;
+	private final ListenerTrie m_listeners;
+	private KeyTable m_keyTable;
+	private BlobTable m_blobTable;
+	private TransactionListener m_transactionListener;
+	private long m_beginTime;
 
 	/**
 	 * Creates a new root.
@@ -24,7 +36,16 @@ class Root
 	public Root()
 	{
 		m_transaction  = false;
+		m_frozen = false;
+		m_recordingChanges = false;
+		m_sequence = 0;
+		m_top = null;
 		m_undos = new LinkedList<Undo>();
+		m_listeners = new ListenerTrie();
+		m_keyTable = null;
+		m_blobTable = null;
+		m_transactionListener = null;
+		m_beginTime = 0;
 	}
 
 	/**
@@ -51,28 +72,142 @@ class Root
 	 * }
 	 * </pre>
 	 * </code>
-	 * @throws IllegalStateException if a transaction already was started.
+	 * @throws IllegalStateException if a transaction already was started or
+	 * the root is frozen.
 	 */
 	public void beginTransaction()
 	{
+		if (m_frozen) throw new IllegalStateException("Frozen root cannot begin transactions");
 		if (m_transaction) throw new IllegalStateException("Nested transactions not supported");
 		m_transaction = true;
+		if (m_transactionListener != null)
+		{
+			m_beginTime = System.nanoTime();
+			m_transactionListener.transactionBegun(this);
+		}
 	}
 
 	/**
 	 * Commits a transaction.
 	 * <p>
 	 * This will end the transaction and remove all rollback information.
+	 * <p>
+	 * A change set is only built if changes are recorded, see
+	 * {@link #setRecordingChanges(boolean)}, or if there are commit listeners.
+	 * The changes are extracted from the rollback information, so the cost
+	 * of building the change set is proportional to the number of changed
+	 * entries, positions and bytes rather than to the size of the changed
+	 * containers.
+	 * <p>
+	 * Once the transaction has ended, the changes are dispatched to all
+	 * matching commit listeners. If a listener called on this thread throws
+	 * an exception, it is rethrown after all listeners have been notified.
+	 * The transaction remains committed.
 	 *
+	 * @return the changes made during the transaction, or null if no
+	 * change set was built.
 	 * @throws IllegalStateException if we're not currently in a transaction.
 	 * @see #beginTransaction()
 	 * @see #rollback()
 	 */
-	public void commit()
+	public ChangeSet commit()
 	{
 		if (!m_transaction) throw new IllegalStateException("Not in transaction");
 		m_transaction = false;
+		int journalLength = m_undos.size();
+		m_sequence++;
+		ChangeSet changeSet = null;
+		if (m_recordingChanges || !m_listeners.isEmpty())
+		{
+			ChangeSet.Builder changes = new ChangeSet.Builder();
+			for (Undo undo : m_undos)
+			{
+				undo.collect(changes);
+			}
+			changeSet = changes.build(m_sequence);
+		}
 		m_undos.clear();
+		if (m_transactionListener != null)
+		{
+			m_transactionListener.transactionCommitted(this, journalLength, System.nanoTime() - m_beginTime);
+		}
+		if (changeSet != null) m_listeners.dispatch(changeSet);
+		return changeSet;
+	}
+
+	/**
+	 * Sets whether {@link #commit()} builds a change set for every transaction.
+	 * <p>
+	 * Recording is off by default, so that a commit only costs clearing
+	 * the rollback information. While there are commit listeners, change
+	 * sets are built regardless of this setting.
+	 *
+	 * @param recordingChanges true to build a change set on every commit.
+	 */
+	public void setRecordingChanges(boolean recordingChanges)
+	{
+		m_recordingChanges = recordingChanges;
+	}
+
+	/**
+	 * Tests if {@link #commit()} builds a change set for every transaction.
+	 *
+	 * @return true if changes are recorded.
+	 * @see #setRecordingChanges(boolean)
+	 */
+	public boolean isRecordingChanges()
+	{
+		return m_recordingChanges;
+	}
+
+	/**
+	 * Adds a listener notified after each commit changing data at or below
+	 * a path prefix, or replacing an ancestor of the prefix.
+	 * <p>
+	 * The listener is called on the committing thread, once per
+	 * transaction, with all matching changes.
+	 *
+	 * @param listener the listener to add.
+	 * @param prefix the path prefix as a sequence of String keys and Integer
+	 * indices. An empty prefix matches all changes.
+	 * @throws IllegalArgumentException if the prefix contains anything but
+	 * Strings and Integers.
+	 */
+	public void addCommitListener(CommitListener listener, Object... prefix)
+	{
+		m_listeners.add(listener, null, prefix);
+	}
+
+	/**
+	 * Adds a listener notified after each commit changing data at or below
+	 * a path prefix, or replacing an ancestor of the prefix.
+	 * <p>
+	 * Notifications are handed to the executor, so that the committing
+	 * thread does not wait for the listener.
+	 *
+	 * @param listener the listener to add.
+	 * @param executor the executor delivering the notifications.
+	 * @param prefix the path prefix as a sequence of String keys and Integer
+	 * indices. An empty prefix matches all changes.
+	 * @throws IllegalArgumentException if the prefix contains anything but
+	 * Strings and Integers.
+	 * @see #addCommitListener(CommitListener, Object...)
+	 */
+	public void addCommitListener(CommitListener listener, Executor executor, Object... prefix)
+	{
+		if (executor == null) throw new NullPointerException();
+		m_listeners.add(listener, executor, prefix);
+	}
+
+	/**
+	 * Removes all registrations of a commit listener.
+	 *
+	 * @param listener the listener to remove.
+	 * @return true if the listener was registered.
+	 */
+	public boolean removeCommitListener(CommitListener listener)
+	{
+		return m_listeners.remove(listener);
 	}
 
 	/**
@@ -89,6 +224,20 @@ class Root
 	{
 		if (!m_transaction) throw new IllegalStateException("Not in transaction");
 		m_transaction = false;
+		if (m_transactionListener == null)
+		{
+			undoAll();
+			return;
+		}
+		int journalLength = m_undos.size();
+		long start = System.nanoTime();
+		undoAll();
+		long end = System.nanoTime();
+		m_transactionListener.transactionRolledBack(this, journalLength, end - m_beginTime, end - start);
+	}
+
+	private void undoAll()
+	{
 		while (m_undos.size() > 0)
 		{
 			m_undos.removeLast().undo();
@@ -105,6 +254,150 @@ class Root
 		return m_transaction;
 	}
 
+	/**
+	 * Freezes all data belonging to this root.
+	 * <p>
+	 * After this call any attempt to modify the data will throw an
+	 * UnsupportedOperationException. The tree is also converted into
+	 * a compact read-only form, which may be read concurrently from any
+	 * number of threads without locking once it has been safely published
+	 * (e.g. through a volatile field or a concurrent collection), or once
+	 * {@link #isFrozen()} has returned true on the reading thread.
+	 * <p>
+	 * Only the tree of a root created by {@link Transactionality#createRoot(Class)}
+	 * is compacted, since the root does not otherwise know the top of its
+	 * tree. Containers created directly on any other root are frozen but
+	 * keep their current storage.
+	 * <p>
+	 * Freezing an already frozen root does nothing.
+	 *
+	 * @throws IllegalStateException if a transaction is active.
+	 */
+	public void freeze()
+	{
+		if (m_transaction) throw new IllegalStateException("Cannot freeze during transaction");
+		if (m_frozen) return;
+		if (m_top != null) m_top.compact();
+		// Set last, so that a thread seeing the flag also sees the compacted tree.
+		m_frozen = true;
+	}
+
+	/**
+	 * Tests if this root is frozen.
+	 *
+	 * @return true if the root has been frozen, false otherwise.
+	 * @see #freeze()
+	 */
+	public boolean isFrozen()
+	{
+		return m_frozen;
+	}
+
+	/**
+	 * Sets the table used to share the instances of keys that are not
+	 * part of a schema, such as the keys of dictionaries.
+	 * <p>
+	 * Only keys stored after this call are affected.
+	 *
+	 * @param keyTable the key table, or null to store keys as they are.
+	 */
+	public void setKeyTable(KeyTable keyTable)
+	{
+		m_keyTable = keyTable;
+	}
+
+	/**
+	 * Returns the key table of this root.
+	 *
+	 * @return the key table, or null if keys are not interned.
+	 * @see #setKeyTable(KeyTable)
+	 */
+	public KeyTable getKeyTable()
+	{
+		return m_keyTable;
+	}
+
+	/**
+	 * Sets the table used to share the storage of equal byte arrays
+	 * loaded into this root.
+	 * <p>
+	 * Only byte arrays loaded after this call are affected.
+	 *
+	 * @param blobTable the blob table, or null to give each byte array its own storage.
+	 */
+	public void setBlobTable(BlobTable blobTable)
+	{
+		m_blobTable = blobTable;
+	}
+
+	/**
+	 * Returns the blob table of this root.
+	 *
+	 * @return the blob table, or null if byte arrays are not shared.
+	 * @see #setBlobTable(BlobTable)
+	 */
+	public BlobTable getBlobTable()
+	{
+		return m_blobTable;
+	}
+
+	/**
+	 * Sets the listener notified of the transactions of this root.
+	 * <p>
+	 * If set during a transaction, the duration of that transaction is
+	 * measured from this call.
+	 *
+	 * @param listener the listener, or null to collect no metrics.
+	 * @see TransactionMetrics
+	 */
+	public void setTransactionListener(TransactionListener listener)
+	{
+		m_transactionListener = listener;
+		if (m_transaction && listener != null) m_beginTime = System.nanoTime();
+	}
+
+	/**
+	 * Returns the transaction listener of this root.
+	 *
+	 * @return the listener, or null if metrics are not collected.
+	 * @see #setTransactionListener(TransactionListener)
+	 */
+	public TransactionListener getTransactionListener()
+	{
+		return m_transactionListener;
+	}
+
+	/**
+	 * Sets the top container of the tree owned by this root.
+	 *
+	 * @param top the top container.
+	 */
+	void setTop(TransactionalContainer<?> top)
+	{
+		m_top = top;
+	}
+
+	/**
+	 * Tests if a container is the top container of this root.
+	 *
+	 * @param container the container to test.
+	 * @return true if the container is the top of the tree.
+	 */
+	boolean isTop(TransactionalContainer<?> container)
+	{
+		return m_top == container;
+	}
+
+	/**
+	 * Returns the undo records of the current transaction.
+	 *
+	 * @return the journal, oldest record first. Must not be modified.
+	 */
+	List<Undo> journal()
+	{
+		return m_undos;
+	}
+
 	/**
 	 * Adds an undo action for the root rollback if a transaction is active.
 	 *
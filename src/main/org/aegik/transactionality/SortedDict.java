@@ -0,0 +1,436 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A dictionary keeping its keys in sorted order.
+ * <p>
+ * Works like {@link Dict}, but is backed by a red-black tree, so lookups
+ * cost O(log n) and range queries over k entries cost O(log n + k). The
+ * primitive form is a sorted map, so serialized data is ordered by key.
+ * <p>
+ * The range views returned by {@link #subMap(String, String)},
+ * {@link #headMap(String)} and {@link #tailMap(String)} are read-only and
+ * reflect later changes to the dictionary.
+ *
+ * @see Dict
+ * @author Christoffer Lerno
+ */
+public class SortedDict<C> extends TransactionalContainer<C> implements SortedMap<String, C>, NonPrimitive
+{
+	private final TreeMap<String, C> m_values;
+
+	/**
+	 * Creates a sorted dictionary with transaction support through the root node.
+	 *
+	 * @param root the root for this dictionary.
+	 * @param internalType the internal type of objects of this dictionary.
+	 */
+	SortedDict(Root root, ElementType<C> internalType)
+	{
+		super(root, internalType);
+		m_values = new TreeMap<String, C>();
+	}
+
+	/**
+	 * Creates a copy of an existing sorted dictionary.
+	 * <p>
+	 * The copy shares its values with the original. Values that are
+	 * containers remain children of the original, so their changes are
+	 * still reported under the paths of the original.
+	 *
+	 * @param original the original dictionary.
+	 */
+	public SortedDict(SortedDict<C> original)
+	{
+		this(original.root(), original.internalType());
+		m_values.putAll(original.m_values);
+	}
+
+	public Map<String, Object> primitive()
+	{
+		Map<String, Object> map = new TreeMap<String, Object>();
+		for (Map.Entry<String, C> entry : m_values.entrySet())
+		{
+			map.put(entry.getKey(), Klass.getPrimitive(entry.getValue()));
+		}
+		return map;
+	}
+
+	public C create(final String property)
+	{
+		C newObject = createNewObject();
+		put(property, newObject);
+		return newObject;
+	}
+
+	/**
+	 * Sets a property.
+	 *
+	 * @param property the name of the property.
+	 * @param value the new value of the property.
+	 * @return the old value of the property.
+	 */
+	public C put(final String property, C value)
+	{
+		if (value == null)
+		{
+			return remove(property);
+		}
+		checkMutable();
+		String key = canonicalKey(property);
+		C oldValue = m_values.put(key, value);
+		addUndo(new PutUndo<C>(this, key, oldValue));
+		adopt(value, key);
+		return oldValue;
+	}
+
+	/**
+	 * Add all properties in a map to this dictionary.
+	 *
+	 * @param map the map to add.
+	 */
+	public void putAll(Map<? extends String, ? extends C> map)
+	{
+		for (Map.Entry<? extends String, ? extends C> entry : map.entrySet())
+		{
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Removes the mapping for this key from this map if present.
+	 *
+	 * @param key key whose mapping is to be removed from the map.
+	 * @return previous value associated with specified key, or <tt>null</tt>
+	 * if there was no mapping for key.
+	 */
+	public C remove(Object key)
+	{
+		checkMutable();
+		if (!(key instanceof String)) return null;
+		final C oldValue = m_values.remove(key);
+		if (oldValue == null) return null;
+		addUndo(new PutUndo<C>(this, canonicalKey((String) key), oldValue));
+		return oldValue;
+	}
+
+	/**
+	 * Remove all key-value pairs from this map.
+	 * <p>
+	 * Inside a transaction the old entries are copied for the undo, so that
+	 * range views stay attached to this dictionary.
+	 */
+	public void clear()
+	{
+		checkMutable();
+		if (m_values.isEmpty()) return;
+		if (isJournaling())
+		{
+			addUndo(new ClearUndo<C>(this));
+		}
+		m_values.clear();
+	}
+
+	public C get(Object key)
+	{
+		return key instanceof String ? m_values.get(key) : null;
+	}
+
+	public boolean containsKey(Object key)
+	{
+		return key instanceof String && m_values.containsKey(key);
+	}
+
+	public boolean containsValue(Object value)
+	{
+		return m_values.containsValue(value);
+	}
+
+	public int size()
+	{
+		return m_values.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return m_values.isEmpty();
+	}
+
+	/**
+	 * Returns the comparator of the keys.
+	 *
+	 * @return null, as keys are in their natural order.
+	 */
+	public Comparator<? super String> comparator()
+	{
+		return null;
+	}
+
+	public String firstKey()
+	{
+		return m_values.firstKey();
+	}
+
+	public String lastKey()
+	{
+		return m_values.lastKey();
+	}
+
+	/**
+	 * Returns the greatest key less than or equal to a key.
+	 *
+	 * @param key the key to look for.
+	 * @return the floor key, or null if there is no such key.
+	 */
+	public String floorKey(String key)
+	{
+		return m_values.floorKey(key);
+	}
+
+	/**
+	 * Returns the least key greater than or equal to a key.
+	 *
+	 * @param key the key to look for.
+	 * @return the ceiling key, or null if there is no such key.
+	 */
+	public String ceilingKey(String key)
+	{
+		return m_values.ceilingKey(key);
+	}
+
+	/**
+	 * Returns the entry with the greatest key less than or equal to a key.
+	 *
+	 * @param key the key to look for.
+	 * @return an immutable copy of the floor entry, or null if there is no such key.
+	 */
+	public Map.Entry<String, C> floorEntry(String key)
+	{
+		return m_values.floorEntry(key);
+	}
+
+	/**
+	 * Returns the entry with the least key greater than or equal to a key.
+	 *
+	 * @param key the key to look for.
+	 * @return an immutable copy of the ceiling entry, or null if there is no such key.
+	 */
+	public Map.Entry<String, C> ceilingEntry(String key)
+	{
+		return m_values.ceilingEntry(key);
+	}
+
+	/**
+	 * Returns a read-only view of the entries with keys in a range.
+	 *
+	 * @param fromKey the lowest key, inclusive.
+	 * @param toKey the highest key, exclusive.
+	 * @return the range view.
+	 */
+	public SortedMap<String, C> subMap(String fromKey, String toKey)
+	{
+		return Collections.unmodifiableSortedMap(m_values.subMap(fromKey, toKey));
+	}
+
+	/**
+	 * Returns a read-only view of the entries with keys less than a key.
+	 *
+	 * @param toKey the highest key, exclusive.
+	 * @return the range view.
+	 */
+	public SortedMap<String, C> headMap(String toKey)
+	{
+		return Collections.unmodifiableSortedMap(m_values.headMap(toKey));
+	}
+
+	/**
+	 * Returns a read-only view of the entries with keys greater than or
+	 * equal to a key.
+	 *
+	 * @param fromKey the lowest key, inclusive.
+	 * @return the range view.
+	 */
+	public SortedMap<String, C> tailMap(String fromKey)
+	{
+		return Collections.unmodifiableSortedMap(m_values.tailMap(fromKey));
+	}
+
+	/**
+	 * Performs an action for each key-value pair, in key order.
+	 *
+	 * @param action the action to perform.
+	 */
+	@Override
+	public void forEach(BiConsumer<? super String, ? super C> action)
+	{
+		m_values.forEach(action);
+	}
+
+	/**
+	 * Returns an unmodifiable set of the keys, in sorted order.
+	 *
+	 * @return the keys of this dictionary.
+	 */
+	public Set<String> keySet()
+	{
+		return Collections.unmodifiableSet(m_values.keySet());
+	}
+
+	/**
+	 * Returns an unmodifiable collection of the values, in key order.
+	 *
+	 * @return the values of this dictionary.
+	 */
+	public Collection<C> values()
+	{
+		return Collections.unmodifiableCollection(m_values.values());
+	}
+
+	/**
+	 * Returns an unmodifiable set of the entries, in key order.
+	 *
+	 * @return the entries of this dictionary.
+	 */
+	public Set<Entry<String, C>> entrySet()
+	{
+		return Collections.unmodifiableMap(m_values).entrySet();
+	}
+
+	/**
+	 * Tests if another Map equals this SortedDict.
+	 *
+	 * @return true if the other object is a Map and has the
+	 * same key-value pairs as this SortedDict.
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		return this == o || (o instanceof Map && m_values.equals(o));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return m_values.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_values.toString();
+	}
+
+	public void init(Map<String, ?> map)
+	{
+		checkMutable();
+		m_values.clear();
+		for (Map.Entry<String, ?> entry : map.entrySet())
+		{
+			String key = canonicalKey(entry.getKey());
+			C value = internalType().newObject(root(), entry.getValue());
+			m_values.put(key, value);
+			adopt(value, key);
+		}
+	}
+
+	Object entry(Object key)
+	{
+		if (!(key instanceof String)) throw new ValidationException("Illegal key " + key);
+		return get(key);
+	}
+
+	void assign(Object key, Object value)
+	{
+		if (!(key instanceof String)) throw new ValidationException("Illegal key " + key);
+		if (internalType() == null) throw new ValidationException("Object type not defined.");
+		String property = (String) key;
+		if (value == null)
+		{
+			remove(property);
+		}
+		else
+		{
+			put(property, internalType().newObject(root(), value));
+		}
+	}
+
+	Object keyOf(TransactionalContainer<?> child, String key)
+	{
+		return containerOf(m_values.get(key)) == child ? key : null;
+	}
+
+	/**
+	 * Compacts all contained values.
+	 */
+	void compact()
+	{
+		for (C value : m_values.values())
+		{
+			compact(value);
+		}
+	}
+
+	/**
+	 * Implements undo for clear.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class ClearUndo<C> implements Undo
+	{
+		private final SortedDict<C> m_dict;
+		private final TreeMap<String, C> m_old;
+
+		private ClearUndo(SortedDict<C> dict)
+		{
+			m_dict = dict;
+			m_old = new TreeMap<String, C>(dict.m_values);
+		}
+
+		public void undo()
+		{
+			m_dict.m_values.clear();
+			m_dict.m_values.putAll(m_old);
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_dict);
+		}
+	}
+
+	/**
+	 * Implements undo for put.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class PutUndo<C> implements Undo
+	{
+		private final SortedDict<C> m_dict;
+		private final String m_property;
+		private final C m_oldValue;
+
+		private PutUndo(SortedDict<C> dict, String property, C oldValue)
+		{
+			m_dict = dict;
+			m_property = property;
+			m_oldValue = oldValue;
+		}
+
+		public void undo()
+		{
+			if (m_oldValue == null)
+			{
+				m_dict.m_values.remove(m_property);
+			}
+			else
+			{
+				m_dict.m_values.put(m_property, m_oldValue);
+			}
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+			changes.touch(m_dict, m_property);
+		}
+	}
+}
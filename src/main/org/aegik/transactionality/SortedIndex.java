@@ -0,0 +1,25 @@
+package org.aegik.transactionality;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+
+/**
+ * Declares sorted indexes on the elements of a Dict or Array property.
+ * <p>
+ * Works like {@link HashIndex}, but the indexed properties must have
+ * Comparable values, and the index also supports range queries through
+ * {@link Dict#getSortedIndex(String)} or {@link Array#getSortedIndex(String)}.
+ *
+ * @author Christoffer Lerno
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface SortedIndex
+{
+	/**
+	 * The keys of the properties to index.
+	 */
+	String[] value();
+}
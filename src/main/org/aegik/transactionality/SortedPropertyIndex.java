@@ -0,0 +1,97 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+
+/**
+ * A secondary index keeping the values of a property in sorted order.
+ * <p>
+ * In addition to the lookups of {@link PropertyIndex}, which cost O(log n)
+ * here, a sorted index answers range queries in O(log n + k) for k
+ * matching elements. Elements with a null value for the property are not
+ * held by a sorted index.
+ *
+ * @see SortedIndex
+ * @author Christoffer Lerno
+ */
+public class SortedPropertyIndex<C> extends PropertyIndex<C>
+{
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param owner the container whose elements are indexed.
+	 * @param property the key of the indexed property, which must have
+	 * Comparable values.
+	 */
+	SortedPropertyIndex(TransactionalContainer<C> owner, String property)
+	{
+		super(owner, property);
+	}
+
+	@Override
+	Map<Object, IdentityHashMap<C, Boolean>> createBuckets()
+	{
+		return new TreeMap<Object, IdentityHashMap<C, Boolean>>();
+	}
+
+	@Override
+	boolean accepts(Object value)
+	{
+		return value != null;
+	}
+
+	private SortedMap<Object, IdentityHashMap<C, Boolean>> sortedBuckets()
+	{
+		return (SortedMap<Object, IdentityHashMap<C, Boolean>>) buckets();
+	}
+
+	/**
+	 * Returns the elements with a property value in a range.
+	 *
+	 * @param from the lowest value, inclusive, or null for no lower bound.
+	 * @param to the highest value, exclusive, or null for no upper bound.
+	 * @return the matching elements ordered by property value.
+	 * @throws IllegalArgumentException if from is greater than to.
+	 */
+	public List<C> range(Object from, Object to)
+	{
+		SortedMap<Object, IdentityHashMap<C, Boolean>> buckets = sortedBuckets();
+		if (from != null && to != null)
+		{
+			buckets = buckets.subMap(from, to);
+		}
+		else if (from != null)
+		{
+			buckets = buckets.tailMap(from);
+		}
+		else if (to != null)
+		{
+			buckets = buckets.headMap(to);
+		}
+		List<C> elements = new ArrayList<C>();
+		for (IdentityHashMap<C, Boolean> bucket : buckets.values())
+		{
+			elements.addAll(bucket.keySet());
+		}
+		return elements;
+	}
+
+	/**
+	 * Returns the lowest indexed value.
+	 *
+	 * @return the lowest value of the property, or null if no element is indexed.
+	 */
+	public Object firstValue()
+	{
+		return sortedBuckets().isEmpty() ? null : sortedBuckets().firstKey();
+	}
+
+	/**
+	 * Returns the highest indexed value.
+	 *
+	 * @return the highest value of the property, or null if no element is indexed.
+	 */
+	public Object lastValue()
+	{
+		return sortedBuckets().isEmpty() ? null : sortedBuckets().lastKey();
+	}
+}
@@ -0,0 +1,29 @@
+package org.aegik.transactionality;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+
+/**
+ * Selects the storage of an Array property.
+ * <p>
+ * Example, an array used as a work queue:
+ * <code>
+ * <pre>
+ * &#64;Storage(ArrayStorage.RING)
+ * Array&lt;Job&gt; getQueue();
+ * </pre>
+ * </code>
+ *
+ * @author Christoffer Lerno
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Storage
+{
+	/**
+	 * The kind of storage to use.
+	 */
+	ArrayStorage value();
+}
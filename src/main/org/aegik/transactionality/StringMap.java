@@ -0,0 +1,737 @@
+package org.aegik.transactionality;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A hash map with String keys using open addressing.
+ * <p>
+ * Keys and values are kept in two parallel arrays and collisions are
+ * resolved with linear probing, so unlike HashMap no node object is
+ * allocated per entry. Removal shifts entries back instead of leaving
+ * tombstones.
+ * <p>
+ * The key set, values and entry set are read-only views, allocated once
+ * per map. The entry set returns a new immutable entry per element, use
+ * {@link #forEach(BiConsumer)} to visit the entries without allocating.
+ * The spliterators of the views split by slot range, so that they may be
+ * used by parallel streams.
+ * <p>
+ * Like HashMap, the iterators and forEach methods are fail-fast: adding
+ * or removing an entry while iterating throws a
+ * ConcurrentModificationException on a best-effort basis.
+ *
+ * @author Christoffer Lerno
+ */
+final class StringMap<V> extends AbstractMap<String, V>
+{
+	private final static String[] EMPTY_KEYS = new String[0];
+	private final static Object[] EMPTY_VALUES = new Object[0];
+	private final static int MINIMUM_CAPACITY = 4;
+
+	private String[] m_keys;
+	private Object[] m_values;
+	private int m_size;
+	private int m_modCount;
+	private KeySet m_keySet;
+	private Values m_valueCollection;
+	private EntrySet m_entrySet;
+
+	/**
+	 * Creates an empty map.
+	 */
+	StringMap()
+	{
+		this(0);
+	}
+
+	/**
+	 * Creates an empty map able to hold the expected number of entries
+	 * without resizing.
+	 *
+	 * @param expectedSize the expected number of entries.
+	 */
+	StringMap(int expectedSize)
+	{
+		m_size = 0;
+		m_modCount = 0;
+		allocate(capacityFor(expectedSize));
+	}
+
+	private static int capacityFor(int size)
+	{
+		if (size == 0) return 0;
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity * 3 < size * 4)
+		{
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity)
+	{
+		if (capacity == 0)
+		{
+			m_keys = EMPTY_KEYS;
+			m_values = EMPTY_VALUES;
+			return;
+		}
+		m_keys = new String[capacity];
+		m_values = new Object[capacity];
+	}
+
+	/**
+	 * Returns the preferred slot of a key.
+	 *
+	 * @param key the key.
+	 * @param mask the capacity minus one.
+	 * @return the slot to start probing from.
+	 */
+	private static int slot(String key, int mask)
+	{
+		int hash = key.hashCode() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Returns the slot holding a key.
+	 *
+	 * @param key the key to look for.
+	 * @return the slot of the key, or -1 if the key is not present.
+	 */
+	private int find(Object key)
+	{
+		if (m_size == 0 || !(key instanceof String)) return -1;
+		String stringKey = (String) key;
+		int mask = m_keys.length - 1;
+		int hash = stringKey.hashCode();
+		for (int i = slot(stringKey, mask); ; i = (i + 1) & mask)
+		{
+			String current = m_keys[i];
+			if (current == null) return -1;
+			if (current == stringKey || (current.hashCode() == hash && current.equals(stringKey))) return i;
+		}
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public V get(Object key)
+	{
+		int index = find(key);
+		return index < 0 ? null : (V) m_values[index];
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return find(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value)
+	{
+		for (int i = 0; i < m_keys.length; i++)
+		{
+			if (m_keys[i] != null && (value == null ? m_values[i] == null : value.equals(m_values[i]))) return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public V put(String key, V value)
+	{
+		if (key == null) throw new NullPointerException();
+		if ((m_size + 1) * 4 > m_keys.length * 3)
+		{
+			resize(capacityFor(m_size + 1));
+		}
+		int mask = m_keys.length - 1;
+		int hash = key.hashCode();
+		int i = slot(key, mask);
+		while (true)
+		{
+			String current = m_keys[i];
+			if (current == null)
+			{
+				m_keys[i] = key;
+				m_values[i] = value;
+				m_size++;
+				m_modCount++;
+				return null;
+			}
+			if (current == key || (current.hashCode() == hash && current.equals(key)))
+			{
+				V old = (V) m_values[i];
+				m_values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public V remove(Object key)
+	{
+		int index = find(key);
+		if (index < 0) return null;
+		V old = (V) m_values[index];
+		removeAt(index);
+		return old;
+	}
+
+	/**
+	 * Removes the entry in a slot, moving back any following entries
+	 * that would otherwise become unreachable.
+	 *
+	 * @param index the slot to clear.
+	 */
+	private void removeAt(int index)
+	{
+		int mask = m_keys.length - 1;
+		int hole = index;
+		for (int i = (hole + 1) & mask; m_keys[i] != null; i = (i + 1) & mask)
+		{
+			int slot = slot(m_keys[i], mask);
+			// Move the entry if its preferred slot is not within (hole, i].
+			if (((i - slot) & mask) >= ((i - hole) & mask))
+			{
+				m_keys[hole] = m_keys[i];
+				m_values[hole] = m_values[i];
+				hole = i;
+			}
+		}
+		m_keys[hole] = null;
+		m_values[hole] = null;
+		m_size--;
+		m_modCount++;
+	}
+
+	private void resize(int capacity)
+	{
+		String[] keys = m_keys;
+		Object[] values = m_values;
+		allocate(capacity);
+		insertAll(keys, values);
+	}
+
+	/**
+	 * Inserts entries known not to be present in the map, without
+	 * changing the size.
+	 *
+	 * @param keys the keys to insert, with null for empty slots.
+	 * @param values the values to insert.
+	 */
+	private void insertAll(String[] keys, Object[] values)
+	{
+		int mask = m_keys.length - 1;
+		for (int j = 0; j < keys.length; j++)
+		{
+			if (keys[j] == null) continue;
+			int i = slot(keys[j], mask);
+			while (m_keys[i] != null)
+			{
+				i = (i + 1) & mask;
+			}
+			m_keys[i] = keys[j];
+			m_values[i] = values[j];
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		return m_size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return m_size == 0;
+	}
+
+	/**
+	 * Removes all entries, keeping the current capacity.
+	 */
+	@Override
+	public void clear()
+	{
+		if (m_size == 0) return;
+		Arrays.fill(m_keys, null);
+		Arrays.fill(m_values, null);
+		m_size = 0;
+		m_modCount++;
+	}
+
+	/**
+	 * Creates a copy of this map with the smallest capacity able to hold
+	 * the current entries.
+	 *
+	 * @return a compacted copy of this map.
+	 */
+	StringMap<V> compact()
+	{
+		StringMap<V> map = new StringMap<V>(m_size);
+		map.insertAll(m_keys, m_values);
+		map.m_size = m_size;
+		return map;
+	}
+
+	/**
+	 * Performs an action for each entry without allocating.
+	 *
+	 * @param action the action to perform.
+	 */
+	@SuppressWarnings({"unchecked"})
+	@Override
+	public void forEach(BiConsumer<? super String, ? super V> action)
+	{
+		String[] keys = m_keys;
+		Object[] values = m_values;
+		int modCount = m_modCount;
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] != null) action.accept(keys[i], (V) values[i]);
+		}
+		checkModCount(modCount);
+	}
+
+	/**
+	 * Verifies that no entry has been added or removed.
+	 *
+	 * @param expected the modification count when the iteration started.
+	 * @throws ConcurrentModificationException if the map was modified.
+	 */
+	private void checkModCount(int expected)
+	{
+		if (m_modCount != expected) throw new ConcurrentModificationException();
+	}
+
+	/**
+	 * Copies the keys and values into two arrays, in slot order.
+	 *
+	 * @param keys the array receiving the keys, with room for all entries.
+	 * @param values the array receiving the values, with room for all entries.
+	 */
+	void copyTo(String[] keys, Object[] values)
+	{
+		int i = 0;
+		for (int j = 0; j < m_keys.length; j++)
+		{
+			if (m_keys[j] == null) continue;
+			keys[i] = m_keys[j];
+			values[i] = m_values[j];
+			i++;
+		}
+	}
+
+	@Override
+	public Set<String> keySet()
+	{
+		if (m_keySet == null) m_keySet = new KeySet();
+		return m_keySet;
+	}
+
+	@Override
+	public Collection<V> values()
+	{
+		if (m_valueCollection == null) m_valueCollection = new Values();
+		return m_valueCollection;
+	}
+
+	@Override
+	public Set<Entry<String, V>> entrySet()
+	{
+		if (m_entrySet == null) m_entrySet = new EntrySet();
+		return m_entrySet;
+	}
+
+	/**
+	 * Base for iterators over the slots of the map.
+	 */
+	private abstract class SlotIterator
+	{
+		int m_next;
+		private final int m_expectedModCount;
+
+		SlotIterator()
+		{
+			m_expectedModCount = m_modCount;
+			m_next = advance(0);
+		}
+
+		private int advance(int index)
+		{
+			while (index < m_keys.length && m_keys[index] == null)
+			{
+				index++;
+			}
+			return index;
+		}
+
+		public boolean hasNext()
+		{
+			return m_next < m_keys.length;
+		}
+
+		int nextSlot()
+		{
+			checkModCount(m_expectedModCount);
+			if (m_next >= m_keys.length) throw new NoSuchElementException();
+			int slot = m_next;
+			m_next = advance(m_next + 1);
+			return slot;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Base for spliterators over a range of slots of the map.
+	 * <p>
+	 * The slot arrays are read as they are when the spliterator is created.
+	 * Splitting halves the slot range, so only the unsplit spliterator
+	 * knows its exact size, the size of each half is estimated.
+	 */
+	private abstract static class SlotSpliterator<E> implements Spliterator<E>
+	{
+		final String[] m_keys;
+		final Object[] m_values;
+		private int m_index;
+		private final int m_fence;
+		private long m_estimate;
+		private int m_characteristics;
+
+		SlotSpliterator(String[] keys, Object[] values, int index, int fence, long estimate, int characteristics)
+		{
+			m_keys = keys;
+			m_values = values;
+			m_index = index;
+			m_fence = fence;
+			m_estimate = estimate;
+			m_characteristics = characteristics;
+		}
+
+		abstract E element(int slot);
+
+		abstract SlotSpliterator<E> split(int index, int fence, long estimate);
+
+		public boolean tryAdvance(Consumer<? super E> action)
+		{
+			while (m_index < m_fence)
+			{
+				int slot = m_index++;
+				if (m_keys[slot] != null)
+				{
+					action.accept(element(slot));
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super E> action)
+		{
+			for (int i = m_index; i < m_fence; i++)
+			{
+				if (m_keys[i] != null) action.accept(element(i));
+			}
+			m_index = m_fence;
+		}
+
+		public Spliterator<E> trySplit()
+		{
+			int middle = (m_index + m_fence) >>> 1;
+			if (middle <= m_index) return null;
+			m_estimate >>>= 1;
+			m_characteristics &= ~SIZED;
+			SlotSpliterator<E> prefix = split(m_index, middle, m_estimate);
+			m_index = middle;
+			return prefix;
+		}
+
+		public long estimateSize()
+		{
+			return m_estimate;
+		}
+
+		public int characteristics()
+		{
+			return m_characteristics;
+		}
+	}
+
+	private static class KeySpliterator extends SlotSpliterator<String>
+	{
+		KeySpliterator(String[] keys, Object[] values, int index, int fence, long estimate, int characteristics)
+		{
+			super(keys, values, index, fence, estimate, characteristics);
+		}
+
+		String element(int slot)
+		{
+			return m_keys[slot];
+		}
+
+		SlotSpliterator<String> split(int index, int fence, long estimate)
+		{
+			return new KeySpliterator(m_keys, m_values, index, fence, estimate, DISTINCT | NONNULL);
+		}
+	}
+
+	private static class ValueSpliterator<V> extends SlotSpliterator<V>
+	{
+		ValueSpliterator(String[] keys, Object[] values, int index, int fence, long estimate, int characteristics)
+		{
+			super(keys, values, index, fence, estimate, characteristics);
+		}
+
+		@SuppressWarnings({"unchecked"})
+		V element(int slot)
+		{
+			return (V) m_values[slot];
+		}
+
+		SlotSpliterator<V> split(int index, int fence, long estimate)
+		{
+			return new ValueSpliterator<V>(m_keys, m_values, index, fence, estimate, 0);
+		}
+	}
+
+	private static class EntrySpliterator<V> extends SlotSpliterator<Entry<String, V>>
+	{
+		EntrySpliterator(String[] keys, Object[] values, int index, int fence, long estimate, int characteristics)
+		{
+			super(keys, values, index, fence, estimate, characteristics);
+		}
+
+		@SuppressWarnings({"unchecked"})
+		Entry<String, V> element(int slot)
+		{
+			return new SimpleImmutableEntry<String, V>(m_keys[slot], (V) m_values[slot]);
+		}
+
+		SlotSpliterator<Entry<String, V>> split(int index, int fence, long estimate)
+		{
+			return new EntrySpliterator<V>(m_keys, m_values, index, fence, estimate, DISTINCT | NONNULL);
+		}
+	}
+
+	private class KeyIterator extends SlotIterator implements Iterator<String>
+	{
+		public String next()
+		{
+			return m_keys[nextSlot()];
+		}
+	}
+
+	private class ValueIterator extends SlotIterator implements Iterator<V>
+	{
+		@SuppressWarnings({"unchecked"})
+		public V next()
+		{
+			return (V) m_values[nextSlot()];
+		}
+	}
+
+	private class EntryIterator extends SlotIterator implements Iterator<Entry<String, V>>
+	{
+		@SuppressWarnings({"unchecked"})
+		public Entry<String, V> next()
+		{
+			int slot = nextSlot();
+			return new SimpleImmutableEntry<String, V>(m_keys[slot], (V) m_values[slot]);
+		}
+	}
+
+	/**
+	 * Base for the read-only key and entry sets.
+	 */
+	private abstract class View<E> extends AbstractSet<E>
+	{
+		public int size()
+		{
+			return m_size;
+		}
+
+		@Override
+		public boolean remove(Object o)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void clear()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class KeySet extends View<String>
+	{
+		public Iterator<String> iterator()
+		{
+			return new KeyIterator();
+		}
+
+		@Override
+		public void forEach(Consumer<? super String> action)
+		{
+			int modCount = m_modCount;
+			for (String key : m_keys)
+			{
+				if (key != null) action.accept(key);
+			}
+			checkModCount(modCount);
+		}
+
+		@Override
+		public Spliterator<String> spliterator()
+		{
+			return new KeySpliterator(m_keys, m_values, 0, m_keys.length, m_size, Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED);
+		}
+
+		@Override
+		public boolean contains(Object o)
+		{
+			return containsKey(o);
+		}
+	}
+
+	private class Values extends AbstractCollection<V>
+	{
+		public Iterator<V> iterator()
+		{
+			return new ValueIterator();
+		}
+
+		@SuppressWarnings({"unchecked"})
+		@Override
+		public void forEach(Consumer<? super V> action)
+		{
+			String[] keys = m_keys;
+			Object[] values = m_values;
+			int modCount = m_modCount;
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] != null) action.accept((V) values[i]);
+			}
+			checkModCount(modCount);
+		}
+
+		public int size()
+		{
+			return m_size;
+		}
+
+		@Override
+		public Spliterator<V> spliterator()
+		{
+			return new ValueSpliterator<V>(m_keys, m_values, 0, m_keys.length, m_size, Spliterator.SIZED);
+		}
+
+		@Override
+		public boolean contains(Object o)
+		{
+			return containsValue(o);
+		}
+
+		@Override
+		public boolean remove(Object o)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void clear()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class EntrySet extends View<Entry<String, V>>
+	{
+		public Iterator<Entry<String, V>> iterator()
+		{
+			return new EntryIterator();
+		}
+
+		@Override
+		public Spliterator<Entry<String, V>> spliterator()
+		{
+			return new EntrySpliterator<V>(m_keys, m_values, 0, m_keys.length, m_size, Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED);
+		}
+
+		@Override
+		public boolean contains(Object o)
+		{
+			if (!(o instanceof Entry)) return false;
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			int index = find(entry.getKey());
+			if (index < 0) return false;
+			Object value = m_values[index];
+			return value == null ? entry.getValue() == null : value.equals(entry.getValue());
+		}
+
+		@SuppressWarnings({"unchecked"})
+		@Override
+		public Object[] toArray()
+		{
+			Object[] entries = new Object[m_size];
+			int i = 0;
+			for (int j = 0; j < m_keys.length; j++)
+			{
+				if (m_keys[j] != null)
+				{
+					entries[i++] = new SimpleImmutableEntry<String, V>(m_keys[j], (V) m_values[j]);
+				}
+			}
+			return entries;
+		}
+
+		@SuppressWarnings({"unchecked"})
+		@Override
+		public <T> T[] toArray(T[] a)
+		{
+			Object[] entries = toArray();
+			if (a.length < entries.length)
+			{
+				a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), entries.length);
+			}
+			System.arraycopy(entries, 0, a, 0, entries.length);
+			if (a.length > entries.length) a[entries.length] = null;
+			return a;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.aegik.transactionality;
+
+/**
+ * A listener notified of the transactions of a root, for metrics.
+ * <p>
+ * The listener is called on the thread running the transaction, so
+ * implementations should be fast and must not throw. Unlike a
+ * {@link CommitListener} it sees every transaction, including the ones
+ * rolled back, but not their changes.
+ * <p>
+ * A root without a listener does no timing at all, so metrics cost
+ * nothing unless enabled.
+ *
+ * @see Root#setTransactionListener(TransactionListener)
+ * @see TransactionMetrics
+ * @author Christoffer Lerno
+ */
+public interface TransactionListener
+{
+	/**
+	 * Called when a transaction begins.
+	 *
+	 * @param root the root of the transaction.
+	 */
+	void transactionBegun(Root root);
+
+	/**
+	 * Called when a transaction has been committed, before the commit
+	 * listeners are notified.
+	 *
+	 * @param root the root of the transaction.
+	 * @param journalLength the number of undo records of the transaction.
+	 * @param nanos the duration of the transaction, in nanoseconds.
+	 */
+	void transactionCommitted(Root root, int journalLength, long nanos);
+
+	/**
+	 * Called when a transaction has been rolled back.
+	 *
+	 * @param root the root of the transaction.
+	 * @param journalLength the number of undo records rolled back.
+	 * @param nanos the duration of the transaction, including the rollback, in nanoseconds.
+	 * @param rollbackNanos the duration of the rollback, in nanoseconds.
+	 */
+	void transactionRolledBack(Root root, int journalLength, long nanos, long rollbackNanos);
+
+	/**
+	 * Called when a proxy is created for an object of the root.
+	 *
+	 * @param root the root of the proxy.
+	 * @param c the interface of the proxy.
+	 */
+	void proxyCreated(Root root, Class<? extends Transactional> c);
+}
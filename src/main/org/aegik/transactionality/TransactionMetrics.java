@@ -0,0 +1,219 @@
+package org.aegik.transactionality;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects transaction metrics from any number of roots.
+ * <p>
+ * Counts begun, committed and rolled back transactions, and keeps
+ * histograms of the journal length and duration of transactions and of
+ * the duration of rollbacks. The number of proxies created is counted
+ * per interface.
+ * <p>
+ * Example, collecting metrics from all roots and publishing them in JMX:
+ * <code>
+ * <pre>
+ * TransactionMetrics metrics = new TransactionMetrics();
+ * metrics.register("main");
+ * Transactionality.setTransactionListener(metrics);
+ * </pre>
+ * </code>
+ * <em>This class is thread-safe.</em>
+ *
+ * @see Root#setTransactionListener(TransactionListener)
+ * @author Christoffer Lerno
+ */
+public class TransactionMetrics implements TransactionListener, TransactionMetricsMXBean
+{
+	private final AtomicLong m_begins;
+	private final AtomicLong m_commits;
+	private final AtomicLong m_rollbacks;
+	private final Histogram m_journalLengths;
+	private final Histogram m_transactionNanos;
+	private final Histogram m_rollbackNanos;
+	private final ConcurrentMap<Class<?>, AtomicLong> m_proxyCounts;
+
+	/**
+	 * Creates metrics with all counters at zero.
+	 */
+	public TransactionMetrics()
+	{
+		m_begins = new AtomicLong();
+		m_commits = new AtomicLong();
+		m_rollbacks = new AtomicLong();
+		m_journalLengths = new Histogram();
+		m_transactionNanos = new Histogram();
+		m_rollbackNanos = new Histogram();
+		m_proxyCounts = new ConcurrentHashMap<Class<?>, AtomicLong>();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server.
+	 *
+	 * @param name the name of the metrics, unique among registered metrics.
+	 * @return the object name the metrics were registered under.
+	 * @throws JMException if the registration failed.
+	 */
+	public ObjectName register(String name) throws JMException
+	{
+		ObjectName objectName = new ObjectName(getClass().getPackage().getName()
+		                                       + ":type=TransactionMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	public void transactionBegun(Root root)
+	{
+		m_begins.incrementAndGet();
+	}
+
+	public void transactionCommitted(Root root, int journalLength, long nanos)
+	{
+		m_commits.incrementAndGet();
+		m_journalLengths.record(journalLength);
+		m_transactionNanos.record(nanos);
+	}
+
+	public void transactionRolledBack(Root root, int journalLength, long nanos, long rollbackNanos)
+	{
+		m_rollbacks.incrementAndGet();
+		m_journalLengths.record(journalLength);
+		m_transactionNanos.record(nanos);
+		m_rollbackNanos.record(rollbackNanos);
+	}
+
+	public void proxyCreated(Root root, Class<? extends Transactional> c)
+	{
+		AtomicLong count = m_proxyCounts.get(c);
+		if (count == null)
+		{
+			AtomicLong newCount = new AtomicLong();
+			count = m_proxyCounts.putIfAbsent(c, newCount);
+			if (count == null) count = newCount;
+		}
+		count.incrementAndGet();
+	}
+
+	public long getBeginCount()
+	{
+		return m_begins.get();
+	}
+
+	public long getCommitCount()
+	{
+		return m_commits.get();
+	}
+
+	public long getRollbackCount()
+	{
+		return m_rollbacks.get();
+	}
+
+	/**
+	 * Returns the journal lengths of committed and rolled back transactions.
+	 *
+	 * @return the histogram of journal lengths.
+	 */
+	public Histogram getJournalLengths()
+	{
+		return m_journalLengths;
+	}
+
+	/**
+	 * Returns the durations of committed and rolled back transactions.
+	 *
+	 * @return the histogram of durations in nanoseconds.
+	 */
+	public Histogram getTransactionNanos()
+	{
+		return m_transactionNanos;
+	}
+
+	/**
+	 * Returns the durations of the rollbacks.
+	 *
+	 * @return the histogram of rollback durations in nanoseconds.
+	 */
+	public Histogram getRollbackNanos()
+	{
+		return m_rollbackNanos;
+	}
+
+	public double getMeanJournalLength()
+	{
+		return m_journalLengths.getMean();
+	}
+
+	public long getMaxJournalLength()
+	{
+		return m_journalLengths.getMax();
+	}
+
+	public long[] getJournalLengthHistogram()
+	{
+		return m_journalLengths.getBuckets();
+	}
+
+	public double getMeanTransactionNanos()
+	{
+		return m_transactionNanos.getMean();
+	}
+
+	public long getMaxTransactionNanos()
+	{
+		return m_transactionNanos.getMax();
+	}
+
+	public long[] getTransactionNanosHistogram()
+	{
+		return m_transactionNanos.getBuckets();
+	}
+
+	public double getMeanRollbackNanos()
+	{
+		return m_rollbackNanos.getMean();
+	}
+
+	public long getMaxRollbackNanos()
+	{
+		return m_rollbackNanos.getMax();
+	}
+
+	public long[] getRollbackNanosHistogram()
+	{
+		return m_rollbackNanos.getBuckets();
+	}
+
+	/**
+	 * Returns the number of proxies created per interface.
+	 *
+	 * @return a sorted map from interface name to the number of proxies created.
+	 */
+	public Map<String, Long> getProxyCounts()
+	{
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<Class<?>, AtomicLong> entry : m_proxyCounts.entrySet())
+		{
+			counts.put(entry.getKey().getName(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public void reset()
+	{
+		m_begins.set(0);
+		m_commits.set(0);
+		m_rollbacks.set(0);
+		m_journalLengths.reset();
+		m_transactionNanos.reset();
+		m_rollbackNanos.reset();
+		m_proxyCounts.clear();
+	}
+}
@@ -0,0 +1,33 @@
+package org.aegik.transactionality;
+
+import java.util.Map;
+
+/**
+ * The JMX interface of {@link TransactionMetrics}.
+ * <p>
+ * Durations are in nanoseconds. Histograms are arrays of power of two
+ * buckets, see {@link Histogram}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface TransactionMetricsMXBean
+{
+	long getBeginCount();
+	long getCommitCount();
+	long getRollbackCount();
+	double getMeanJournalLength();
+	long getMaxJournalLength();
+	long[] getJournalLengthHistogram();
+	double getMeanTransactionNanos();
+	long getMaxTransactionNanos();
+	long[] getTransactionNanosHistogram();
+	double getMeanRollbackNanos();
+	long getMaxRollbackNanos();
+	long[] getRollbackNanosHistogram();
+	Map<String, Long> getProxyCounts();
+
+	/**
+	 * Resets all counters and histograms.
+	 */
+	void reset();
+}
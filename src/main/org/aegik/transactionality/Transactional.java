@@ -14,7 +14,9 @@ public interface Transactional extends NonPrimitive
 	Object remove(String key);
 	Map<String, Object> primitive();
 	void beginTransaction();
-	void commit();
+	ChangeSet commit();
 	void rollback();
 	boolean isInTransaction();
+	void freeze();
+	boolean isFrozen();
 }
@@ -1,15 +1,29 @@
 package org.aegik.transactionality;
 
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 /** @author Christoffer Lerno */
 abstract class TransactionalContainer<C> implements NonPrimitive
 {
 	private final Root m_root;
 	private final ElementType<C> m_internalType;
+	private TransactionalContainer<?> m_parent;
+	private String m_parentKey;
+	private int m_position;
+	private List<PropertyIndex<C>> m_indexes;
 
 	TransactionalContainer(Root root, ElementType<C> internalType)
 	{
 		m_root = root;
 		m_internalType = internalType;
+		m_parent = null;
+		m_parentKey = null;
+		m_position = 0;
+		m_indexes = null;
 	}
 
 	public Root root()
@@ -33,4 +47,385 @@ abstract class TransactionalContainer<C> implements NonPrimitive
 		if (m_root == null) return;
 		m_root.addAction(undo);
 	}
+
+	/**
+	 * Tests if changes to this container are currently journaled.
+	 *
+	 * @return true if the container belongs to a root in a transaction.
+	 */
+	protected boolean isJournaling()
+	{
+		return m_root != null && m_root.isInTransaction();
+	}
+
+	/**
+	 * Returns the shared instance of a key stored in this container.
+	 *
+	 * @param key the key.
+	 * @return a String equal to the key, interned using the key table of
+	 * the root if there is one.
+	 */
+	protected String canonicalKey(String key)
+	{
+		KeyTable table = m_root == null ? null : m_root.getKeyTable();
+		return table == null ? key : table.intern(key);
+	}
+
+	/**
+	 * Verifies that this container may be modified.
+	 *
+	 * @throws UnsupportedOperationException if the tree has been frozen.
+	 */
+	protected void checkMutable()
+	{
+		if (m_root != null && m_root.isFrozen())
+		{
+			throw new UnsupportedOperationException("Frozen tree cannot be modified.");
+		}
+	}
+
+	/**
+	 * Replaces the internal storage of this container and its children
+	 * with a compact read-only form.
+	 * <p>
+	 * Only called once the root is frozen.
+	 */
+	abstract void compact();
+
+	/**
+	 * Registers this container as the parent of an element, if the element
+	 * is a container.
+	 * <p>
+	 * Moving a container from one parent to another is journaled, so that
+	 * a rollback also restores the parent.
+	 *
+	 * @param element the element added to this container.
+	 * @param key the key of the element, or null if the element is held
+	 * by position.
+	 */
+	protected void adopt(Object element, String key)
+	{
+		TransactionalContainer<?> child = containerOf(element);
+		if (child == null) return;
+		if (child.m_parent == this && (key == null ? child.m_parentKey == null : key.equals(child.m_parentKey))) return;
+		if (child.m_parent != null)
+		{
+			addUndo(new AdoptUndo(child));
+		}
+		child.m_parent = this;
+		child.m_parentKey = key;
+	}
+
+	/**
+	 * Registers this container as the parent of an element held by position,
+	 * if the element is a container.
+	 *
+	 * @param element the element added to this container.
+	 * @param position the index of the element, used as a hint when
+	 * looking up the element later.
+	 * @see #adopt(Object, String)
+	 */
+	protected void adopt(Object element, int position)
+	{
+		adopt(element, null);
+		TransactionalContainer<?> child = containerOf(element);
+		if (child != null) child.m_position = position;
+	}
+
+	/**
+	 * Returns the last known index of this container in its parent.
+	 *
+	 * @return the index this container was last found at, which may be
+	 * out of date.
+	 */
+	int position()
+	{
+		return m_position;
+	}
+
+	/**
+	 * Updates the last known index of this container in its parent.
+	 *
+	 * @param position the index the container was found at.
+	 */
+	void setPosition(int position)
+	{
+		m_position = position;
+	}
+
+	/**
+	 * Returns the container this container was last added to.
+	 *
+	 * @return the parent, or null if the container was never added to another.
+	 */
+	TransactionalContainer<?> parent()
+	{
+		return m_parent;
+	}
+
+	/**
+	 * Returns the path segment under which this container is held by its parent.
+	 *
+	 * @return the key or index of this container, or null if it has no
+	 * parent or is no longer held by it.
+	 */
+	Object parentSegment()
+	{
+		return m_parent == null ? null : m_parent.keyOf(this, m_parentKey);
+	}
+
+	/**
+	 * Returns the elements of this container.
+	 *
+	 * @return a read-only collection of the elements.
+	 */
+	Collection<? extends C> elements()
+	{
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Attaches secondary indexes to this container and fills them with
+	 * the current elements.
+	 *
+	 * @param indexes the indexes to maintain.
+	 */
+	void setIndexes(List<PropertyIndex<C>> indexes)
+	{
+		m_indexes = indexes;
+		indexRebuild();
+	}
+
+	/**
+	 * Returns an index over a property of the elements.
+	 *
+	 * @param property the key of the indexed property.
+	 * @param sorted true to only look for a sorted index.
+	 * @return the index.
+	 * @throws IllegalArgumentException if the property has no such index.
+	 */
+	PropertyIndex<C> findIndex(String property, boolean sorted)
+	{
+		if (m_indexes != null)
+		{
+			for (PropertyIndex<C> index : m_indexes)
+			{
+				if (index.getProperty().equals(property) && (!sorted || index instanceof SortedPropertyIndex))
+				{
+					return index;
+				}
+			}
+		}
+		throw new IllegalArgumentException("No " + (sorted ? "sorted " : "") + "index on '" + property + "'");
+	}
+
+	/**
+	 * Adds an element to the indexes of this container, if any.
+	 *
+	 * @param element the added element.
+	 */
+	protected void indexAdd(C element)
+	{
+		if (m_indexes == null) return;
+		for (PropertyIndex<C> index : m_indexes)
+		{
+			index.add(element);
+		}
+	}
+
+	/**
+	 * Removes an element from the indexes of this container, if any.
+	 *
+	 * @param element the removed element.
+	 */
+	protected void indexRemove(C element)
+	{
+		if (m_indexes == null) return;
+		for (PropertyIndex<C> index : m_indexes)
+		{
+			index.remove(element);
+		}
+	}
+
+	/**
+	 * Rebuilds the indexes of this container, if any, after a bulk change.
+	 */
+	protected void indexRebuild()
+	{
+		if (m_indexes == null) return;
+		for (PropertyIndex<C> index : m_indexes)
+		{
+			index.rebuild(elements());
+		}
+	}
+
+	/**
+	 * Notifies the parent of this container that a property has been set,
+	 * so that indexes over the property are updated.
+	 *
+	 * @param key the key of the property.
+	 */
+	protected void propertyChanged(String key)
+	{
+		if (m_parent == null || m_parent.m_indexes == null) return;
+		for (PropertyIndex<?> index : m_parent.m_indexes)
+		{
+			if (index.getProperty().equals(key)) index.update(this);
+		}
+	}
+
+	/**
+	 * Returns the path segment under which a child container is held.
+	 *
+	 * @param child the child container.
+	 * @param key the key the child was registered with.
+	 * @return the path segment, or null if the child is no longer held
+	 * by this container.
+	 */
+	Object keyOf(TransactionalContainer<?> child, String key)
+	{
+		return null;
+	}
+
+	/**
+	 * Returns an entry of this container.
+	 *
+	 * @param key the key or index of the entry.
+	 * @return the value of the entry.
+	 * @throws ValidationException if the container has no such entry.
+	 */
+	Object entry(Object key)
+	{
+		throw new ValidationException("No entry " + key + " in " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Replaces an entry of this container using a primitive value.
+	 *
+	 * @param key the key or index of the entry.
+	 * @param value the new value in primitive form, null to remove the entry.
+	 * @throws ValidationException if the container has no such entry.
+	 */
+	void assign(Object key, Object value)
+	{
+		throw new ValidationException("No entry " + key + " in " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Inserts an element into this container using a primitive value.
+	 *
+	 * @param key the index to insert at.
+	 * @param value the new element in primitive form.
+	 * @throws ValidationException if the container is not an array.
+	 */
+	void insertEntry(Object key, Object value)
+	{
+		throw new ValidationException("Cannot insert " + key + " into " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Removes consecutive elements from this container.
+	 *
+	 * @param key the index of the first element to remove.
+	 * @param count the number of elements to remove.
+	 * @throws ValidationException if the container is not an array or the
+	 * range is out of bounds.
+	 */
+	void removeEntries(Object key, int count)
+	{
+		throw new ValidationException("Cannot remove " + key + " from " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Adds a member to this container using a primitive value.
+	 *
+	 * @param value the member in primitive form.
+	 * @throws ValidationException if the container is not a set.
+	 */
+	void addMember(Object value)
+	{
+		throw new ValidationException("Cannot add members to " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Removes a member from this container using a primitive value.
+	 *
+	 * @param value the member in primitive form.
+	 * @throws ValidationException if the container is not a set.
+	 */
+	void removeMember(Object value)
+	{
+		throw new ValidationException("Cannot remove members from " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Returns the path from the top of the tree to this container.
+	 *
+	 * @return the list of keys and indices leading to this container,
+	 * or null if the container is not attached to the tree.
+	 */
+	List<Object> path()
+	{
+		if (m_parent == null)
+		{
+			return m_root != null && m_root.isTop(this) ? new ArrayList<Object>() : null;
+		}
+		Object key = m_parent.keyOf(this, m_parentKey);
+		if (key == null) return null;
+		List<Object> path = m_parent.path();
+		if (path != null) path.add(key);
+		return path;
+	}
+
+	/**
+	 * Returns the container behind an element, unwrapping proxies.
+	 *
+	 * @param o the element.
+	 * @return the container, or null if the element isn't a container.
+	 */
+	static TransactionalContainer<?> containerOf(Object o)
+	{
+		if (o instanceof TransactionalContainer) return (TransactionalContainer<?>) o;
+		if (o instanceof Transactional) return (TransactionalContainer<?>) Proxy.getInvocationHandler(o);
+		return null;
+	}
+
+	/**
+	 * Compacts an element if it is a container.
+	 *
+	 * @param o the element to compact.
+	 */
+	static void compact(Object o)
+	{
+		TransactionalContainer<?> container = containerOf(o);
+		if (container != null) container.compact();
+	}
+
+	/**
+	 * Implements undo for moving a container to a new parent.
+	 */
+	@SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject"})
+	private static class AdoptUndo implements Undo
+	{
+		private final TransactionalContainer<?> m_child;
+		private final TransactionalContainer<?> m_parent;
+		private final String m_parentKey;
+
+		private AdoptUndo(TransactionalContainer<?> child)
+		{
+			m_child = child;
+			m_parent = child.m_parent;
+			m_parentKey = child.m_parentKey;
+		}
+
+		public void undo()
+		{
+			m_child.m_parent = m_parent;
+			m_child.m_parentKey = m_parentKey;
+		}
+
+		public void collect(ChangeSet.Builder changes)
+		{
+		}
+	}
 }
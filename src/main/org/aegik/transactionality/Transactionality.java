@@ -6,21 +6,75 @@ import xmlwise.Plist;
 import java.lang.reflect.Proxy;
 import java.io.IOException;
 import java.io.File;
+import java.util.Collection;
 
 /** @author Christoffer Lerno */
 public class Transactionality
 {
+	private static volatile KeyTable s_keyTable = null;
+	private static volatile BlobTable s_blobTable = null;
+	private static volatile TransactionListener s_transactionListener = null;
+
+	/**
+	 * Sets the key table given to roots created from now on.
+	 * <p>
+	 * The table may be shared between any number of roots, so that
+	 * dictionary keys common to several trees are only held once.
+	 *
+	 * @param keyTable the key table to use, or null to not intern keys.
+	 * @see Root#setKeyTable(KeyTable)
+	 */
+	public static void setKeyTable(KeyTable keyTable)
+	{
+		s_keyTable = keyTable;
+	}
+
+	/**
+	 * Sets the blob table given to roots created from now on.
+	 * <p>
+	 * The table may be shared between any number of roots, so that
+	 * equal byte arrays in several trees are only held once.
+	 *
+	 * @param blobTable the blob table to use, or null to not share byte arrays.
+	 * @see Root#setBlobTable(BlobTable)
+	 */
+	public static void setBlobTable(BlobTable blobTable)
+	{
+		s_blobTable = blobTable;
+	}
+
+	/**
+	 * Sets the transaction listener given to roots created from now on.
+	 * <p>
+	 * The listener may be shared between any number of roots, so that
+	 * metrics are collected for all trees.
+	 *
+	 * @param listener the listener to use, or null to collect no metrics.
+	 * @see Root#setTransactionListener(TransactionListener)
+	 */
+	public static void setTransactionListener(TransactionListener listener)
+	{
+		s_transactionListener = listener;
+	}
+
 	public static <C extends Transactional> C createRoot(Class<C> c)
 	{
 		Root root = new Root();
-		return createProxy(root, c);
+		root.setKeyTable(s_keyTable);
+		root.setBlobTable(s_blobTable);
+		root.setTransactionListener(s_transactionListener);
+		C object = createProxy(root, c);
+		root.setTop(TransactionalContainer.containerOf(object));
+		return object;
 	}
 
     @SuppressWarnings({"unchecked"})
     static <C extends Transactional> C createProxy(Root root, Class<C> c)
 	{
+		TransactionListener listener = root.getTransactionListener();
+		if (listener != null) listener.proxyCreated(root, c);
 		return (C) Proxy.newProxyInstance(root.getClass().getClassLoader(),
-		                                  new Class[]{c},
+		                                  new Class<?>[]{c},
 		                                  new ProxyInvocationHandler(root, Klass.getKlass(c)));
 	}
 
@@ -43,4 +97,56 @@ public class Transactionality
 		return object;
 	}
 
+	/**
+	 * Applies a batch of change sets to a follower tree in a single transaction.
+	 * <p>
+	 * The paths of the changes are resolved against the schema of the
+	 * follower, which must be the top object of its tree. If any change
+	 * cannot be applied, the transaction is rolled back.
+	 *
+	 * @param follower the top object of the tree to update.
+	 * @param changeSets the change sets to apply, in commit order.
+	 * @return the changes made to the follower, or null if the root of the
+	 * follower builds no change sets, see {@link Root#commit()}.
+	 * @throws ValidationException if a change doesn't fit the schema of the follower.
+	 * @throws IllegalStateException if the follower is already in a transaction.
+	 */
+	public static ChangeSet apply(Transactional follower, Collection<ChangeSet> changeSets)
+	{
+		TransactionalContainer<?> top = TransactionalContainer.containerOf(follower);
+		Root root = follower.root();
+		root.beginTransaction();
+		boolean rollback = true;
+		try
+		{
+			for (ChangeSet changeSet : changeSets)
+			{
+				changeSet.applyTo(top);
+			}
+			rollback = false;
+			return root.commit();
+		}
+		finally
+		{
+			if (rollback) root.rollback();
+		}
+	}
+
+	/**
+	 * Applies a batch of change sets in binary format to a follower tree
+	 * in a single transaction.
+	 *
+	 * @param follower the top object of the tree to update.
+	 * @param changeSets the change sets, as written by {@link ChangeSet#toBytes(Collection)}.
+	 * @return the changes made to the follower, or null if the root of the
+	 * follower builds no change sets.
+	 * @throws IOException if the binary data is corrupt.
+	 * @throws ValidationException if a change doesn't fit the schema of the follower.
+	 * @see #apply(Transactional, Collection)
+	 */
+	public static ChangeSet apply(Transactional follower, byte[] changeSets) throws IOException
+	{
+		return apply(follower, ChangeSet.fromBytes(changeSets));
+	}
+
 }
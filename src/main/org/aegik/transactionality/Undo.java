@@ -8,4 +8,12 @@ package org.aegik.transactionality;
 interface Undo
 {
 	void undo();
+
+	/**
+	 * Registers the entry or container changed by the action with
+	 * a change set under construction.
+	 *
+	 * @param changes the change set builder.
+	 */
+	void collect(ChangeSet.Builder changes);
 }
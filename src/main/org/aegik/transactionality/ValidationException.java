@@ -3,6 +3,8 @@ package org.aegik.transactionality;
 /** @author Christoffer Lerno */
 public class ValidationException extends RuntimeException
 {
+	private static final long serialVersionUID = 1L;
+
 	public ValidationException()
 	{
 	}
@@ -0,0 +1,120 @@
+package org.aegik.transactionality;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * A modifiable list holding a persistent vector.
+ * <p>
+ * Each modification replaces the vector with a new one, so copies and
+ * snapshots of the list are O(1) and share their structure with it.
+ *
+ * @see PersistentVector
+ * @author Christoffer Lerno
+ */
+final class VectorList<E> extends AbstractList<E> implements RandomAccess
+{
+	private PersistentVector<E> m_vector;
+
+	VectorList()
+	{
+		this(PersistentVector.<E>empty());
+	}
+
+	VectorList(PersistentVector<E> vector)
+	{
+		m_vector = vector;
+	}
+
+	/**
+	 * Returns the current contents of this list.
+	 *
+	 * @return an immutable vector, unaffected by later changes to this list.
+	 */
+	PersistentVector<E> vector()
+	{
+		return m_vector;
+	}
+
+	public E get(int index)
+	{
+		return m_vector.get(index);
+	}
+
+	public int size()
+	{
+		return m_vector.size();
+	}
+
+	@Override
+	public E set(int index, E element)
+	{
+		E old = m_vector.get(index);
+		m_vector = m_vector.with(index, element);
+		return old;
+	}
+
+	@Override
+	public void add(int index, E element)
+	{
+		m_vector = index == m_vector.size() ? m_vector.plus(element) : m_vector.plus(index, element);
+		modCount++;
+	}
+
+	@Override
+	public E remove(int index)
+	{
+		E old = m_vector.get(index);
+		m_vector = index == m_vector.size() - 1 ? m_vector.minus() : m_vector.minus(index);
+		modCount++;
+		return old;
+	}
+
+	@Override
+	public void forEach(Consumer<? super E> action)
+	{
+		m_vector.forEach(action);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> collection)
+	{
+		return filter(collection, false);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> collection)
+	{
+		return filter(collection, true);
+	}
+
+	/**
+	 * Keeps the elements that are, or are not, in a collection, building
+	 * the new vector in a single pass.
+	 *
+	 * @param collection the collection to test against.
+	 * @param retain true to keep the elements in the collection.
+	 * @return true if any element was removed.
+	 */
+	private boolean filter(Collection<?> collection, boolean retain)
+	{
+		PersistentVector<E> vector = PersistentVector.empty();
+		for (E element : m_vector)
+		{
+			if (collection.contains(element) == retain) vector = vector.plus(element);
+		}
+		if (vector.size() == m_vector.size()) return false;
+		m_vector = vector;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		m_vector = PersistentVector.empty();
+		modCount++;
+	}
+}
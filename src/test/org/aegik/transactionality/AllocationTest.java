@@ -0,0 +1,195 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks the bytes allocated per operation against fixed budgets.
+ * <p>
+ * The allocation is read from the allocation counter of the current
+ * thread, after warming up the operation so that the JIT has had the
+ * chance to remove allocations that don't escape. The lowest of several
+ * rounds is used, so that the occasional allocation by the JIT or the
+ * class loader doesn't fail the test.
+ * <p>
+ * A failure here means that an operation has started to allocate more
+ * than it used to. Raise a budget only if the extra allocation is
+ * intended. The budgets assume a HotSpot JVM with compressed pointers,
+ * and the tests are skipped on JVMs without allocation counters.
+ *
+ * @author Christoffer Lerno
+ */
+public class AllocationTest extends TestCase
+{
+	private final static int WARMUP = 50000;
+	private final static int ITERATIONS = 10000;
+	private final static int ROUNDS = 5;
+
+	interface Account extends Transactional
+	{
+		String getName();
+		void setName(String name);
+		Integer getBalance();
+		void setBalance(Integer balance);
+		Dict<Integer> getScores();
+	}
+
+	private com.sun.management.ThreadMXBean m_threads;
+	private Account m_account;
+	private Dict<Integer> m_scores;
+	private int m_counter;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean
+		    && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+		{
+			m_threads = (com.sun.management.ThreadMXBean) threads;
+			m_threads.setThreadAllocatedMemoryEnabled(true);
+		}
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("name", "account");
+		data.put("balance", 0);
+		Map<String, Object> scores = new HashMap<String, Object>();
+		for (int i = 0; i < 16; i++)
+		{
+			scores.put("s" + i, i);
+		}
+		data.put("scores", scores);
+		m_account = Transactionality.createRoot(Account.class);
+		m_account.init(data);
+		m_scores = m_account.getScores();
+		m_counter = 0;
+	}
+
+	/**
+	 * Measures the allocation of an operation.
+	 *
+	 * @param operation the operation to measure.
+	 * @return the lowest number of bytes allocated per operation over the rounds.
+	 */
+	private long allocated(Runnable operation)
+	{
+		for (int i = 0; i < WARMUP; i++)
+		{
+			operation.run();
+		}
+		long id = Thread.currentThread().getId();
+		long lowest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			long start = m_threads.getThreadAllocatedBytes(id);
+			for (int i = 0; i < ITERATIONS; i++)
+			{
+				operation.run();
+			}
+			lowest = Math.min(lowest, (m_threads.getThreadAllocatedBytes(id) - start) / ITERATIONS);
+		}
+		return lowest;
+	}
+
+	private void assertBudget(String name, long budget, Runnable operation)
+	{
+		if (m_threads == null) return;
+		long bytes = allocated(operation);
+		assertTrue(name + " allocated " + bytes + " bytes, budget is " + budget, bytes <= budget);
+	}
+
+	public void testGetter()
+	{
+		assertBudget("getter", 16, new Runnable()
+		{
+			public void run()
+			{
+				m_account.getName();
+			}
+		});
+	}
+
+	public void testSetter()
+	{
+		assertBudget("setter", 64, new Runnable()
+		{
+			public void run()
+			{
+				m_account.setBalance(m_counter++ & 127);
+			}
+		});
+	}
+
+	public void testDictPut()
+	{
+		final String[] keys = new String[16];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = "s" + i;
+		}
+		assertBudget("put", 32, new Runnable()
+		{
+			public void run()
+			{
+				m_scores.put(keys[m_counter++ & 15], m_counter & 127);
+			}
+		});
+		m_account.beginTransaction();
+		try
+		{
+			assertBudget("put in transaction", 64, new Runnable()
+			{
+				public void run()
+				{
+					m_scores.put(keys[m_counter++ & 15], m_counter & 127);
+				}
+			});
+		}
+		finally
+		{
+			m_account.rollback();
+		}
+	}
+
+	public void testCommit()
+	{
+		assertBudget("commit", 64, new Runnable()
+		{
+			public void run()
+			{
+				m_account.beginTransaction();
+				m_scores.put("s1", m_counter++ & 127);
+				m_account.commit();
+			}
+		});
+	}
+
+	public void testCommitRecordingChanges()
+	{
+		m_account.root().setRecordingChanges(true);
+		assertBudget("commit recording changes", 2560, new Runnable()
+		{
+			public void run()
+			{
+				m_account.beginTransaction();
+				m_scores.put("s1", m_counter++ & 127);
+				m_account.commit();
+			}
+		});
+	}
+
+	public void testRollback()
+	{
+		assertBudget("rollback", 64, new Runnable()
+		{
+			public void run()
+			{
+				m_account.beginTransaction();
+				m_scores.put("s1", m_counter++ & 127);
+				m_account.rollback();
+			}
+		});
+	}
+}
@@ -2,6 +2,19 @@ package org.aegik.transactionality;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
 /**
  * Undocumented Class
  *
@@ -9,9 +22,377 @@ import junit.framework.TestCase;
  */
 public class ArrayTest extends TestCase
 {
+	interface Queue extends Transactional
+	{
+		@Storage(ArrayStorage.RING)
+		Array<Integer> getJobs();
+	}
+
+	interface History extends Transactional
+	{
+		@Storage(ArrayStorage.VECTOR)
+		Array<Integer> getEntries();
+	}
+
+	interface Invalid extends Transactional
+	{
+		@Storage(ArrayStorage.RING)
+		Dict<Integer> getJobs();
+	}
+
     public void testNewArray()
     {
         Array.newArray();    
     }
 
+	public void testRingList()
+	{
+		Random random = new Random(11);
+		RingList<Integer> ring = new RingList<Integer>();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 20000; i++)
+		{
+			int operation = random.nextInt(5);
+			if (operation < 3 || expected.isEmpty())
+			{
+				int index = operation == 0 ? 0 : operation == 1 ? expected.size() : random.nextInt(expected.size() + 1);
+				expected.add(index, i);
+				ring.add(index, i);
+			}
+			else
+			{
+				int index = operation == 3 ? 0 : random.nextInt(expected.size());
+				assertEquals(expected.remove(index), ring.remove(index));
+			}
+			if (i % 1000 == 0) ring.trimToSize();
+		}
+		assertEquals(expected, ring);
+	}
+
+	public void testRingStorage()
+	{
+		Queue queue = Transactionality.createRoot(Queue.class);
+		Array<Integer> jobs = queue.getJobs();
+		assertEquals(ArrayStorage.RING, jobs.getStorage());
+		for (int i = 0; i < 10; i++)
+		{
+			jobs.add(i);
+		}
+		queue.beginTransaction();
+		assertEquals((Integer) 0, jobs.removeFirst());
+		assertEquals((Integer) 1, jobs.removeFirst());
+		jobs.add(0, -1);
+		jobs.add(10);
+		jobs.clear();
+		jobs.add(20);
+		queue.rollback();
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), jobs);
+		assertEquals(ArrayStorage.RING, new Array<Integer>(jobs).getStorage());
+		try
+		{
+			Transactionality.createRoot(Invalid.class);
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertTrue(e.getMessage().startsWith("Storage on non-Array type"));
+		}
+	}
+
+	public void testRingDrain()
+	{
+		Queue queue = Transactionality.createRoot(Queue.class);
+		Queue follower = Transactionality.createRoot(Queue.class);
+		queue.root().setRecordingChanges(true);
+		Array<Integer> jobs = queue.getJobs();
+		for (int i = 0; i < 100000; i++)
+		{
+			jobs.add(i);
+			follower.getJobs().add(i);
+		}
+		for (int i = 0; i < 100; i++)
+		{
+			queue.beginTransaction();
+			for (int j = 0; j < 1000; j++)
+			{
+				assertEquals((Integer) (i * 1000 + j), jobs.removeFirst());
+			}
+			jobs.add(i);
+			ChangeSet changes = queue.commit();
+			assertEquals("[[jobs, 0] DELETE 1000, [jobs, " + (jobs.size() - 1) + "] INSERT " + i + "]", changes.toString());
+			Transactionality.apply(follower, Arrays.asList(changes));
+		}
+		assertEquals(100, jobs.size());
+		assertEquals(jobs, follower.getJobs());
+	}
+
+	public void testPersistentVector()
+	{
+		Random random = new Random(5);
+		PersistentVector<Integer> vector = PersistentVector.empty();
+		List<Integer> expected = new ArrayList<Integer>();
+		List<PersistentVector<Integer>> versions = new ArrayList<PersistentVector<Integer>>();
+		List<List<Integer>> expectedVersions = new ArrayList<List<Integer>>();
+		for (int i = 0; i < 40000; i++)
+		{
+			int operation = random.nextInt(10);
+			if (operation < 6 || expected.isEmpty())
+			{
+				vector = vector.plus(i);
+				expected.add(i);
+			}
+			else if (operation < 8)
+			{
+				int index = random.nextInt(expected.size());
+				vector = vector.with(index, -i);
+				expected.set(index, -i);
+			}
+			else if (operation < 9)
+			{
+				vector = vector.minus();
+				expected.remove(expected.size() - 1);
+			}
+			else
+			{
+				int index = Math.max(0, expected.size() - 1 - random.nextInt(40));
+				vector = vector.minus(index);
+				expected.remove(index);
+			}
+			if (i % 5000 == 0)
+			{
+				versions.add(vector);
+				expectedVersions.add(new ArrayList<Integer>(expected));
+			}
+		}
+		assertEquals(expected, vector);
+		assertEquals(expectedVersions, versions);
+		vector = vector.plus(3, 1000);
+		expected.add(3, 1000);
+		assertEquals(expected, vector);
+	}
+
+	public void testVectorStorage()
+	{
+		History history = Transactionality.createRoot(History.class);
+		Array<Integer> entries = history.getEntries();
+		for (int i = 0; i < 100; i++)
+		{
+			entries.add(i);
+		}
+		List<Integer> snapshot = entries.snapshot();
+		Array<Integer> copy = new Array<Integer>(entries);
+		history.beginTransaction();
+		entries.set(50, -1);
+		entries.removeLast();
+		entries.remove(0);
+		entries.retainAll(Arrays.asList(1, 2, 3, -1));
+		assertEquals(Arrays.asList(1, 2, 3, -1), entries);
+		entries.clear();
+		history.rollback();
+		assertEquals(snapshot, entries);
+		assertEquals(snapshot, copy);
+		assertEquals(100, snapshot.size());
+		copy.add(100);
+		assertEquals(100, entries.size());
+		try
+		{
+			snapshot.add(1);
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+	}
+
+	public void testSet()
+	{
+		for (ArrayStorage storage : ArrayStorage.values())
+		{
+			Root root = new Root();
+			Array<Integer> array = new Array<Integer>(root, ElementType.<Integer>getReturnType(Integer.class), storage);
+			array.addAll(Arrays.asList(0, 1, 2, 3));
+			root.beginTransaction();
+			Iterator<Integer> iterator = array.iterator();
+			assertEquals((Integer) 0, iterator.next());
+			assertEquals((Integer) 2, array.set(2, 20));
+			assertEquals((Integer) 1, iterator.next());
+			assertEquals((Integer) 20, iterator.next());
+			array.set(2, 21);
+			assertEquals(Arrays.asList(0, 1, 21, 3), array);
+			root.rollback();
+			assertEquals(Arrays.asList(0, 1, 2, 3), array);
+		}
+		History history = Transactionality.createRoot(History.class);
+		history.root().setRecordingChanges(true);
+		history.getEntries().addAll(Arrays.asList(0, 1, 2, 3));
+		List<Integer> snapshot = history.getEntries().snapshot();
+		history.beginTransaction();
+		history.getEntries().set(1, 10);
+		history.getEntries().set(1, 11);
+		assertEquals("[[entries, 1]=11]", history.commit().toString());
+		assertEquals(Arrays.asList(0, 1, 2, 3), snapshot);
+	}
+
+	public void testIteration()
+	{
+		for (ArrayStorage storage : ArrayStorage.values())
+		{
+			Array<Integer> array = new Array<Integer>(null, ElementType.<Integer>getReturnType(Integer.class), storage);
+			for (int i = 0; i < 100; i++)
+			{
+				array.add(i);
+			}
+			final List<Integer> visited = new ArrayList<Integer>();
+			array.forEach(new Consumer<Integer>()
+			{
+				public void accept(Integer value)
+				{
+					visited.add(value);
+				}
+			});
+			assertEquals(array, visited);
+			assertEquals(100, array.stream().count());
+			Iterator<Integer> iterator = array.iterator();
+			assertEquals((Integer) 0, iterator.next());
+			try
+			{
+				iterator.remove();
+				fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+		}
+	}
+
+	public void testConcurrentModification()
+	{
+		for (ArrayStorage storage : ArrayStorage.values())
+		{
+			Root root = new Root();
+			Array<Integer> array = new Array<Integer>(root, ElementType.<Integer>getReturnType(Integer.class), storage);
+			array.addAll(Arrays.asList(0, 1, 2, 3, 4));
+			Iterator<Integer> iterator = array.iterator();
+			assertEquals((Integer) 0, iterator.next());
+			array.remove(0);
+			try
+			{
+				iterator.next();
+				fail();
+			}
+			catch (ConcurrentModificationException e)
+			{
+			}
+			root.beginTransaction();
+			iterator = array.iterator();
+			assertEquals((Integer) 1, iterator.next());
+			array.add(0, 99);
+			try
+			{
+				iterator.next();
+				fail();
+			}
+			catch (ConcurrentModificationException e)
+			{
+			}
+			iterator = array.iterator();
+			array.removeAll(Arrays.asList(99));
+			try
+			{
+				iterator.next();
+				fail();
+			}
+			catch (ConcurrentModificationException e)
+			{
+			}
+			ListIterator<Integer> listIterator = array.listIterator(array.size());
+			root.rollback();
+			try
+			{
+				listIterator.previous();
+				fail();
+			}
+			catch (ConcurrentModificationException e)
+			{
+			}
+			List<Integer> visited = new ArrayList<Integer>();
+			for (Integer value : array)
+			{
+				visited.add(value);
+			}
+			assertEquals(Arrays.asList(1, 2, 3, 4), visited);
+		}
+	}
+
+	public void testSubList()
+	{
+		for (ArrayStorage storage : ArrayStorage.values())
+		{
+			Array<Integer> array = new Array<Integer>(null, ElementType.<Integer>getReturnType(Integer.class), storage);
+			for (int i = 0; i < 10; i++)
+			{
+				array.add(i);
+			}
+			List<Integer> view = array.subList(2, 5);
+			assertEquals(Arrays.asList(2, 3, 4), view);
+			assertEquals(Arrays.asList(3, 4), view.subList(1, 3));
+			array.set(3, 30);
+			assertEquals(Arrays.asList(2, 30, 4), view);
+			try
+			{
+				view.set(0, 1);
+				fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+			try
+			{
+				view.get(3);
+				fail();
+			}
+			catch (IndexOutOfBoundsException e)
+			{
+			}
+			try
+			{
+				array.subList(5, 11);
+				fail();
+			}
+			catch (IndexOutOfBoundsException e)
+			{
+			}
+		}
+	}
+
+	public void testParallel() throws Exception
+	{
+		for (ArrayStorage storage : ArrayStorage.values())
+		{
+			final Array<Integer> array = new Array<Integer>(null, ElementType.<Integer>getReturnType(Integer.class), storage);
+			for (int i = 0; i < 10000; i++)
+			{
+				array.add(i);
+			}
+			Spliterator<Integer> spliterator = array.spliterator();
+			Spliterator<Integer> prefix = spliterator.trySplit();
+			assertTrue(prefix.hasCharacteristics(Spliterator.SUBSIZED));
+			assertEquals(5000, prefix.getExactSizeIfKnown());
+			assertEquals(5000, spliterator.getExactSizeIfKnown());
+			assertEquals(array, array.parallelStream().collect(Collectors.toList()));
+			for (int threads : new int[] { 1, 4, 16 })
+			{
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				List<Object> primitive = pool.submit(new Callable<List<Object>>()
+				{
+					public List<Object> call() throws Exception
+					{
+						return array.primitive();
+					}
+				}).get();
+				pool.shutdown();
+				assertEquals(array, primitive);
+			}
+		}
+	}
 }
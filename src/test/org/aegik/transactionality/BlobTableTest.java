@@ -0,0 +1,105 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class BlobTableTest extends TestCase
+{
+	interface Profile extends Transactional
+	{
+		ByteArray getAvatar();
+	}
+
+	public void testShare()
+	{
+		BlobTable table = new BlobTable(5, 4);
+		assertEquals(8, table.capacity());
+		byte[] blob = { 1, 2, 3, 4 };
+		assertSame(blob, table.share(blob));
+		assertSame(blob, table.share(new byte[] { 1, 2, 3, 4 }));
+		byte[] small = { 1, 2, 3 };
+		assertSame(small, table.share(small));
+		assertNotSame(small, table.share(new byte[] { 1, 2, 3 }));
+		assertEquals(1, table.getSharedCount());
+		assertEquals(4, table.getSavedBytes());
+		try
+		{
+			new BlobTable(0, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testCopyOnWrite()
+	{
+		Root root = new Root();
+		root.setBlobTable(new BlobTable(16, 0));
+		ByteArray first = ByteArray.load(root, new byte[] { 0, 10, 20, -5 });
+		ByteArray second = ByteArray.load(root, new byte[] { 0, 10, 20, -5 });
+		assertTrue(first.isShared());
+		assertTrue(second.isShared());
+		root.beginTransaction();
+		second.set(0, (byte) 1);
+		assertFalse(second.isShared());
+		assertEquals("000A14FB", first.toString());
+		assertEquals("010A14FB", second.toString());
+		second.replace(new byte[] { 1 });
+		root.rollback();
+		assertFalse(second.isShared());
+		assertEquals("000A14FB", second.toString());
+		root.beginTransaction();
+		first.fill((byte) 0);
+		first.xor(second);
+		root.commit();
+		assertEquals("000A14FB", first.toString());
+		assertTrue(ByteArray.load(root, new byte[] { 0, 10, 20, -5 }).isShared());
+		assertEquals(2, root.getBlobTable().getSharedCount());
+	}
+
+	public void testMinimumLength()
+	{
+		Root root = new Root();
+		root.setBlobTable(new BlobTable(16, 4));
+		assertEquals(4, root.getBlobTable().getMinimumLength());
+		ByteArray small = ByteArray.load(root, new byte[] { 1, 2, 3 });
+		assertFalse(small.isShared());
+		assertTrue(ByteArray.load(root, new byte[] { 1, 2, 3, 4 }).isShared());
+		root.beginTransaction();
+		small.set(0, (byte) 0);
+		root.commit();
+		assertEquals("000203", small.toString());
+	}
+
+	public void testLoad()
+	{
+		BlobTable table = new BlobTable(16, 0);
+		Transactionality.setBlobTable(table);
+		try
+		{
+			Profile first = Transactionality.createRoot(Profile.class);
+			Profile second = Transactionality.createRoot(Profile.class);
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("avatar", new byte[] { 1, 2, 3 });
+			first.init(data);
+			data.put("avatar", new byte[] { 1, 2, 3 });
+			second.init(data);
+			assertEquals(1, table.getSharedCount());
+			second.root().beginTransaction();
+			second.getAvatar().set(0, (byte) 9);
+			second.root().commit();
+			assertEquals("010203", first.getAvatar().toString());
+			assertEquals("090203", second.getAvatar().toString());
+		}
+		finally
+		{
+			Transactionality.setBlobTable(null);
+		}
+	}
+}
@@ -5,8 +5,16 @@ package org.aegik.transactionality;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import org.aegik.transactionality.ByteArray;
 import org.aegik.transactionality.Root;
@@ -143,4 +151,259 @@ public class ByteArrayTest extends TestCase
 		m_bytes.setBit(1, false);
 		assertEquals("00000000 01010000 00101000 11011111", m_bytes.toBinaryString());
 	}
-}
\ No newline at end of file
+
+	public void testRanges() throws Exception
+	{
+		Root root = m_bytes.root();
+		root.beginTransaction();
+		m_bytes.setRange(1, new byte[] { 1, 2, 3, 4 }, 1, 3);
+		assertEquals("00020304", m_bytes.toString());
+		m_bytes.fill(0, 2, (byte) -1);
+		assertEquals("FFFF0304", m_bytes.toString());
+		m_bytes.copyFrom(new byte[] { 5 }, 0, 1);
+		assertEquals("05FF0304", m_bytes.toString());
+		root.rollback();
+		assertEquals("000A14FB", m_bytes.toString());
+		try
+		{
+			m_bytes.setRange(2, new byte[3]);
+			fail();
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+		}
+		assertEquals("000A14FB", m_bytes.toString());
+	}
+
+	public void testBitwise() throws Exception
+	{
+		Root root = m_bytes.root();
+		root.beginTransaction();
+		m_bytes.or(new ByteArray(new byte[] { 1, 1 }));
+		assertEquals("010B14FB", m_bytes.toString());
+		m_bytes.xor(new ByteArray(new byte[] { 1, -1, 0, 0, 7 }));
+		assertEquals("00F414FB", m_bytes.toString());
+		m_bytes.and(new ByteArray(new byte[] { -1, 15, 15 }));
+		assertEquals("00040400", m_bytes.toString());
+		root.rollback();
+		assertEquals("000A14FB", m_bytes.toString());
+	}
+
+	public void testByteBuffer() throws Exception
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(2);
+		m_bytes.read(2, buffer);
+		assertEquals(20, buffer.get(0));
+		assertEquals(-5, buffer.get(1));
+		buffer.flip();
+		m_bytes.root().beginTransaction();
+		m_bytes.write(0, buffer);
+		assertEquals("14FB14FB", m_bytes.toString());
+		m_bytes.root().rollback();
+		assertEquals("000A14FB", m_bytes.toString());
+		try
+		{
+			m_bytes.read(3, ByteBuffer.allocate(2));
+			fail();
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+		}
+	}
+
+	private static void assertBits(BitSet expected, ByteArray bytes)
+	{
+		int bits = bytes.size() * 8;
+		assertEquals(expected.cardinality(), bytes.cardinality());
+		for (int i = 0; i < bits; i++)
+		{
+			assertEquals(expected.get(i), bytes.getBit(i));
+			int set = expected.nextSetBit(i);
+			assertEquals(set < 0 || set >= bits ? -1 : set, bytes.nextSetBit(i));
+			int clear = expected.nextClearBit(i);
+			assertEquals(clear >= bits ? -1 : clear, bytes.nextClearBit(i));
+		}
+		assertEquals(-1, bytes.nextSetBit(bits));
+	}
+
+	public void testWordOperations() throws Exception
+	{
+		Random random = new Random(7);
+		Root root = new Root();
+		for (int size : new int[] { 0, 3, 8, 21 })
+		{
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			ByteArray bytes = new ByteArray(root, data.clone());
+			BitSet expected = BitSet.valueOf(data);
+			assertBits(expected, bytes);
+			byte[] otherData = new byte[random.nextInt(30)];
+			random.nextBytes(otherData);
+			ByteArray other = new ByteArray(otherData);
+			BitSet otherBits = BitSet.valueOf(otherData);
+			root.beginTransaction();
+			bytes.andNot(other);
+			expected.andNot(otherBits);
+			assertBits(expected, bytes);
+			bytes.or(other);
+			expected.or(otherBits.get(0, size * 8));
+			assertBits(expected, bytes);
+			bytes.and(other);
+			expected.and(otherBits);
+			assertBits(expected, bytes);
+			if (size > 0)
+			{
+				int from = random.nextInt(size * 8);
+				int to = from + random.nextInt(size * 8 - from + 1);
+				bytes.setBits(from, to, true);
+				expected.set(from, to);
+				assertBits(expected, bytes);
+				bytes.setBits(to / 2, to, false);
+				expected.clear(to / 2, to);
+				assertBits(expected, bytes);
+			}
+			root.rollback();
+			assertTrue(bytes.equals(data));
+		}
+	}
+
+	public void testGrowth() throws Exception
+	{
+		Root root = m_bytes.root();
+		root.beginTransaction();
+		m_bytes.append((byte) 1);
+		m_bytes.append(new byte[] { 2, 3 });
+		assertEquals("000A14FB010203", m_bytes.toString());
+		assertTrue(m_bytes.capacity() >= 7);
+		m_bytes.insert(1, new byte[] { 9, 9 });
+		assertEquals("0009090A14FB010203", m_bytes.toString());
+		m_bytes.truncate(3);
+		assertEquals("000909", m_bytes.toString());
+		m_bytes.append(new byte[] { 7, 7, 7, 7, 7, 7, 7 });
+		assertEquals(10, m_bytes.size());
+		root.rollback();
+		assertEquals("000A14FB", m_bytes.toString());
+		assertEquals(4, m_bytes.size());
+		try
+		{
+			m_bytes.get(4);
+			fail();
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+		}
+		assertTrue(m_bytes.equals(new byte[] { 0, 10, 20, -5 }));
+		assertEquals(4, m_bytes.toByteArray().length);
+		ByteArray log = new ByteArray(root);
+		for (int i = 0; i < 10000; i++)
+		{
+			log.append((byte) i);
+		}
+		assertEquals(10000, log.size());
+		assertEquals((byte) 9999, log.get(9999));
+		root.beginTransaction();
+		log.truncate(5000);
+		log.insert(0, new byte[] { 1 });
+		root.commit();
+		assertEquals(5001, log.size());
+		assertEquals((byte) 4999, log.get(5000));
+	}
+
+	public void testDirect() throws Exception
+	{
+		Root root = new Root();
+		ByteArray bytes = ByteArray.allocateDirect(root, 2);
+		assertTrue(bytes.isDirect());
+		bytes.append(new byte[] { 0, 10, 20, -5 });
+		assertTrue(bytes.isDirect());
+		assertTrue(bytes.equals(m_bytes));
+		assertTrue(m_bytes.equals(bytes));
+		root.beginTransaction();
+		bytes.set(0, (byte) 1);
+		bytes.setBits(8, 16, true);
+		bytes.insert(1, new byte[] { 2 });
+		bytes.truncate(2);
+		assertEquals("0102", bytes.toString());
+		root.rollback();
+		assertEquals("000A14FB", bytes.toString());
+		assertEquals(4, bytes.asReadOnlyBuffer().remaining());
+		assertEquals(m_bytes.cardinality(), bytes.cardinality());
+		bytes.replace(new byte[] { 1 });
+		assertFalse(bytes.isDirect());
+	}
+
+	public void testMapped() throws Exception
+	{
+		File file = File.createTempFile("bytes", ".bin");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			Root root = new Root();
+			ByteArray bytes = ByteArray.map(root, channel, 2, 4);
+			assertEquals(4, bytes.size());
+			assertEquals("00000000", bytes.toString());
+			bytes.setRange(0, new byte[] { 0, 10, 20, -5 });
+			root.beginTransaction();
+			bytes.fill((byte) 7);
+			root.rollback();
+			assertTrue(bytes.equals(m_bytes));
+			raf.seek(2);
+			assertEquals(10, raf.readShort());
+			try
+			{
+				bytes.append((byte) 1);
+				fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+			}
+			assertEquals(4, bytes.size());
+		}
+		finally
+		{
+			raf.close();
+			file.delete();
+		}
+	}
+
+	public void testEncoding() throws Exception
+	{
+		assertEquals("xx000A14FB", m_bytes.appendTo(new StringBuilder("xx")).toString());
+		StringWriter writer = new StringWriter();
+		m_bytes.appendTo(writer);
+		m_bytes.appendBinaryTo(writer);
+		assertEquals("000A14FB" + m_bytes.toBinaryString(), writer.toString());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		m_bytes.writeTo(out);
+		assertEquals("000A14FB", out.toString("US-ASCII"));
+		byte[] data = new byte[3000];
+		new Random(3).nextBytes(data);
+		ByteArray large = new ByteArray(data);
+		StringBuilder builder = new StringBuilder();
+		large.appendTo((Appendable) builder);
+		assertEquals(large.toString(), builder.toString());
+		assertTrue(large.equals(new ByteArray(null, builder.toString().toLowerCase())));
+		builder.setLength(0);
+		large.appendBinaryTo(builder);
+		assertEquals(large.toBinaryString(), builder.toString());
+		assertEquals(new ByteArray().toString(), "");
+		assertTrue(m_bytes.equals(new ByteArray(null, "000a14Fb")));
+		try
+		{
+			new ByteArray(null, "0A1");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			new ByteArray(null, "0G");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package org.aegik.transactionality;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+public class ChangeSetTest extends TestCase
+{
+	interface Item extends Transactional
+	{
+		String getName();
+		void setName(String name);
+		Array<Integer> getValues();
+	}
+
+	interface Tree extends Transactional
+	{
+		Integer getA();
+		void setA(Integer a);
+		@Optional Item getItem();
+		Item createItem();
+		boolean deleteItem();
+		Dict<Item> getItems();
+		Array<Item> getList();
+		ByteArray getBytes();
+	}
+
+	Tree m_tree;
+
+	@SuppressWarnings({"unchecked"})
+	private static Object sorted(Object value)
+	{
+		if (value instanceof byte[]) return Arrays.toString((byte[]) value);
+		if (value instanceof List)
+		{
+			List<Object> list = new ArrayList<Object>();
+			for (Object o : (List) value) list.add(sorted(o));
+			return list;
+		}
+		if (!(value instanceof Map)) return value;
+		Map<String, Object> map = new TreeMap<String, Object>();
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet())
+		{
+			map.put(entry.getKey(), sorted(entry.getValue()));
+		}
+		return map;
+	}
+
+	private static String describe(ChangeSet changes)
+	{
+		List<String> list = new ArrayList<String>();
+		for (ChangeSet.Change change : changes)
+		{
+			String type = change.getType() == ChangeSet.Change.Type.SET ? "=" : " " + change.getType() + " ";
+			list.add(change.getPath() + type + sorted(change.getValue()));
+		}
+		return list.toString();
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_tree = Transactionality.createRoot(Tree.class);
+		m_tree.root().setRecordingChanges(true);
+	}
+
+	public void testRecordingChanges() throws Exception
+	{
+		Tree tree = Transactionality.createRoot(Tree.class);
+		assertFalse(tree.root().isRecordingChanges());
+		tree.beginTransaction();
+		tree.setA(1);
+		assertNull(tree.commit());
+		Recorder recorder = new Recorder();
+		tree.root().addCommitListener(recorder);
+		tree.beginTransaction();
+		tree.setA(2);
+		assertEquals("[[a]=2]", tree.commit().toString());
+		assertEquals(2, recorder.m_received.get(0).getSequence());
+	}
+
+	public void testEntryChanges() throws Exception
+	{
+		m_tree.beginTransaction();
+		m_tree.setA(4);
+		m_tree.getItems().create("x").setName("Foo");
+		m_tree.getItems().get("x").setName("Bar");
+		ChangeSet changes = m_tree.commit();
+		assertEquals(2, changes.size());
+		assertEquals(Arrays.asList("a"), changes.getChanges().get(0).getPath());
+		assertEquals(4, changes.getChanges().get(0).getValue());
+		assertEquals(Arrays.asList("items", "x"), changes.getChanges().get(1).getPath());
+		assertEquals("Bar", ((Map) changes.getChanges().get(1).getValue()).get("name"));
+		m_tree.beginTransaction();
+		m_tree.getItems().get("x").setName("Foo");
+		assertEquals("[[items, x, name]=Foo]", m_tree.commit().toString());
+	}
+
+	public void testContainerChanges() throws Exception
+	{
+		m_tree.getList().create();
+		m_tree.getList().create();
+		m_tree.beginTransaction();
+		m_tree.getList().get(1).getValues().add(3);
+		m_tree.getList().removeFirst();
+		m_tree.getBytes().replace(new byte[] { 1 });
+		ChangeSet changes = m_tree.commit();
+		assertEquals("[[bytes]=[1], [list, 0] DELETE 1, [list, 0, values, 0] INSERT 3]", describe(changes));
+	}
+
+	public void testArrayChanges() throws Exception
+	{
+		Tree follower = Transactionality.createRoot(Tree.class);
+		for (int i = 0; i < 5; i++)
+		{
+			m_tree.getList().create().setName("n" + i);
+		}
+		follower.init(m_tree.primitive());
+		m_tree.beginTransaction();
+		m_tree.getList().remove(1);
+		m_tree.getList().remove(1);
+		m_tree.getList().remove(0);
+		m_tree.getList().get(1).setName("Foo");
+		m_tree.getList().create(1).getValues().add(1);
+		m_tree.getList().get(0).getValues().add(2);
+		m_tree.getList().get(0).getValues().set(0, 3);
+		ChangeSet changes = m_tree.commit();
+		assertEquals("[[list, 0] DELETE 3, [list, 1] INSERT {name=, values=[1]}, [list, 2, name]=Foo, "
+		             + "[list, 0, values, 0] INSERT 2, [list, 0, values, 0]=3]", describe(changes));
+		Transactionality.apply(follower, ChangeSet.toBytes(Arrays.asList(changes)));
+		assertEquals(m_tree, follower);
+	}
+
+	public void testByteArrayAppend() throws Exception
+	{
+		Tree follower = Transactionality.createRoot(Tree.class);
+		m_tree.getBytes().append(new byte[1 << 20]);
+		follower.getBytes().append(new byte[1 << 20]);
+		m_tree.beginTransaction();
+		m_tree.getBytes().append(new byte[] { 1, 2 });
+		m_tree.getBytes().append((byte) 3);
+		ChangeSet changes = m_tree.commit();
+		assertEquals("[[bytes, 1048576]=010203]", changes.toString());
+		m_tree.beginTransaction();
+		m_tree.getBytes().truncate(1000);
+		m_tree.getBytes().set(10, (byte) 4);
+		m_tree.getBytes().append((byte) 5);
+		ChangeSet shortened = m_tree.commit();
+		assertEquals("[[bytes, 1001] DELETE 1047578, [bytes, 10]=04, [bytes, 1000]=05]", shortened.toString());
+		Transactionality.apply(follower, ChangeSet.toBytes(Arrays.asList(changes, shortened)));
+		assertTrue(m_tree.getBytes().equals(follower.getBytes()));
+	}
+
+	public void testDirectByteArray() throws Exception
+	{
+		ByteArray bytes = ByteArray.allocateDirect(m_tree.root(), 1 << 20);
+		bytes.append(new byte[1 << 20]);
+		m_tree.put("bytes", bytes);
+		m_tree.beginTransaction();
+		bytes.setRange(100, new byte[] { 1, 2 });
+		bytes.set(102, (byte) 3);
+		bytes.setBit(8 * 5000, true);
+		ChangeSet changes = m_tree.commit();
+		assertTrue(m_tree.getBytes().isDirect());
+		assertEquals("[[bytes, 100]=010203, [bytes, 5000]=01]", changes.toString());
+	}
+
+	public void testRemovedObjects() throws Exception
+	{
+		m_tree.beginTransaction();
+		m_tree.createItem().setName("Foo");
+		m_tree.getItem().getValues().add(1);
+		m_tree.deleteItem();
+		ChangeSet changes = m_tree.commit();
+		assertEquals(1, changes.size());
+		assertTrue(changes.getChanges().get(0).isRemoval());
+	}
+
+	public void testRollback() throws Exception
+	{
+		Item item = m_tree.getItems().create("x");
+		m_tree.beginTransaction();
+		m_tree.getItems().remove("x");
+		m_tree.getItems().put("y", item);
+		m_tree.rollback();
+		m_tree.beginTransaction();
+		item.setName("Foo");
+		assertEquals("[[items, x, name]=Foo]", m_tree.commit().toString());
+		m_tree.beginTransaction();
+		assertTrue(m_tree.commit().isEmpty());
+	}
+
+	public void testCopiesKeepParents() throws Exception
+	{
+		m_tree.getItems().create("x");
+		m_tree.getList().create();
+		Dict<Item> items = new Dict<Item>(m_tree.getItems());
+		Array<Item> list = new Array<Item>(m_tree.getList());
+		m_tree.beginTransaction();
+		items.get("x").setName("Foo");
+		list.get(0).setName("Bar");
+		assertEquals("[[items, x, name]=Foo, [list, 0, name]=Bar]", m_tree.commit().toString());
+	}
+
+	public void testSerializable() throws Exception
+	{
+		m_tree.beginTransaction();
+		m_tree.getItems().create("x").getValues().add(1);
+		m_tree.getBytes().replace(new byte[] { 1, 2 });
+		ChangeSet changes = m_tree.commit();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ObjectOutputStream(out).writeObject(changes);
+		ChangeSet copy = (ChangeSet) new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+		assertEquals(describe(changes), describe(copy));
+	}
+
+	public void testBinaryFormat() throws Exception
+	{
+		m_tree.beginTransaction();
+		m_tree.setA(-7);
+		m_tree.getItems().create("x").getValues().add(1);
+		m_tree.getBytes().replace(new byte[] { 1, 2 });
+		ChangeSet changes = m_tree.commit();
+		List<ChangeSet> copy = ChangeSet.fromBytes(ChangeSet.toBytes(Arrays.asList(changes, changes)));
+		assertEquals(2, copy.size());
+		assertEquals(describe(changes), describe(copy.get(1)));
+		assertEquals(changes.getSequence(), copy.get(0).getSequence());
+		assertEquals(changes.getTimestamp(), copy.get(0).getTimestamp());
+	}
+
+	public void testApply() throws Exception
+	{
+		Tree follower = Transactionality.createRoot(Tree.class);
+		List<ChangeSet> batch = new ArrayList<ChangeSet>();
+		m_tree.beginTransaction();
+		m_tree.setA(3);
+		m_tree.createItem().setName("Foo");
+		m_tree.getList().create().getValues().add(4);
+		batch.add(m_tree.commit());
+		m_tree.beginTransaction();
+		m_tree.getList().get(0).setName("Bar");
+		m_tree.getItems().create("x");
+		m_tree.getBytes().replace(new byte[] { 5 });
+		batch.add(m_tree.commit());
+		m_tree.beginTransaction();
+		m_tree.deleteItem();
+		m_tree.getItems().get("x").getValues().add(5);
+		m_tree.getList().create(0).getValues().add(6);
+		m_tree.getList().get(1).getValues().add(7);
+		batch.add(m_tree.commit());
+		m_tree.beginTransaction();
+		m_tree.getList().removeFirst();
+		m_tree.getList().get(0).getValues().set(0, 8);
+		m_tree.getBytes().append(new byte[] { 6, 7 });
+		m_tree.getBytes().set(0, (byte) 9);
+		batch.add(m_tree.commit());
+		Transactionality.apply(follower, ChangeSet.toBytes(batch));
+		assertEquals(m_tree, follower);
+		assertFalse(follower.isInTransaction());
+	}
+
+	public void testApplyInvalid() throws Exception
+	{
+		Tree follower = Transactionality.createRoot(Tree.class);
+		List<Object> path = Arrays.<Object>asList("a");
+		List<Object> badPath = Arrays.<Object>asList("list", 3, "name");
+		ChangeSet changes = new ChangeSet(1, 0, Arrays.asList(new ChangeSet.Change(path, 4),
+		                                                      new ChangeSet.Change(badPath, "Foo")));
+		try
+		{
+			Transactionality.apply(follower, Arrays.asList(changes));
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertEquals("Illegal index 3", e.getMessage());
+		}
+		assertEquals((Integer) 0, follower.getA());
+		assertFalse(follower.isInTransaction());
+	}
+
+	public void testFollowerLag() throws Exception
+	{
+		Tree follower = Transactionality.createRoot(Tree.class);
+		long applied = 0;
+		for (int batchStart = 0; batchStart < 1000; batchStart += 100)
+		{
+			List<byte[]> shipped = new ArrayList<byte[]>();
+			for (int i = batchStart; i < batchStart + 100; i++)
+			{
+				m_tree.beginTransaction();
+				m_tree.getItems().create("item" + (i % 50)).setName("Name" + i);
+				m_tree.setA(i);
+				shipped.add(ChangeSet.toBytes(Arrays.asList(m_tree.commit())));
+			}
+			assertEquals(batchStart == 0 ? (Integer) 0 : (Integer) (batchStart - 1), follower.getA());
+			assertFalse(m_tree.equals(follower));
+			List<ChangeSet> batch = new ArrayList<ChangeSet>();
+			for (byte[] bytes : shipped)
+			{
+				batch.addAll(ChangeSet.fromBytes(bytes));
+			}
+			assertEquals(applied + 1, batch.get(0).getSequence());
+			Transactionality.apply(follower, batch);
+			applied = batch.get(batch.size() - 1).getSequence();
+			assertEquals(batchStart + 100, applied);
+			assertEquals(m_tree, follower);
+		}
+	}
+
+	private static class Recorder implements CommitListener
+	{
+		final List<ChangeSet> m_received = new ArrayList<ChangeSet>();
+
+		public void committed(ChangeSet changes)
+		{
+			m_received.add(changes);
+		}
+	}
+
+	public void testCommitListeners() throws Exception
+	{
+		Recorder items = new Recorder();
+		Recorder a = new Recorder();
+		Recorder name = new Recorder();
+		Recorder all = new Recorder();
+		m_tree.root().addCommitListener(items, "items");
+		m_tree.root().addCommitListener(a, "a");
+		m_tree.root().addCommitListener(name, "item", "name");
+		m_tree.root().addCommitListener(all);
+		m_tree.beginTransaction();
+		m_tree.getItems().create("x");
+		m_tree.getItems().create("y");
+		m_tree.createItem();
+		m_tree.commit();
+		assertEquals(1, items.m_received.size());
+		assertEquals(2, items.m_received.get(0).size());
+		assertEquals(0, a.m_received.size());
+		assertEquals(1, name.m_received.size());
+		assertEquals("[[item]={name=, values=[]}]", describe(name.m_received.get(0)));
+		assertEquals(1, all.m_received.size());
+		assertEquals(3, all.m_received.get(0).size());
+
+		m_tree.beginTransaction();
+		m_tree.setA(3);
+		m_tree.rollback();
+		m_tree.beginTransaction();
+		m_tree.getItem().setName("Foo");
+		m_tree.commit();
+		assertEquals(0, a.m_received.size());
+		assertEquals("[[item, name]=Foo]", name.m_received.get(1).toString());
+
+		assertTrue(m_tree.root().removeCommitListener(name));
+		assertFalse(m_tree.root().removeCommitListener(name));
+		m_tree.beginTransaction();
+		m_tree.getItem().setName("Bar");
+		m_tree.commit();
+		assertEquals(2, name.m_received.size());
+		assertEquals(3, all.m_received.size());
+	}
+
+	public void testCommitListenerExecutor() throws Exception
+	{
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		Recorder recorder = new Recorder();
+		m_tree.root().addCommitListener(recorder, new Executor()
+		{
+			public void execute(Runnable command)
+			{
+				tasks.add(command);
+			}
+		}, "list", 0);
+		m_tree.getList().create();
+		m_tree.beginTransaction();
+		m_tree.getList().get(0).setName("Foo");
+		m_tree.commit();
+		assertEquals(0, recorder.m_received.size());
+		assertEquals(1, tasks.size());
+		tasks.get(0).run();
+		assertEquals("[[list, 0, name]=Foo]", recorder.m_received.get(0).toString());
+	}
+}
@@ -0,0 +1,102 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class DataGeneratorTest extends TestCase
+{
+	enum Color
+	{
+		RED,
+		GREEN
+	}
+
+	interface Node extends Transactional
+	{
+		String getName();
+		Integer getWeight();
+		Double getPrice();
+		Boolean getActive();
+		Date getCreated();
+		Color getColor();
+		ByteArray getData();
+		IntMembers getIds();
+		Members<String> getTags();
+		Dict<Integer> getScores();
+		SortedDict<String> getLabels();
+		@Storage(ArrayStorage.RING) Array<Node> getChildren();
+		Dict<Node> getLinks();
+		@Optional Node getParent();
+		Node createParent();
+	}
+
+	public void testShape()
+	{
+		DataGenerator generator = new DataGenerator(1, 8, 2, 3);
+		Map<String, Object> data = generator.generate(Node.class);
+		assertEquals(8, ((List<?>) data.get("children")).size());
+		assertEquals(8, ((Map<?, ?>) data.get("links")).size());
+		assertEquals(8, ((byte[]) data.get("data")).length);
+		Map<?, ?> child = (Map<?, ?>) ((List<?>) data.get("children")).get(0);
+		assertEquals(3, ((List<?>) child.get("children")).size());
+		assertEquals(3, ((Map<?, ?>) child.get("scores")).size());
+		Map<?, ?> grandChild = (Map<?, ?>) ((List<?>) child.get("children")).get(0);
+		assertEquals(0, ((List<?>) grandChild.get("children")).size());
+		assertEquals(0, ((Map<?, ?>) grandChild.get("links")).size());
+		assertEquals(3, ((Map<?, ?>) grandChild.get("labels")).size());
+		assertFalse(grandChild.containsKey("parent"));
+		Node node = generator.createRoot(Node.class);
+		assertEquals(8, node.getChildren().size());
+		assertEquals(ArrayStorage.RING, node.getChildren().getStorage());
+		assertEquals(3, node.getChildren().get(0).getIds().size());
+		try
+		{
+			new DataGenerator(1, -1, 0, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testSeed()
+	{
+		String xml = new DataGenerator(7, 5, 2, 2).toXml(Node.class);
+		assertEquals(xml, new DataGenerator(7, 5, 2, 2).toXml(Node.class));
+		assertFalse(xml.equals(new DataGenerator(8, 5, 2, 2).toXml(Node.class)));
+	}
+
+	public void testOptional()
+	{
+		DataGenerator generator = new DataGenerator(3, 2, 3, 2);
+		generator.setOptionalProbability(0);
+		assertFalse(generator.generate(Node.class).containsKey("parent"));
+		generator.setOptionalProbability(1);
+		Map<String, Object> data = generator.generate(Node.class);
+		Map<?, ?> parent = (Map<?, ?>) ((Map<?, ?>) ((Map<?, ?>) data.get("parent")).get("parent")).get("parent");
+		assertFalse(parent.containsKey("parent"));
+	}
+
+	public void testSave() throws Exception
+	{
+		DataGenerator generator = new DataGenerator(11, 20, 2, 4);
+		Node node = generator.createRoot(Node.class);
+		File file = File.createTempFile("generated", ".plist");
+		try
+		{
+			new DataGenerator(11, 20, 2, 4).save(Node.class, file);
+			assertEquals(node.toPlist(), Transactionality.fromFile(Node.class, file).toPlist());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class DictTest extends TestCase
+{
+	public void testPutAll()
+	{
+		Root root = new Root();
+		Dict<Integer> dict = new Dict<Integer>(root, ElementType.<Integer>getReturnType(Integer.class));
+		for (int i = 0; i < 1000; i++)
+		{
+			dict.put("k" + i, i);
+		}
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		map.put("k1", -1);
+		map.put("new", 5);
+		root.beginTransaction();
+		dict.putAll(map);
+		assertEquals(1001, dict.size());
+		assertEquals((Integer) (-1), dict.get("k1"));
+		assertEquals((Integer) 5, dict.get("new"));
+		root.rollback();
+		assertEquals(1000, dict.size());
+		assertEquals((Integer) 1, dict.get("k1"));
+		assertNull(dict.get("new"));
+	}
+
+	public void testCopy()
+	{
+		Dict<Integer> dict = Dict.newDict("a", 1, "b", 2);
+		assertEquals(dict, new Dict<Integer>(dict));
+	}
+
+	public void testForEach()
+	{
+		Dict<Integer> dict = Dict.newDict("a", 1, "b", 2, "c", 3);
+		final Map<String, Integer> visited = new HashMap<String, Integer>();
+		dict.forEach(new BiConsumer<String, Integer>()
+		{
+			public void accept(String key, Integer value)
+			{
+				visited.put(key, value);
+			}
+		});
+		assertEquals(dict, visited);
+		assertEquals(3, dict.values().stream().count());
+	}
+
+	public void testParallel() throws Exception
+	{
+		final Dict<Array<Integer>> dict = new Dict<Array<Integer>>(null, null);
+		for (int i = 0; i < 5000; i++)
+		{
+			dict.put("k" + i, Array.newArray(i, -i));
+		}
+		assertEquals(5000, dict.parallelStream().count());
+		assertEquals(new HashSet<Map.Entry<String, Array<Integer>>>(new HashMap<String, Array<Integer>>(dict).entrySet()),
+		             dict.parallelStream().collect(Collectors.toSet()));
+		assertEquals(5000, dict.keySet().parallelStream().distinct().count());
+		for (int threads : new int[] { 1, 4, 16 })
+		{
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			Map<String, Object> primitive = pool.submit(new Callable<Map<String, Object>>()
+			{
+				public Map<String, Object> call() throws Exception
+				{
+					return dict.primitive();
+				}
+			}).get();
+			pool.shutdown();
+			assertEquals(dict, primitive);
+		}
+	}
+}
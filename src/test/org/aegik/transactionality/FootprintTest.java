@@ -0,0 +1,106 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class FootprintTest extends TestCase
+{
+	interface Folder extends Transactional
+	{
+		String getName();
+		void setName(String name);
+		Dict<Integer> getSizes();
+		Array<Folder> getFolders();
+		ByteArray getIcon();
+		@Optional Folder getArchive();
+		Folder createArchive();
+		boolean deleteArchive();
+	}
+
+	private static Folder createFolder()
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("name", "top");
+		data.put("sizes", new HashMap<String, Object>());
+		data.put("folders", new java.util.ArrayList<Object>());
+		data.put("icon", new byte[0]);
+		Folder folder = Transactionality.createRoot(Folder.class);
+		folder.init(data);
+		return folder;
+	}
+
+	private static long sum(Map<String, Long> map)
+	{
+		long sum = 0;
+		for (long bytes : map.values())
+		{
+			sum += bytes;
+		}
+		return sum;
+	}
+
+	public void testTree()
+	{
+		Folder folder = createFolder();
+		long empty = Footprint.of(folder).getTreeBytes();
+		assertTrue(empty > 0);
+		for (int i = 0; i < 1000; i++)
+		{
+			folder.getSizes().put("file" + i, 1000 + i);
+		}
+		folder.getIcon().append(new byte[4000]);
+		Folder child = folder.getFolders().create();
+		child.getSizes().put("a", 1);
+		child.createArchive().setName("archived");
+		Footprint footprint = Footprint.of(folder, 1);
+		// Each entry holds a key and an Integer outside the cache.
+		assertTrue(footprint.getTreeBytes() - empty > 4000 + 1000 * (16 + 24 + 16 + 8));
+		assertEquals(footprint.getTreeBytes(), footprint.getTotalBytes());
+		assertEquals(0, footprint.getJournalBytes());
+		assertEquals(footprint.getTreeBytes(), sum(footprint.getBytesByType()));
+		Map<String, Long> types = footprint.getBytesByType();
+		assertTrue(types.get(Folder.class.getName()) > 0);
+		assertTrue(types.get("Dict") > 1000 * (16 + 24 + 16));
+		assertTrue(types.get("ByteArray") > 4000);
+		Map<String, Long> paths = footprint.getBytesByPath();
+		assertEquals(footprint.getTreeBytes(), paths.get("/").longValue());
+		assertTrue(paths.get("/icon") > 4000);
+		assertTrue(paths.get("/sizes") > paths.get("/folders"));
+		assertFalse(paths.containsKey("/folders/0"));
+		// Objects shared with the rest of the tree are counted where first reached.
+		long inTree = Footprint.of(folder, 2).getBytesByPath().get("/folders/0");
+		assertTrue(inTree > 0);
+		assertTrue(inTree <= Footprint.of(child).getTreeBytes());
+	}
+
+	public void testJournal()
+	{
+		Folder folder = createFolder();
+		for (int i = 0; i < 100; i++)
+		{
+			folder.getSizes().put("file" + i, 1000 + i);
+		}
+		folder.createArchive().getSizes().put("old", 1000);
+		// The first walk creates the entry set views of the maps.
+		Footprint.of(folder);
+		long before = Footprint.of(folder).getTreeBytes();
+		folder.beginTransaction();
+		folder.getSizes().clear();
+		folder.deleteArchive();
+		Footprint footprint = Footprint.of(folder);
+		assertEquals(2, footprint.getJournalLength());
+		assertTrue(footprint.getTreeBytes() < before);
+		// The cleared entries and the archive are only held by the journal.
+		assertTrue(footprint.getJournalBytes() >= before - footprint.getTreeBytes());
+		assertTrue(footprint.getJournalBytesByType().get("Dict$ClearUndo") > 100 * (16 + 24 + 16));
+		assertTrue(footprint.getJournalBytesByType().containsKey("Dict$PutUndo"));
+		folder.rollback();
+		assertEquals(before, Footprint.of(folder).getTreeBytes());
+		assertEquals(0, Footprint.of(folder).getJournalLength());
+	}
+}
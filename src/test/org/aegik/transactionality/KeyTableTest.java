@@ -0,0 +1,66 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class KeyTableTest extends TestCase
+{
+	interface Item extends Transactional
+	{
+		String getUserId();
+		void setUserId(String userId);
+	}
+
+	public void testIntern()
+	{
+		KeyTable table = new KeyTable(5);
+		assertEquals(8, table.capacity());
+		String key = new String("key");
+		assertSame(key, table.intern(key));
+		assertSame(key, table.intern(new String("key")));
+		try
+		{
+			new KeyTable(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testDictKeys()
+	{
+		Root root = new Root();
+		root.setKeyTable(new KeyTable(64));
+		Dict<Integer> first = new Dict<Integer>(root, ElementType.<Integer>getReturnType(Integer.class));
+		Dict<Integer> second = new Dict<Integer>(root, ElementType.<Integer>getReturnType(Integer.class));
+		String key = new String("shared");
+		first.put(key, 1);
+		second.put(new String("shared"), 2);
+		assertSame(key, second.keySet().iterator().next());
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put(new String("shared"), 3);
+		Dict<Integer> loaded = new Dict<Integer>(root, ElementType.<Integer>getReturnType(Integer.class));
+		loaded.init(data);
+		assertSame(key, loaded.keySet().iterator().next());
+	}
+
+	public void testSchemaKeys()
+	{
+		Item first = Transactionality.createRoot(Item.class);
+		Item second = Transactionality.createRoot(Item.class);
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put(new String("user-id"), "a");
+		first.init(data);
+		second.root().beginTransaction();
+		second.setUserId("b");
+		second.root().commit();
+		assertSame(first.primitive().keySet().iterator().next(), second.primitive().keySet().iterator().next());
+		assertEquals("a", first.getUserId());
+	}
+}
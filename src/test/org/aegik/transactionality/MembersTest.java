@@ -0,0 +1,119 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class MembersTest extends TestCase
+{
+	interface Tagged extends Transactional
+	{
+		Members<String> getTags();
+		IntMembers getIds();
+	}
+
+	interface Invalid extends Transactional
+	{
+		Members<Tagged> getTagged();
+	}
+
+	public void testMembers()
+	{
+		Tagged tagged = Transactionality.createRoot(Tagged.class);
+		Members<String> tags = tagged.getTags();
+		assertTrue(tags.add("a"));
+		assertFalse(tags.add("a"));
+		tags.add("b");
+		tagged.beginTransaction();
+		tags.remove("a");
+		tags.add("c");
+		assertEquals(new HashSet<String>(Arrays.asList("b", "c")), tags);
+		tags.clear();
+		tags.add("d");
+		tagged.rollback();
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), tags);
+		tagged.root().setRecordingChanges(true);
+		tagged.beginTransaction();
+		tags.add("e");
+		tags.remove("b");
+		ChangeSet changes = tagged.commit();
+		assertEquals("[[tags] ADD e, [tags] REMOVE b]", changes.toString());
+		Tagged follower = Transactionality.createRoot(Tagged.class);
+		follower.getTags().addAll(Arrays.asList("a", "b"));
+		Transactionality.apply(follower, Arrays.asList(changes));
+		assertEquals(tags, follower.getTags());
+	}
+
+	public void testIntMembers()
+	{
+		Random random = new Random(3);
+		IntMembers members = new IntMembers();
+		Set<Integer> expected = new HashSet<Integer>();
+		for (int i = 0; i < 20000; i++)
+		{
+			int value = random.nextInt(400) - 200;
+			if (random.nextBoolean())
+			{
+				assertEquals(expected.add(value), members.add(value));
+			}
+			else
+			{
+				assertEquals(expected.remove(value), members.remove(value));
+			}
+			assertEquals(expected.size(), members.size());
+		}
+		assertEquals(expected, members);
+		assertEquals(members, expected);
+		assertEquals(expected.hashCode(), members.hashCode());
+		assertEquals(expected, new HashSet<Integer>(members));
+	}
+
+	public void testIntMembersRollback()
+	{
+		Tagged tagged = Transactionality.createRoot(Tagged.class);
+		IntMembers ids = tagged.getIds();
+		for (int i = 0; i < 100; i++)
+		{
+			ids.add(i);
+		}
+		tagged.beginTransaction();
+		for (int i = 0; i < 100; i += 2)
+		{
+			ids.remove(i);
+		}
+		ids.add(1000);
+		ids.clear();
+		ids.add(-1);
+		tagged.rollback();
+		assertEquals(100, ids.size());
+		for (int i = 0; i < 100; i++)
+		{
+			assertTrue(ids.contains(i));
+		}
+		assertFalse(ids.contains(1000));
+	}
+
+	public void testLoad() throws Exception
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("tags", Arrays.asList("x", "y", "x"));
+		data.put("ids", Arrays.asList(0, 5));
+		Tagged tagged = Transactionality.createRoot(Tagged.class);
+		tagged.init(data);
+		assertEquals(2, tagged.getTags().size());
+		assertTrue(tagged.getIds().contains(0));
+		assertEquals(2, ((List) tagged.primitive().get("ids")).size());
+		try
+		{
+			Transactionality.createRoot(Invalid.class);
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertTrue(e.getMessage().startsWith("Unsupported member type"));
+		}
+	}
+}
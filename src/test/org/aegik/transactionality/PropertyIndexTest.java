@@ -0,0 +1,151 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class PropertyIndexTest extends TestCase
+{
+	enum Status
+	{
+		NEW, SHIPPED
+	}
+
+	interface Order extends Transactional
+	{
+		Status getStatus();
+		void setStatus(Status status);
+		Integer getAmount();
+		void setAmount(Integer amount);
+	}
+
+	interface Shop extends Transactional
+	{
+		@HashIndex("status")
+		@SortedIndex("amount")
+		Dict<Order> getOrders();
+
+		@HashIndex("status")
+		Array<Order> getQueue();
+	}
+
+	interface Invalid extends Transactional
+	{
+		@HashIndex("status")
+		Array<Integer> getNumbers();
+	}
+
+	interface Unknown extends Transactional
+	{
+		@SortedIndex("missing")
+		Array<Order> getOrders();
+	}
+
+	public void testLookup()
+	{
+		Shop shop = Transactionality.createRoot(Shop.class);
+		Dict<Order> orders = shop.getOrders();
+		for (int i = 0; i < 10; i++)
+		{
+			orders.create("o" + i).setAmount(i * 10);
+		}
+		orders.get("o3").setStatus(Status.SHIPPED);
+		PropertyIndex<Order> status = orders.getIndex("status");
+		assertEquals(9, status.count(Status.NEW));
+		assertEquals(Arrays.asList(orders.get("o3")), status.get(Status.SHIPPED));
+		SortedPropertyIndex<Order> amount = orders.getSortedIndex("amount");
+		assertEquals(Arrays.asList(orders.get("o2"), orders.get("o3")), amount.range(15, 40));
+		assertEquals(0, amount.firstValue());
+		assertEquals(90, amount.lastValue());
+		orders.remove("o0");
+		assertEquals(10, amount.firstValue());
+		orders.clear();
+		assertFalse(status.contains(Status.NEW));
+		try
+		{
+			orders.getSortedIndex("status");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("No sorted index on 'status'", e.getMessage());
+		}
+	}
+
+	public void testArray()
+	{
+		Shop shop = Transactionality.createRoot(Shop.class);
+		Array<Order> queue = shop.getQueue();
+		Order order = queue.create();
+		queue.add(order);
+		PropertyIndex<Order> status = queue.getIndex("status");
+		assertEquals(1, status.count(Status.NEW));
+		queue.removeFirst();
+		assertEquals(1, status.count(Status.NEW));
+		queue.removeFirst();
+		assertEquals(0, status.count(Status.NEW));
+	}
+
+	public void testRollback()
+	{
+		Shop shop = Transactionality.createRoot(Shop.class);
+		Dict<Order> orders = shop.getOrders();
+		orders.create("a").setAmount(1);
+		orders.create("b").setAmount(2);
+		shop.beginTransaction();
+		orders.get("a").setStatus(Status.SHIPPED);
+		orders.get("a").setAmount(5);
+		orders.remove("b");
+		orders.create("c");
+		Order removed = orders.get("c");
+		orders.clear();
+		removed.setStatus(Status.SHIPPED);
+		shop.getQueue().add(removed);
+		shop.rollback();
+		PropertyIndex<Order> status = orders.getIndex("status");
+		assertEquals(2, status.count(Status.NEW));
+		assertEquals(0, status.count(Status.SHIPPED));
+		assertEquals(Arrays.asList(orders.get("a"), orders.get("b")), orders.getSortedIndex("amount").range(null, null));
+		assertEquals(0, shop.getQueue().getIndex("status").count(Status.SHIPPED));
+	}
+
+	public void testLoad() throws Exception
+	{
+		Map<String, Object> order = new HashMap<String, Object>();
+		order.put("status", "SHIPPED");
+		order.put("amount", 7);
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("orders", Collections.singletonMap("x", order));
+		data.put("queue", Arrays.asList(order, order));
+		Shop shop = Transactionality.createRoot(Shop.class);
+		shop.init(data);
+		assertEquals(1, shop.getOrders().getIndex("status").count(Status.SHIPPED));
+		assertEquals(2, shop.getQueue().getIndex("status").count(Status.SHIPPED));
+		assertEquals(Arrays.asList(shop.getOrders().get("x")), shop.getOrders().getSortedIndex("amount").range(7, null));
+	}
+
+	public void testValidation()
+	{
+		try
+		{
+			Transactionality.createRoot(Invalid.class);
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertTrue(e.getMessage().startsWith("Index on non-Transactional elements"));
+		}
+		try
+		{
+			Transactionality.createRoot(Unknown.class);
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertTrue(e.getMessage().startsWith("Index on unknown property 'missing'"));
+		}
+	}
+}
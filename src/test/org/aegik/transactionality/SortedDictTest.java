@@ -0,0 +1,100 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class SortedDictTest extends TestCase
+{
+	interface Event extends Transactional
+	{
+		String getName();
+		void setName(String name);
+	}
+
+	interface Log extends Transactional
+	{
+		SortedDict<Event> getEvents();
+		SortedDict<Integer> getCounts();
+	}
+
+	public void testRange()
+	{
+		Log log = Transactionality.createRoot(Log.class);
+		SortedDict<Integer> counts = log.getCounts();
+		for (int i = 0; i < 10; i++)
+		{
+			counts.put("2009-01-0" + i, i);
+		}
+		assertEquals("2009-01-03", counts.floorKey("2009-01-03T12"));
+		assertEquals("2009-01-04", counts.ceilingKey("2009-01-03T12"));
+		assertEquals((Integer) 4, counts.ceilingEntry("2009-01-03T12").getValue());
+		assertNull(counts.floorKey("2008"));
+		SortedMap<String, Integer> range = counts.subMap("2009-01-02", "2009-01-05");
+		assertEquals(Arrays.asList(2, 3, 4), new ArrayList<Integer>(range.values()));
+		counts.remove("2009-01-03");
+		assertEquals(Arrays.asList(2, 4), new ArrayList<Integer>(range.values()));
+		assertEquals(Arrays.asList("2009-01-00", "2009-01-01"), new ArrayList<String>(counts.headMap("2009-01-02").keySet()));
+		assertEquals("2009-01-09", counts.tailMap("2009-01-05").lastKey());
+		assertTrue(log.primitive().get("counts") instanceof SortedMap);
+	}
+
+	public void testRollback()
+	{
+		Log log = Transactionality.createRoot(Log.class);
+		SortedDict<Integer> counts = log.getCounts();
+		counts.put("a", 1);
+		counts.put("b", 2);
+		SortedMap<String, Integer> tail = counts.tailMap("b");
+		log.beginTransaction();
+		counts.put("c", 3);
+		counts.clear();
+		counts.put("d", 4);
+		assertEquals(Collections.singletonMap("d", 4), tail);
+		log.rollback();
+		assertEquals(Dict.newDict("a", 1, "b", 2), counts);
+		assertEquals(Collections.singletonMap("b", 2), tail);
+	}
+
+	public void testChanges() throws Exception
+	{
+		Log log = Transactionality.createRoot(Log.class);
+		log.root().setRecordingChanges(true);
+		log.beginTransaction();
+		log.getEvents().create("e1").setName("start");
+		log.getCounts().put("x", 1);
+		ChangeSet changes = log.commit();
+		assertEquals(2, changes.size());
+		log.beginTransaction();
+		log.getEvents().get("e1").setName("stop");
+		changes = log.commit();
+		assertEquals(Arrays.asList("events", "e1", "name"), changes.getChanges().get(0).getPath());
+		Log follower = Transactionality.createRoot(Log.class);
+		try
+		{
+			Transactionality.apply(follower, Collections.singletonList(changes));
+			fail();
+		}
+		catch (ValidationException e)
+		{
+			assertEquals(0, follower.getEvents().size());
+		}
+		follower.init(log.primitive());
+		assertEquals("stop", follower.getEvents().get("e1").getName());
+		assertEquals(log.primitive(), follower.primitive());
+	}
+
+	public void testCopyKeepsParents() throws Exception
+	{
+		Log log = Transactionality.createRoot(Log.class);
+		log.root().setRecordingChanges(true);
+		log.getEvents().create("e1");
+		SortedDict<Event> copy = new SortedDict<Event>(log.getEvents());
+		log.beginTransaction();
+		copy.get("e1").setName("start");
+		assertEquals("[[events, e1, name]=start]", log.commit().toString());
+	}
+}
@@ -0,0 +1,142 @@
+package org.aegik.transactionality;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class StringMapTest extends TestCase
+{
+	public void testAgainstHashMap() throws Exception
+	{
+		Random random = new Random(17);
+		StringMap<Integer> map = new StringMap<Integer>();
+		HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		for (int i = 0; i < 20000; i++)
+		{
+			String key = "k" + random.nextInt(500);
+			if (random.nextInt(3) == 0)
+			{
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			else
+			{
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		for (int i = 0; i < 500; i++)
+		{
+			assertEquals(expected.get("k" + i), map.get("k" + i));
+		}
+		assertEquals(expected, map.compact());
+		assertNull(map.get(1));
+	}
+
+	@SuppressWarnings({"unchecked"})
+	public void testViews() throws Exception
+	{
+		StringMap<Integer> map = new StringMap<Integer>(2);
+		map.put("a", 1);
+		map.put("b", 2);
+		map.put("c", 3);
+		assertSame(map.keySet(), map.keySet());
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), map.keySet());
+		assertTrue(map.values().contains(2));
+		assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<String, Integer>("b", 2)));
+		Set<Map.Entry<String, Integer>> copy = new HashSet<Map.Entry<String, Integer>>();
+		for (Object entry : map.entrySet().toArray())
+		{
+			copy.add((Map.Entry<String, Integer>) entry);
+		}
+		assertEquals(map.entrySet(), copy);
+		int sum = 0;
+		for (Map.Entry<String, Integer> entry : map.entrySet())
+		{
+			sum += entry.getValue();
+			assertEquals(map.get(entry.getKey()), entry.getValue());
+		}
+		assertEquals(6, sum);
+		try
+		{
+			map.keySet().clear();
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+		try
+		{
+			map.values().remove(1);
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertFalse(map.keySet().iterator().hasNext());
+	}
+
+	public void testKeptEntries() throws Exception
+	{
+		StringMap<Integer> map = new StringMap<Integer>();
+		map.put("a", 1);
+		map.put("b", 5);
+		map.put("c", 3);
+		List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(map.entrySet());
+		assertEquals(3, new HashSet<Map.Entry<String, Integer>>(entries).size());
+		assertEquals(map.entrySet(), new HashSet<Map.Entry<String, Integer>>(entries));
+		Map.Entry<String, Integer> max = Collections.max(map.entrySet(), Map.Entry.<String, Integer>comparingByValue());
+		assertEquals("b", max.getKey());
+		assertEquals((Integer) 5, max.getValue());
+	}
+
+	public void testConcurrentModification() throws Exception
+	{
+		StringMap<Integer> map = new StringMap<Integer>();
+		map.put("a", 1);
+		map.put("b", 2);
+		Iterator<String> keys = map.keySet().iterator();
+		keys.next();
+		map.put("a", 3);
+		keys.next();
+		Iterator<Integer> values = map.values().iterator();
+		values.next();
+		map.put("c", 4);
+		try
+		{
+			values.next();
+			fail();
+		}
+		catch (ConcurrentModificationException e)
+		{
+		}
+		Iterator<Map.Entry<String, Integer>> entries = map.entrySet().iterator();
+		map.remove("c");
+		try
+		{
+			entries.next();
+			fail();
+		}
+		catch (ConcurrentModificationException e)
+		{
+		}
+		try
+		{
+			for (String key : map.keySet())
+			{
+				map.remove(key.equals("a") ? "b" : "a");
+			}
+			fail();
+		}
+		catch (ConcurrentModificationException e)
+		{
+		}
+	}
+}
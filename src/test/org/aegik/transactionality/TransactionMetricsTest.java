@@ -0,0 +1,135 @@
+package org.aegik.transactionality;
+
+import junit.framework.TestCase;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Christoffer Lerno
+ */
+public class TransactionMetricsTest extends TestCase
+{
+	interface Account extends Transactional
+	{
+		Integer getBalance();
+		void setBalance(Integer balance);
+		Dict<Account> getSubAccounts();
+		@Optional Account getParent();
+		Account createParent();
+	}
+
+	private static Map<String, Object> data()
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("balance", 0);
+		data.put("sub-accounts", new HashMap<String, Object>());
+		return data;
+	}
+
+	private Account createAccount(TransactionMetrics metrics)
+	{
+		Transactionality.setTransactionListener(metrics);
+		try
+		{
+			Account account = Transactionality.createRoot(Account.class);
+			account.init(data());
+			return account;
+		}
+		finally
+		{
+			Transactionality.setTransactionListener(null);
+		}
+	}
+
+	public void testHistogram()
+	{
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0.0, histogram.getMean());
+		for (long value : new long[] { 0, 1, 2, 3, 4, 100, -5 })
+		{
+			histogram.record(value);
+		}
+		assertEquals(7, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(110 / 7.0, histogram.getMean(), 1e-9);
+		assertTrue(Arrays.equals(new long[] { 2, 1, 2, 1, 0, 0, 0, 1 }, histogram.getBuckets()));
+		assertEquals(1, histogram.getPercentile(40));
+		assertEquals(3, histogram.getPercentile(60));
+		assertEquals(100, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getBuckets().length);
+	}
+
+	public void testTransactions()
+	{
+		TransactionMetrics metrics = new TransactionMetrics();
+		Account account = createAccount(metrics);
+		account.beginTransaction();
+		account.setBalance(10);
+		account.setBalance(20);
+		account.commit();
+		account.beginTransaction();
+		account.setBalance(30);
+		account.rollback();
+		assertEquals(2, metrics.getBeginCount());
+		assertEquals(1, metrics.getCommitCount());
+		assertEquals(1, metrics.getRollbackCount());
+		assertEquals(2, metrics.getMaxJournalLength());
+		assertEquals(1.5, metrics.getMeanJournalLength());
+		assertEquals(2, metrics.getTransactionNanos().getCount());
+		assertEquals(1, metrics.getRollbackNanos().getCount());
+		assertTrue(metrics.getMaxTransactionNanos() >= metrics.getMaxRollbackNanos());
+		assertEquals(Integer.valueOf(20), account.getBalance());
+		metrics.reset();
+		assertEquals(0, metrics.getBeginCount());
+		assertEquals(0, metrics.getJournalLengthHistogram().length);
+		Account other = Transactionality.createRoot(Account.class);
+		other.init(data());
+		other.beginTransaction();
+		other.commit();
+		assertEquals(0, metrics.getCommitCount());
+	}
+
+	public void testProxyCounts()
+	{
+		TransactionMetrics metrics = new TransactionMetrics();
+		Account account = createAccount(metrics);
+		account.createParent();
+		account.getSubAccounts().create("a");
+		account.getSubAccounts().create("b");
+		Map<String, Long> counts = metrics.getProxyCounts();
+		assertEquals(1, counts.size());
+		assertEquals(Long.valueOf(4), counts.get(Account.class.getName()));
+	}
+
+	public void testRegister() throws Exception
+	{
+		TransactionMetrics metrics = new TransactionMetrics();
+		Account account = createAccount(metrics);
+		account.beginTransaction();
+		account.setBalance(1);
+		account.commit();
+		ObjectName name = metrics.register("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			assertEquals(1L, server.getAttribute(name, "CommitCount"));
+			assertTrue(Arrays.equals(new long[] { 0, 1 }, (long[]) server.getAttribute(name, "JournalLengthHistogram")));
+			assertEquals(1, ((TabularData) server.getAttribute(name, "ProxyCounts")).size());
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, server.getAttribute(name, "CommitCount"));
+		}
+		finally
+		{
+			server.unregisterMBean(name);
+		}
+	}
+}
@@ -275,6 +275,78 @@ public class TransactionalityTest extends TestCase
 		assertEquals(loaded, test);
 	}
 
+	public void testFreeze() throws Exception
+	{
+		Test1 test = Transactionality.createRoot(Test1.class);
+		test.setB("Foo");
+		test.getF().add(true);
+		test.createI().put("x", 1);
+		test.getJ().create("y").setTest("Bar");
+		String xml = test.toPlist();
+		assertFalse(test.isFrozen());
+		test.freeze();
+		assertTrue(test.isFrozen());
+		assertEquals("Foo", test.getB());
+		assertEquals((Integer) 1, test.getI().get("x"));
+		assertEquals("Bar", test.getJ().get("y").getTest());
+		assertEquals(xml, test.toPlist());
+		assertEquals(test, Transactionality.fromXml(Test1.class, xml));
+		try
+		{
+			test.setB("Bar");
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+			assertEquals("Frozen tree cannot be modified.", e.getMessage());
+		}
+		try
+		{
+			test.getF().add(false);
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+		try
+		{
+			test.getJ().get("y").setTest("Baz");
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+		try
+		{
+			test.beginTransaction();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		assertEquals("Foo", test.getB());
+	}
+
+	public void testFreezeWithoutTop() throws Exception
+	{
+		Root root = new Root();
+		ByteArray bytes = new ByteArray(root);
+		bytes.append(new byte[] { 1, 2, 3 });
+		int capacity = bytes.capacity();
+		root.freeze();
+		assertTrue(root.isFrozen());
+		assertEquals(capacity, bytes.capacity());
+		try
+		{
+			bytes.append((byte) 4);
+			fail();
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+		assertEquals(3, bytes.size());
+	}
+
 	public void testCreateRoot() throws Exception
 	{
 		Test1 test = Transactionality.createRoot(Test1.class);